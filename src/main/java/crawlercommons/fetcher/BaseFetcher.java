@@ -79,7 +79,7 @@ public abstract class BaseFetcher implements Serializable {
         return get(url, null);
     }
 
-    protected static String getMimeTypeFromContentType(String contentType) {
+    public static String getMimeTypeFromContentType(String contentType) {
         String result = "";
         MediaType mt = MediaType.parse(contentType);
         if (mt != null) {
@@ -100,9 +100,21 @@ public abstract class BaseFetcher implements Serializable {
     public abstract FetchedResult get(String url, Payload payload) throws BaseFetchException;
 
     /**
-     * Terminate any async request being processed.
+     * Terminate all requests currently being processed. Each of the aborted
+     * fetches fails with an {@link AbortedFetchException}.
      * 
      */
     public abstract void abort();
 
+    /**
+     * Terminate any requests for <code>url</code> currently being processed.
+     * Fetchers that can't abort individual requests return false.
+     * 
+     * @param url the url passed to {@link #get(String, Payload)}
+     * @return true if at least one request was aborted
+     */
+    public boolean abort(String url) {
+        return false;
+    }
+
 }
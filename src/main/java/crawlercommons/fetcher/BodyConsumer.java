@@ -0,0 +1,36 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the body of a fetched page in chunks, as it's being read, so that
+ * it can be processed (e.g. written to disk or hashed) without the whole body
+ * being held in memory.
+ */
+public interface BodyConsumer {
+
+    /**
+     * @param chunk next part of the body. The buffer is reused after this
+     *        returns, so its contents must be copied if they're needed later.
+     * @throws IOException if the chunk couldn't be processed, which fails
+     *         the fetch
+     */
+    void consume(ByteBuffer chunk) throws IOException;
+}
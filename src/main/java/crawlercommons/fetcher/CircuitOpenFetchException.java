@@ -0,0 +1,34 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+/**
+ * Thrown without making a request, when the circuit breaker for the URL's
+ * host is open because recent requests to the host failed.
+ */
+@SuppressWarnings({ "serial" })
+public class CircuitOpenFetchException extends BaseFetchException {
+
+    public CircuitOpenFetchException() {
+        super();
+    }
+
+    public CircuitOpenFetchException(String url, String msg) {
+        super(url, msg);
+    }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the {@link BodyConsumer} for a fetch fails. Unlike an
+ * {@link IOFetchException} this isn't a problem with the host, so it doesn't
+ * count against the host's circuit breaker, and isn't retried (which would
+ * pass the start of the body to the consumer again).
+ */
+@SuppressWarnings({ "serial" })
+public class ConsumerFetchException extends BaseFetchException {
+
+    public ConsumerFetchException() {
+        super();
+    }
+
+    public ConsumerFetchException(String url, IOException e) {
+        super(url, e);
+    }
+
+}
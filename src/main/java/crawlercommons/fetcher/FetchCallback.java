@@ -0,0 +1,29 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+/**
+ * Callback for the outcome of fetches run by a {@link FetchExecutor} or
+ * {@link FetchScheduler}. Methods are called from the threads that ran the
+ * fetches, so implementations must be thread-safe.
+ */
+public interface FetchCallback {
+
+    void onResult(FetchedResult result);
+
+    void onException(BaseFetchException e);
+}
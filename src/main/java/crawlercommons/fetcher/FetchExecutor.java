@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * Runs many blocking {@link BaseFetcher#get(String, Payload)} calls in
+ * parallel, and hands back the results in completion order.
+ *
+ * The number of fetches that are in progress (or completed, but not yet
+ * handed back) is bounded by <code>maxInFlight</code>, so callers can iterate
+ * over very large sets of URLs without buffering all of the results.
+ *
+ * Any {@link ExecutorService} can be used to run the fetches, e.g. a
+ * thread-per-task executor on JVMs that support lightweight threads. Note that
+ * with such an executor a thread-local cookie store would be created for every
+ * fetch, so the fetcher should be configured with a shared cookie store (see
+ * {@link crawlercommons.fetcher.http.SharedCookieStoreProvider}).
+ */
+public class FetchExecutor implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(FetchExecutor.class);
+
+    private final BaseFetcher _fetcher;
+    private final ExecutorService _executor;
+    private final int _maxInFlight;
+    private final boolean _ownsExecutor;
+
+    /**
+     * Create a fetch executor that uses its own pool of
+     * <code>numThreads</code> daemon threads.
+     *
+     * @param fetcher fetcher used for every request
+     * @param numThreads number of fetch threads, and the max number of fetches
+     *            in flight
+     */
+    public FetchExecutor(BaseFetcher fetcher, int numThreads) {
+        this(fetcher, Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("fetch-executor")), numThreads, true);
+    }
+
+    /**
+     * Create a fetch executor that runs fetches using <code>executor</code>.
+     * The executor isn't shut down when this fetch executor is closed.
+     *
+     * @param fetcher fetcher used for every request
+     * @param executor executor used to run each (blocking) fetch
+     * @param maxInFlight max number of fetches in progress, or completed but
+     *            not yet handed back
+     */
+    public FetchExecutor(BaseFetcher fetcher, ExecutorService executor, int maxInFlight) {
+        this(fetcher, executor, maxInFlight, false);
+    }
+
+    private FetchExecutor(BaseFetcher fetcher, ExecutorService executor, int maxInFlight, boolean ownsExecutor) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        _fetcher = fetcher;
+        _executor = executor;
+        _maxInFlight = maxInFlight;
+        _ownsExecutor = ownsExecutor;
+    }
+
+    public BaseFetcher getFetcher() {
+        return _fetcher;
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    /**
+     * Fetch all of the <code>urls</code>. Fetches are only started as results
+     * are consumed from the returned iterator, so that at most
+     * <code>maxInFlight</code> fetches are pending at any time.
+     *
+     * Each call to {@link Iterator#next()} blocks until a fetch completes,
+     * and returns its (completed) future; {@link Future#get()} either returns
+     * the {@link FetchedResult} or throws an
+     * {@link java.util.concurrent.ExecutionException} whose cause is the
+     * {@link BaseFetchException}. The iterator isn't thread-safe.
+     *
+     * @param urls urls to fetch
+     * @param payload payload passed to every fetch
+     * @return iterator over completed fetches, in completion order
+     */
+    public Iterator<Future<FetchedResult>> fetchAll(final Iterable<String> urls, final Payload payload) {
+        final Iterator<String> urlIter = urls.iterator();
+        final CompletionService<FetchedResult> completionService = new ExecutorCompletionService<>(_executor);
+
+        return new Iterator<Future<FetchedResult>>() {
+            private int _pending = 0;
+
+            @Override
+            public boolean hasNext() {
+                fill();
+                return _pending > 0;
+            }
+
+            @Override
+            public Future<FetchedResult> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                try {
+                    Future<FetchedResult> result = completionService.take();
+                    _pending -= 1;
+                    return result;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for fetch to complete", e);
+                }
+            }
+
+            private void fill() {
+                while ((_pending < _maxInFlight) && urlIter.hasNext()) {
+                    final String url = urlIter.next();
+                    completionService.submit(() -> _fetcher.get(url, payload));
+                    _pending += 1;
+                }
+            }
+        };
+    }
+
+    /**
+     * Fetch all of the <code>urls</code>, passing each result (or exception)
+     * to <code>callback</code> as the fetch completes. This call blocks until
+     * all fetches have completed. Unexpected (runtime) exceptions from the
+     * fetcher are passed to the callback as an {@link IOFetchException}.
+     *
+     * @param urls urls to fetch
+     * @param payload payload passed to every fetch
+     * @param callback called with the outcome of each fetch
+     * @throws InterruptedException if interrupted while waiting; fetches that
+     *             are in progress aren't aborted.
+     */
+    public void fetchAll(Iterable<String> urls, final Payload payload, final FetchCallback callback) throws InterruptedException {
+        final Semaphore slots = new Semaphore(_maxInFlight);
+
+        for (final String url : urls) {
+            slots.acquire();
+            try {
+                _executor.execute(() -> {
+                    try {
+                        callback.onResult(_fetcher.get(url, payload));
+                    } catch (BaseFetchException e) {
+                        callback.onException(e);
+                    } catch (RuntimeException e) {
+                        // Map anything else to a generic IOFetchException
+                        LOGGER.error("Unexpected exception fetching " + url, e);
+                        callback.onException(new IOFetchException(url, new IOException(e)));
+                    } finally {
+                        slots.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+        }
+
+        // Wait for all outstanding fetches to complete.
+        slots.acquire(_maxInFlight);
+        slots.release(_maxInFlight);
+    }
+
+    /**
+     * Shut down the executor, if it was created by this fetch executor.
+     */
+    @Override
+    public void close() {
+        if (_ownsExecutor) {
+            _executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * Runs fetches as a sequence of stages, each with its own thread pool and
+ * bounded queue. The first stage does the (network-bound) fetch, and results
+ * then pass through the stages added via
+ * {@link #addStage(String, FetchStage, int, int)}, in order, e.g. decoding
+ * (see {@link crawlercommons.fetcher.http.DecodeStage}), digesting or outlink
+ * extraction. The final result (or the exception from whichever stage failed)
+ * is passed to the {@link FetchCallback}.
+ *
+ * CPU-heavy work in later stages doesn't tie up fetch threads (and so
+ * connections), except when a stage's queue is full, in which case the
+ * previous stage blocks until there's room. The queue depth of each stage
+ * shows where the bottleneck is.
+ */
+public class FetchPipeline implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(FetchPipeline.class);
+
+    public static final String FETCH_STAGE_NAME = "fetch";
+
+    private static class PipelineItem {
+        private final String _url;
+        private final Payload _payload;
+        private FetchedResult _result;
+
+        public PipelineItem(String url, Payload payload) {
+            _url = url;
+            _payload = payload;
+        }
+
+        /**
+         * Close the result (if any) of an item that won't reach the callback,
+         * so that its direct buffer or content file isn't leaked.
+         */
+        public void dropResult() {
+            if (_result != null) {
+                _result.close();
+                _result = null;
+            }
+        }
+    }
+
+    private class PipelineTask implements Runnable {
+        private final int _index;
+        private final PipelineItem _item;
+
+        public PipelineTask(int index, PipelineItem item) {
+            _index = index;
+            _item = item;
+        }
+
+        @Override
+        public void run() {
+            process(_index, _item);
+        }
+    }
+
+    private static class Stage {
+        private final String _name;
+        private final FetchStage _stage;
+        private final ThreadPoolExecutor _executor;
+        // Limits the number of items that are queued or being processed.
+        private final Semaphore _slots;
+        private final AtomicInteger _numActive = new AtomicInteger();
+
+        public Stage(String name, FetchStage stage, int numThreads, int queueSize) {
+            _name = name;
+            _stage = stage;
+            _executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("fetch-pipeline-" + name));
+            _slots = new Semaphore(numThreads + queueSize);
+        }
+    }
+
+    private final BaseFetcher _fetcher;
+    private final FetchCallback _callback;
+    private final List<Stage> _stages = new ArrayList<>();
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _allDone = _lock.newCondition();
+
+    // Guarded by _lock
+    private int _numInPipeline = 0;
+    private boolean _started = false;
+
+    /**
+     * @param fetcher fetcher used for every request
+     * @param numFetchThreads number of threads in the fetch stage
+     * @param fetchQueueSize max number of URLs waiting to be fetched
+     * @param callback called with the outcome of every fetch
+     */
+    public FetchPipeline(BaseFetcher fetcher, int numFetchThreads, int fetchQueueSize, FetchCallback callback) {
+        _fetcher = fetcher;
+        _callback = callback;
+        _stages.add(new Stage(FETCH_STAGE_NAME, null, numFetchThreads, fetchQueueSize));
+    }
+
+    public BaseFetcher getFetcher() {
+        return _fetcher;
+    }
+
+    /**
+     * Add a stage to the end of the pipeline. Stages can only be added before
+     * the first URL is submitted.
+     *
+     * @param name unique name of the stage, for metrics
+     * @param stage processing done by the stage
+     * @param numThreads number of threads for the stage
+     * @param queueSize max number of results waiting for the stage
+     * @return this pipeline
+     */
+    public FetchPipeline addStage(String name, FetchStage stage, int numThreads, int queueSize) {
+        _lock.lock();
+        try {
+            if (_started) {
+                throw new IllegalStateException("Can't add stages after fetching has started");
+            }
+
+            if (getStage(name) != null) {
+                throw new IllegalArgumentException("Duplicate stage name: " + name);
+            }
+
+            _stages.add(new Stage(name, stage, numThreads, queueSize));
+            return this;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return names of all stages, in processing order
+     */
+    public List<String> getStageNames() {
+        List<String> result = new ArrayList<>(_stages.size());
+        for (Stage stage : _stages) {
+            result.add(stage._name);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param stageName name of the stage
+     * @return number of items waiting for a thread in the stage
+     */
+    public int getQueueDepth(String stageName) {
+        return getExistingStage(stageName)._executor.getQueue().size();
+    }
+
+    /**
+     * @param stageName name of the stage
+     * @return number of items currently being processed by the stage
+     */
+    public int getNumActive(String stageName) {
+        return getExistingStage(stageName)._numActive.get();
+    }
+
+    /**
+     * @return number of URLs that have been submitted, but not yet passed to
+     *         the callback
+     */
+    public int getNumInPipeline() {
+        _lock.lock();
+        try {
+            return _numInPipeline;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Queue up <code>url</code> to be fetched, blocking while the fetch
+     * stage's queue is full.
+     *
+     * @param url url to fetch
+     * @param payload payload passed to the fetcher
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(String url, Payload payload) throws InterruptedException {
+        _lock.lock();
+        try {
+            _started = true;
+            _numInPipeline += 1;
+        } finally {
+            _lock.unlock();
+        }
+
+        if (!enqueue(0, new PipelineItem(url, payload))) {
+            Thread.interrupted();
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Wait until every URL that's been submitted has made it through the
+     * pipeline.
+     *
+     * @param timeout max time to wait
+     * @param unit unit for the timeout
+     * @return true if all URLs were processed, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        _lock.lock();
+        try {
+            while (_numInPipeline > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+
+                nanos = _allDone.awaitNanos(nanos);
+            }
+
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Stop all of the stages. Items that are still in the pipeline are
+     * dropped (and their results closed), and in-progress fetches are
+     * interrupted.
+     */
+    @Override
+    public void close() {
+        for (Stage stage : _stages) {
+            for (Runnable task : stage._executor.shutdownNow()) {
+                ((PipelineTask) task)._item.dropResult();
+                done();
+            }
+        }
+    }
+
+    /**
+     * Hand off <code>item</code> to the stage at <code>index</code>, blocking
+     * while that stage is full.
+     *
+     * @return false if interrupted (the item is dropped)
+     */
+    private boolean enqueue(int index, PipelineItem item) {
+        Stage stage = _stages.get(index);
+        try {
+            stage._slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            item.dropResult();
+            done();
+            return false;
+        }
+
+        try {
+            stage._executor.execute(new PipelineTask(index, item));
+            return true;
+        } catch (RejectedExecutionException e) {
+            // Executor has been shut down.
+            stage._slots.release();
+            item.dropResult();
+            done();
+            throw e;
+        }
+    }
+
+    private void process(int index, PipelineItem item) {
+        Stage stage = _stages.get(index);
+        BaseFetchException exception = null;
+
+        stage._numActive.incrementAndGet();
+        try {
+            if (index == 0) {
+                item._result = _fetcher.get(item._url, item._payload);
+            } else {
+                item._result = stage._stage.process(item._result);
+            }
+        } catch (BaseFetchException e) {
+            exception = e;
+        } catch (RuntimeException e) {
+            // Map anything else to a generic IOFetchException
+            LOGGER.error("Unexpected exception in stage " + stage._name + " for " + item._url, e);
+            exception = new IOFetchException(item._url, new IOException(e));
+        } finally {
+            stage._numActive.decrementAndGet();
+            stage._slots.release();
+        }
+
+        // The failed stage's input won't be passed on.
+        if (exception != null) {
+            item.dropResult();
+        }
+
+        if ((exception == null) && (index + 1 < _stages.size())) {
+            try {
+                enqueue(index + 1, item);
+            } catch (RejectedExecutionException e) {
+                // Pipeline has been closed, so the item is dropped.
+            }
+
+            return;
+        }
+
+        try {
+            if (exception != null) {
+                _callback.onException(exception);
+            } else {
+                _callback.onResult(item._result);
+            }
+        } finally {
+            done();
+        }
+    }
+
+    private void done() {
+        _lock.lock();
+        try {
+            _numInPipeline -= 1;
+            if (_numInPipeline == 0) {
+                _allDone.signalAll();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private Stage getStage(String name) {
+        for (Stage stage : _stages) {
+            if (stage._name.equals(name)) {
+                return stage;
+            }
+        }
+
+        return null;
+    }
+
+    private Stage getExistingStage(String name) {
+        Stage stage = getStage(name);
+        if (stage == null) {
+            throw new IllegalArgumentException("Unknown stage: " + name);
+        }
+
+        return stage;
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * A {@link Flow.Processor} that fetches the URLs it receives from upstream,
+ * and publishes the {@link FetchedResult}s to a single downstream subscriber.
+ *
+ * URLs are only requested from upstream when there is both a free fetch slot
+ * (at most <code>maxInFlight</code> fetches run at once) and room for the
+ * result, so that no more than <code>maxBuffered</code> results are ever
+ * waiting for downstream demand. A slow downstream subscriber therefore
+ * throttles fetching, rather than causing results to pile up on the heap.
+ *
+ * Fetches that fail are not published; the exception is passed to the
+ * exception handler (see {@link #setExceptionHandler(Consumer)}), which by
+ * default just logs it.
+ */
+public class FetchProcessor implements Flow.Processor<String, FetchedResult>, Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(FetchProcessor.class);
+
+    private final BaseFetcher _fetcher;
+    private final Executor _executor;
+    private final int _maxInFlight;
+    private final int _maxBuffered;
+    private final boolean _ownsExecutor;
+
+    private volatile Consumer<BaseFetchException> _exceptionHandler = e -> LOGGER.debug("Fetch failed: " + e.getUrl(), e);
+
+    // Serializes delivery to the downstream subscriber.
+    private final AtomicInteger _wip = new AtomicInteger();
+
+    // All of the following state is guarded by _lock.
+    private final Object _lock = new Object();
+    private final ArrayDeque<FetchedResult> _results = new ArrayDeque<>();
+    private Flow.Subscription _upstream;
+    private Flow.Subscriber<? super FetchedResult> _downstream;
+    private long _demand = 0;
+    private int _numRequested = 0;
+    private int _numActive = 0;
+    private boolean _upstreamDone = false;
+    private Throwable _upstreamError;
+    private boolean _cancelled = false;
+    private boolean _terminated = false;
+
+    /**
+     * Create a fetch processor that uses its own pool of
+     * <code>maxInFlight</code> daemon threads.
+     *
+     * @param fetcher fetcher used for every request
+     * @param maxInFlight max number of fetches in progress; this should not
+     *            be more than the number of connections the fetcher allows.
+     * @param maxBuffered max number of results waiting for downstream demand
+     */
+    public FetchProcessor(BaseFetcher fetcher, int maxInFlight, int maxBuffered) {
+        this(fetcher, Executors.newFixedThreadPool(maxInFlight, new DaemonThreadFactory("fetch-processor")), maxInFlight, maxBuffered, true);
+    }
+
+    /**
+     * Create a fetch processor that runs fetches using <code>executor</code>.
+     * The executor isn't shut down when this fetch processor is closed.
+     *
+     * @param fetcher fetcher used for every request
+     * @param executor executor used to run each (blocking) fetch
+     * @param maxInFlight max number of fetches in progress
+     * @param maxBuffered max number of results waiting for downstream demand
+     */
+    public FetchProcessor(BaseFetcher fetcher, Executor executor, int maxInFlight, int maxBuffered) {
+        this(fetcher, executor, maxInFlight, maxBuffered, false);
+    }
+
+    private FetchProcessor(BaseFetcher fetcher, Executor executor, int maxInFlight, int maxBuffered, boolean ownsExecutor) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        if (maxBuffered < 0) {
+            throw new IllegalArgumentException("maxBuffered can't be negative");
+        }
+
+        _fetcher = fetcher;
+        _executor = executor;
+        _maxInFlight = maxInFlight;
+        _maxBuffered = maxBuffered;
+        _ownsExecutor = ownsExecutor;
+    }
+
+    public BaseFetcher getFetcher() {
+        return _fetcher;
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    public int getMaxBuffered() {
+        return _maxBuffered;
+    }
+
+    /**
+     * Set the handler that is called (from a fetch thread) with the exception
+     * for each failed fetch.
+     *
+     * @param exceptionHandler handler for fetch exceptions
+     */
+    public void setExceptionHandler(Consumer<BaseFetchException> exceptionHandler) {
+        _exceptionHandler = exceptionHandler;
+    }
+
+    /**
+     * @return number of fetched results waiting for downstream demand
+     */
+    public int getNumBuffered() {
+        synchronized (_lock) {
+            return _results.size();
+        }
+    }
+
+    /**
+     * @return number of fetches currently in progress
+     */
+    public int getNumActive() {
+        synchronized (_lock) {
+            return _numActive;
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super FetchedResult> subscriber) {
+        synchronized (_lock) {
+            if (_downstream == null) {
+                _downstream = subscriber;
+                subscriber = null;
+            }
+        }
+
+        if (subscriber != null) {
+            // Only one subscriber is supported, since results aren't replayed.
+            subscriber.onSubscribe(new MyEmptySubscription());
+            subscriber.onError(new IllegalStateException("FetchProcessor only supports a single subscriber"));
+            return;
+        }
+
+        _downstream.onSubscribe(new MySubscription());
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        boolean duplicate;
+        synchronized (_lock) {
+            duplicate = (_upstream != null) || _cancelled;
+            if (!duplicate) {
+                _upstream = subscription;
+            }
+        }
+
+        if (duplicate) {
+            subscription.cancel();
+        } else {
+            drain();
+        }
+    }
+
+    @Override
+    public void onNext(final String url) {
+        synchronized (_lock) {
+            if (_cancelled || _upstreamDone) {
+                return;
+            }
+
+            _numRequested -= 1;
+            _numActive += 1;
+        }
+
+        try {
+            _executor.execute(() -> fetch(url));
+        } catch (RejectedExecutionException e) {
+            synchronized (_lock) {
+                _numActive -= 1;
+            }
+
+            _upstream.cancel();
+            onError(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (_lock) {
+            if (_upstreamDone) {
+                return;
+            }
+
+            _upstreamDone = true;
+            _upstreamError = throwable;
+        }
+
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (_lock) {
+            _upstreamDone = true;
+        }
+
+        drain();
+    }
+
+    /**
+     * Cancel the upstream subscription, drop (and close) any buffered
+     * results, and shut down the executor if it was created by this fetch
+     * processor. The results of fetches that are still in progress are
+     * dropped too.
+     */
+    @Override
+    public void close() {
+        cancel();
+
+        if (_ownsExecutor) {
+            ((ExecutorService) _executor).shutdownNow();
+        }
+    }
+
+    private void fetch(String url) {
+        try {
+            FetchedResult result = _fetcher.get(url);
+            synchronized (_lock) {
+                if (!_cancelled) {
+                    _results.add(result);
+                    result = null;
+                }
+            }
+
+            // Dropped, so give back its direct buffer or content file.
+            if (result != null) {
+                result.close();
+            }
+        } catch (BaseFetchException e) {
+            _exceptionHandler.accept(e);
+        } catch (RuntimeException e) {
+            LOGGER.error("Unexpected exception fetching " + url, e);
+        } finally {
+            synchronized (_lock) {
+                _numActive -= 1;
+            }
+
+            drain();
+        }
+    }
+
+    private void cancel() {
+        Flow.Subscription upstream;
+        List<FetchedResult> dropped;
+        synchronized (_lock) {
+            if (_cancelled) {
+                return;
+            }
+
+            _cancelled = true;
+            dropped = new ArrayList<>(_results);
+            _results.clear();
+            upstream = _upstream;
+        }
+
+        for (FetchedResult result : dropped) {
+            result.close();
+        }
+
+        if (upstream != null) {
+            upstream.cancel();
+        }
+    }
+
+    /**
+     * Deliver buffered results that downstream has asked for, signal
+     * completion, and request more URLs from upstream if there's room. Only
+     * one thread runs the loop at a time; calls made while it's running just
+     * make it go around again.
+     */
+    private void drain() {
+        if (_wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            while (true) {
+                FetchedResult result = null;
+                boolean terminate = false;
+                Throwable error = null;
+                Flow.Subscription upstream = null;
+                long numToRequest = 0;
+
+                synchronized (_lock) {
+                    if (_cancelled || _terminated || (_downstream == null)) {
+                        break;
+                    }
+
+                    if ((_demand > 0) && !_results.isEmpty()) {
+                        result = _results.poll();
+                        if (_demand != Long.MAX_VALUE) {
+                            _demand -= 1;
+                        }
+                    } else if (_upstreamDone && (_numActive == 0) && _results.isEmpty()) {
+                        _terminated = true;
+                        terminate = true;
+                        error = _upstreamError;
+                    } else if (!_upstreamDone && (_upstream != null)) {
+                        numToRequest = getNumToRequest();
+                        _numRequested += numToRequest;
+                        upstream = _upstream;
+                    }
+                }
+
+                if (result != null) {
+                    _downstream.onNext(result);
+                } else {
+                    if (terminate) {
+                        if (error != null) {
+                            _downstream.onError(error);
+                        } else {
+                            _downstream.onComplete();
+                        }
+                    } else if (numToRequest > 0) {
+                        upstream.request(numToRequest);
+                    }
+
+                    break;
+                }
+            }
+
+            missed = _wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Every URL that's been requested (but not yet received), is being
+     * fetched, or has been fetched, could end up in the buffer, so only
+     * request more if they would still fit given the current downstream
+     * demand. Must be called while holding _lock.
+     *
+     * @return number of URLs to request from upstream
+     */
+    private int getNumToRequest() {
+        long numFreeSlots = _maxInFlight - (_numRequested + _numActive);
+        long numFreeBuffers = numFreeSlots;
+        if (_demand <= Long.MAX_VALUE - _maxBuffered) {
+            long numPending = _numRequested + _numActive + _results.size();
+            numFreeBuffers = _demand + _maxBuffered - numPending;
+        }
+
+        return (int) Math.max(0, Math.min(numFreeSlots, numFreeBuffers));
+    }
+
+    private class MySubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                _downstream.onError(new IllegalArgumentException("Requested count must be positive: " + n));
+                return;
+            }
+
+            synchronized (_lock) {
+                _demand += n;
+                if (_demand < 0) {
+                    _demand = Long.MAX_VALUE;
+                }
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            FetchProcessor.this.cancel();
+        }
+    }
+
+    private static class MyEmptySubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,578 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.io.Closeable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * Politeness-aware scheduler that feeds URLs to a {@link BaseFetcher}.
+ *
+ * URLs are grouped into one queue per host (or per any other key, e.g. the
+ * registrable domain, via {@link #setHostKeyFunction(Function)}). Each host
+ * has a time at which it's next ready to be fetched from, and a limit on how
+ * many of its URLs can be fetched concurrently. Worker threads always take
+ * the URL from the host that's been ready the longest, so they never sit idle
+ * while some host can be fetched from.
+ *
+ * Requests to the same host start at least the crawl delay apart, and (once
+ * all of the host's concurrent slots have been used) the next request also
+ * waits for the crawl delay after a request completes.
+ *
+ * If a {@link RetryPolicy} is set, failed fetches that it allows to be
+ * retried are queued up again after the policy's backoff delay, rather than
+ * being passed to the callback. The worker thread is free to fetch from other
+ * hosts in the meantime.
+ *
+ * Results are passed to the {@link FetchCallback}, from the worker threads.
+ */
+public class FetchScheduler implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(FetchScheduler.class);
+
+    public static final long DEFAULT_CRAWL_DELAY = 1000L;
+    public static final int DEFAULT_MAX_CONCURRENT_PER_HOST = 1;
+
+    private static final String INVALID_URL_HOST_KEY = "";
+
+    private static class PendingFetch {
+        private final String _url;
+        private final Payload _payload;
+        private final int _numRetries;
+
+        public PendingFetch(String url, Payload payload, int numRetries) {
+            _url = url;
+            _payload = payload;
+            _numRetries = numRetries;
+        }
+    }
+
+    private static class HostQueue {
+        private final String _hostKey;
+        private final ArrayDeque<PendingFetch> _pending = new ArrayDeque<>();
+        private long _crawlDelay;
+        private long _nextFetchTime = 0;
+        private int _numActive = 0;
+        private boolean _ready = false;
+        private boolean _idle = false;
+
+        public HostQueue(String hostKey, long crawlDelay) {
+            _hostKey = hostKey;
+            _crawlDelay = crawlDelay;
+        }
+    }
+
+    private final BaseFetcher _fetcher;
+    private final FetchCallback _callback;
+
+    private long _defaultCrawlDelay = DEFAULT_CRAWL_DELAY;
+    private int _maxConcurrentPerHost = DEFAULT_MAX_CONCURRENT_PER_HOST;
+    private Function<String, String> _hostKeyFunction = FetchScheduler::getHost;
+    private volatile RetryPolicy _retryPolicy = null;
+    private ScheduledExecutorService _retryExecutor = null;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _readyChanged = _lock.newCondition();
+    private final Condition _allDone = _lock.newCondition();
+
+    // Guarded by _lock
+    private final Map<String, HostQueue> _hosts = new HashMap<>();
+    private final Map<String, Long> _crawlDelays = new HashMap<>();
+    private final PriorityQueue<HostQueue> _readyHosts = new PriorityQueue<>((h1, h2) -> Long.compare(h1._nextFetchTime, h2._nextFetchTime));
+    private final ArrayDeque<HostQueue> _idleHosts = new ArrayDeque<>();
+    private int _numPending = 0;
+    private int _numActive = 0;
+    private int _numWaitingForRetry = 0;
+    private boolean _closed = false;
+    private final Map<Thread, String> _activeUrls = new HashMap<>();
+
+    private final List<Thread> _workers = new ArrayList<>();
+
+    /**
+     * @param fetcher fetcher used for every request
+     * @param numThreads number of worker threads
+     * @param callback called with the outcome of every fetch
+     */
+    public FetchScheduler(BaseFetcher fetcher, int numThreads, FetchCallback callback) {
+        _fetcher = fetcher;
+        _callback = callback;
+
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory("fetch-scheduler");
+        for (int i = 0; i < numThreads; i++) {
+            Thread worker = threadFactory.newThread(this::runWorker);
+            _workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public BaseFetcher getFetcher() {
+        return _fetcher;
+    }
+
+    /**
+     * Set the minimum delay between requests to the same host, for hosts that
+     * don't have a specific delay set via
+     * {@link #setCrawlDelay(String, long)}.
+     *
+     * @param crawlDelay delay in milliseconds
+     */
+    public void setDefaultCrawlDelay(long crawlDelay) {
+        _lock.lock();
+        try {
+            _defaultCrawlDelay = crawlDelay;
+            for (HostQueue host : _hosts.values()) {
+                if (!_crawlDelays.containsKey(host._hostKey)) {
+                    host._crawlDelay = crawlDelay;
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public long getDefaultCrawlDelay() {
+        return _defaultCrawlDelay;
+    }
+
+    /**
+     * Set the minimum delay between requests to one host, e.g. from the
+     * Crawl-delay directive in its robots.txt.
+     *
+     * @param hostKey host (as returned by the host key function)
+     * @param crawlDelay delay in milliseconds
+     */
+    public void setCrawlDelay(String hostKey, long crawlDelay) {
+        _lock.lock();
+        try {
+            _crawlDelays.put(hostKey, crawlDelay);
+            HostQueue host = _hosts.get(hostKey);
+            if (host != null) {
+                host._crawlDelay = crawlDelay;
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void setMaxConcurrentPerHost(int maxConcurrentPerHost) {
+        _lock.lock();
+        try {
+            _maxConcurrentPerHost = maxConcurrentPerHost;
+
+            // Hosts that were held back by the old limit may be ready now
+            // (or the other way around).
+            for (HostQueue host : _hosts.values()) {
+                updateReady(host);
+            }
+
+            _readyChanged.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrentPerHost() {
+        return _maxConcurrentPerHost;
+    }
+
+    /**
+     * Set the function used to map a URL to the key of the queue it goes into.
+     * By default this is the (lower-cased) host name. This must be set before
+     * any URLs are submitted.
+     *
+     * @param hostKeyFunction function from URL to host key
+     */
+    public void setHostKeyFunction(Function<String, String> hostKeyFunction) {
+        _lock.lock();
+        try {
+            if (!_hosts.isEmpty()) {
+                throw new IllegalStateException("Can't change host key function after URLs have been submitted");
+            }
+
+            _hostKeyFunction = hostKeyFunction;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Retry failed fetches as decided by <code>retryPolicy</code>. The
+     * fetcher's own retries (e.g. via
+     * {@link crawlercommons.fetcher.http.SimpleHttpFetcher#setDeferredRetries(boolean)})
+     * should be limited, so that failures aren't retried twice.
+     *
+     * @param retryPolicy policy to use, or null (the default) for no retries
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        _lock.lock();
+        try {
+            if ((retryPolicy != null) && (_retryExecutor == null)) {
+                _retryExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("fetch-scheduler-retry"));
+            }
+
+            _retryPolicy = retryPolicy;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return _retryPolicy;
+    }
+
+    /**
+     * Queue up <code>url</code> for fetching.
+     *
+     * @param url url to fetch
+     * @param payload payload for the fetch
+     */
+    public void submit(String url, Payload payload) {
+        String hostKey = _hostKeyFunction.apply(url);
+        RetryPolicy retryPolicy = _retryPolicy;
+        if (retryPolicy != null) {
+            retryPolicy.onFirstAttempt(hostKey);
+        }
+
+        _lock.lock();
+        try {
+            if (_closed) {
+                throw new IllegalStateException("Scheduler has been closed");
+            }
+
+            addPending(hostKey, new PendingFetch(url, payload, 0));
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of URLs that are queued up, but not yet being fetched.
+     */
+    public int getNumPending() {
+        _lock.lock();
+        try {
+            return _numPending;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of URLs that failed, and are waiting for their retry
+     *         delay to pass.
+     */
+    public int getNumWaitingForRetry() {
+        _lock.lock();
+        try {
+            return _numWaitingForRetry;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of URLs currently being fetched.
+     */
+    public int getNumActive() {
+        _lock.lock();
+        try {
+            return _numActive;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until all submitted URLs have been fetched (including retries).
+     *
+     * @param timeout max time to wait
+     * @param unit unit of <code>timeout</code>
+     * @return true if all URLs were fetched, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+
+        _lock.lock();
+        try {
+            while (!isDone()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                remaining = _allDone.awaitNanos(remaining);
+            }
+
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the worker threads. URLs that haven't been fetched yet (or are
+     * waiting to be retried) are dropped, and fetches in progress are
+     * aborted.
+     */
+    @Override
+    public void close() {
+        List<String> activeUrls;
+        _lock.lock();
+        try {
+            _closed = true;
+            _readyChanged.signalAll();
+            activeUrls = new ArrayList<>(_activeUrls.values());
+            if (_retryExecutor != null) {
+                _retryExecutor.shutdownNow();
+            }
+        } finally {
+            _lock.unlock();
+        }
+
+        for (Thread worker : _workers) {
+            worker.interrupt();
+        }
+
+        for (String url : activeUrls) {
+            _fetcher.abort(url);
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            PendingFetch fetch;
+            HostQueue host;
+
+            _lock.lock();
+            try {
+                host = takeReadyHost();
+                if (host == null) {
+                    return;
+                }
+
+                fetch = host._pending.remove();
+                _numPending -= 1;
+                host._numActive += 1;
+                _numActive += 1;
+                host._nextFetchTime = System.currentTimeMillis() + host._crawlDelay;
+                updateReady(host);
+                _activeUrls.put(Thread.currentThread(), fetch._url);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                _lock.unlock();
+            }
+
+            try {
+                _callback.onResult(_fetcher.get(fetch._url, fetch._payload));
+            } catch (BaseFetchException e) {
+                if (!scheduleRetry(host._hostKey, fetch, e)) {
+                    _callback.onException(e);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Unexpected exception fetching " + fetch._url, e);
+            } finally {
+                _lock.lock();
+                try {
+                    _activeUrls.remove(Thread.currentThread());
+                    host._numActive -= 1;
+                    _numActive -= 1;
+                    if (!host._ready) {
+                        host._nextFetchTime = Math.max(host._nextFetchTime, System.currentTimeMillis() + host._crawlDelay);
+                    }
+
+                    updateReady(host);
+                    purgeIdleHosts();
+                    if (isDone()) {
+                        _allDone.signalAll();
+                    }
+                } finally {
+                    _lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Ask the retry policy (if any) whether the failed fetch should be
+     * retried, and if so queue it up again after the retry delay.
+     *
+     * @return true if the fetch will be retried
+     */
+    private boolean scheduleRetry(String hostKey, PendingFetch fetch, BaseFetchException e) {
+        RetryPolicy retryPolicy = _retryPolicy;
+        if (retryPolicy == null) {
+            return false;
+        }
+
+        long delay = retryPolicy.getRetryDelay(hostKey, fetch._numRetries, e);
+        if (delay < 0) {
+            return false;
+        }
+
+        _lock.lock();
+        try {
+            if (_closed) {
+                return false;
+            }
+
+            LOGGER.debug("Retrying {} in {}ms", fetch._url, delay);
+            _numWaitingForRetry += 1;
+            _retryExecutor.schedule(() -> retry(hostKey, fetch), delay, TimeUnit.MILLISECONDS);
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void retry(String hostKey, PendingFetch fetch) {
+        _lock.lock();
+        try {
+            _numWaitingForRetry -= 1;
+            if (!_closed) {
+                addPending(hostKey, new PendingFetch(fetch._url, fetch._payload, fetch._numRetries + 1));
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Add a fetch to its host's queue, creating the queue if needed. Must be
+     * called while holding the lock.
+     */
+    private void addPending(String hostKey, PendingFetch fetch) {
+        HostQueue host = _hosts.get(hostKey);
+        if (host == null) {
+            Long crawlDelay = _crawlDelays.get(hostKey);
+            host = new HostQueue(hostKey, crawlDelay == null ? _defaultCrawlDelay : crawlDelay);
+            _hosts.put(hostKey, host);
+        }
+
+        host._pending.add(fetch);
+        _numPending += 1;
+        updateReady(host);
+        purgeIdleHosts();
+    }
+
+    /**
+     * @return true if there's nothing left to fetch. Must be called while
+     *         holding the lock.
+     */
+    private boolean isDone() {
+        return (_numPending == 0) && (_numActive == 0) && (_numWaitingForRetry == 0);
+    }
+
+    /**
+     * Wait for the host that has been ready the longest, and remove it from
+     * the ready queue. Must be called while holding the lock.
+     *
+     * @return the host, or null if the scheduler has been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private HostQueue takeReadyHost() throws InterruptedException {
+        while (!_closed) {
+            HostQueue host = _readyHosts.peek();
+            if (host == null) {
+                _readyChanged.await();
+                continue;
+            }
+
+            long delay = host._nextFetchTime - System.currentTimeMillis();
+            if (delay > 0) {
+                _readyChanged.await(delay, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            _readyHosts.remove();
+            host._ready = false;
+            return host;
+        }
+
+        return null;
+    }
+
+    /**
+     * Add or remove the host from the ready queue, based on whether it has
+     * pending URLs and a free slot. Must be called while holding the lock.
+     */
+    private void updateReady(HostQueue host) {
+        boolean canFetch = !host._pending.isEmpty() && (host._numActive < _maxConcurrentPerHost);
+        if (canFetch && !host._ready) {
+            host._ready = true;
+            _readyHosts.add(host);
+            _readyChanged.signal();
+        } else if (!canFetch && host._ready) {
+            host._ready = false;
+            _readyHosts.remove(host);
+        }
+
+        if (host._pending.isEmpty() && (host._numActive == 0) && !host._idle) {
+            host._idle = true;
+            _idleHosts.add(host);
+        }
+    }
+
+    /**
+     * Forget about hosts that have nothing left to fetch, once their crawl
+     * delay has passed. Must be called while holding the lock.
+     */
+    private void purgeIdleHosts() {
+        long now = System.currentTimeMillis();
+        int numToCheck = _idleHosts.size();
+        while ((numToCheck-- > 0) && (_idleHosts.peek()._nextFetchTime <= now)) {
+            HostQueue host = _idleHosts.remove();
+            if (!host._pending.isEmpty() || (host._numActive > 0)) {
+                // Host got more work after it went idle.
+                host._idle = false;
+            } else if (host._nextFetchTime <= now) {
+                host._idle = false;
+                _hosts.remove(host._hostKey);
+            } else {
+                _idleHosts.add(host);
+            }
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = new URL(url).getHost();
+            return host.toLowerCase(Locale.ROOT);
+        } catch (MalformedURLException e) {
+            // Let the fetcher report the problem.
+            return INVALID_URL_HOST_KEY;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+/**
+ * One step of a {@link FetchPipeline}, which processes the result of the
+ * previous step (e.g. decoding, digesting, or outlink extraction).
+ * Implementations are called from multiple threads.
+ */
+public interface FetchStage {
+
+    /**
+     * @param result output of the previous stage
+     * @return result to pass to the next stage; this can be the same object
+     * @throws BaseFetchException if the fetch should be failed
+     */
+    FetchedResult process(FetchedResult result) throws BaseFetchException;
+}
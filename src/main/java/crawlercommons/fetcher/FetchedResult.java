@@ -16,18 +16,46 @@
 
 package crawlercommons.fetcher;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidParameterException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DirectBufferPool;
 import crawlercommons.util.Headers;
 
 /**
+ * Result of a fetch. The body is normally held in a byte array, but it can
+ * also be in a file (see {@link #getContentFile()}) or in a direct buffer
+ * from a {@link DirectBufferPool}. In those cases the result should be closed
+ * once the body is no longer needed, which deletes the file or gives the
+ * buffer back to the pool; closing a result with the body in a byte array
+ * does nothing.
  */
-public class FetchedResult {
+public class FetchedResult implements AutoCloseable {
+    private static Logger LOGGER = LoggerFactory.getLogger(FetchedResult.class);
+
+    private static final byte[] NO_CONTENT = new byte[0];
+
     private final String _baseUrl;
     private final String _fetchedUrl;
     private final long _fetchTime;
     private final byte[] _content;
+    private final int _contentLength;
+    private final Path _contentFile;
+    private final DirectBufferPool _directPool;
+    private ByteBuffer _directContent;
+    private boolean _closed = false;
     private final String _contentType;
     private final int _responseRate;
     private final Headers _headers;
@@ -40,6 +68,45 @@ public class FetchedResult {
 
     public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, Headers headers, byte[] content, String contentType, int responseRate, Payload payload, String newBaseUrl,
                     int numRedirects, String hostAddress, int statusCode, String reasonPhrase) {
+        this(baseUrl, redirectedUrl, fetchTime, headers, content, (content == null) ? 0 : content.length, contentType, responseRate, payload, newBaseUrl, numRedirects, hostAddress, statusCode,
+                        reasonPhrase);
+    }
+
+    /**
+     * Same as the other constructor, but for a body that isn't (or isn't
+     * entirely) in <code>content</code>, e.g. because it was passed to a
+     * {@link BodyConsumer}.
+     */
+    public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, Headers headers, byte[] content, int contentLength, String contentType, int responseRate, Payload payload,
+                    String newBaseUrl, int numRedirects, String hostAddress, int statusCode, String reasonPhrase) {
+        this(baseUrl, redirectedUrl, fetchTime, headers, content, contentLength, null, contentType, responseRate, payload, newBaseUrl, numRedirects, hostAddress, statusCode, reasonPhrase);
+    }
+
+    /**
+     * Same as the other constructors, but for a body that was written to
+     * <code>contentFile</code> (if not null) instead of being kept in
+     * memory.
+     */
+    public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, Headers headers, byte[] content, int contentLength, Path contentFile, String contentType, int responseRate,
+                    Payload payload, String newBaseUrl, int numRedirects, String hostAddress, int statusCode, String reasonPhrase) {
+        this(baseUrl, redirectedUrl, fetchTime, headers, content, contentLength, contentFile, null, null, contentType, responseRate, payload, newBaseUrl, numRedirects, hostAddress, statusCode,
+                        reasonPhrase);
+    }
+
+    /**
+     * Same as the other constructors, but for a body in a direct buffer
+     * (from its position to its limit), which is given back to
+     * <code>directPool</code> when the result is closed.
+     */
+    public FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, Headers headers, ByteBuffer directContent, DirectBufferPool directPool, String contentType, int responseRate,
+                    Payload payload, String newBaseUrl, int numRedirects, String hostAddress, int statusCode, String reasonPhrase) {
+        this(baseUrl, redirectedUrl, fetchTime, headers, NO_CONTENT, directContent.remaining(), null, directContent, directPool, contentType, responseRate, payload, newBaseUrl, numRedirects,
+                        hostAddress, statusCode, reasonPhrase);
+    }
+
+    private FetchedResult(String baseUrl, String redirectedUrl, long fetchTime, Headers headers, byte[] content, int contentLength, Path contentFile, ByteBuffer directContent,
+                    DirectBufferPool directPool, String contentType, int responseRate, Payload payload, String newBaseUrl, int numRedirects, String hostAddress, int statusCode,
+                    String reasonPhrase) {
         _payload = payload;
 
         if (baseUrl == null) {
@@ -70,6 +137,10 @@ public class FetchedResult {
         _fetchedUrl = redirectedUrl;
         _fetchTime = fetchTime;
         _content = content;
+        _contentLength = contentLength;
+        _contentFile = contentFile;
+        _directContent = directContent;
+        _directPool = directPool;
         _contentType = contentType;
         _responseRate = responseRate;
         _headers = headers;
@@ -100,12 +171,214 @@ public class FetchedResult {
         return _fetchTime;
     }
 
+    /**
+     * @return the body. If it was written to a file or is in a direct
+     *         buffer, it's copied onto the heap (every time this is called),
+     *         so {@link #getContentStream()} or {@link #mapContent()} should
+     *         be used instead.
+     */
     public byte[] getContent() {
-        return _content;
+        // Copy while holding the lock, so the buffer can't be released (and
+        // reused) part way through.
+        synchronized (this) {
+            ByteBuffer directContent = getDirectContent();
+            if (directContent != null) {
+                byte[] content = new byte[directContent.remaining()];
+                directContent.get(content);
+                return content;
+            }
+        }
+
+        if (_contentFile == null) {
+            return _content;
+        }
+
+        try {
+            return Files.readAllBytes(_contentFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read content file " + _contentFile, e);
+        }
+    }
+
+    /**
+     * @return the file the body was written to, or null if it's in memory.
+     *         The file belongs to the caller, who should delete it when it's
+     *         no longer needed (via {@link #close()} or
+     *         {@link #deleteContentFile()}).
+     */
+    public Path getContentFile() {
+        return _contentFile;
+    }
+
+    /**
+     * @return a stream of the body, wherever it's stored. The caller must
+     *         close it. Reading a body in a direct buffer fails once the
+     *         result has been closed.
+     * @throws IOException if the content file can't be opened
+     */
+    public InputStream getContentStream() throws IOException {
+        ByteBuffer directContent = getDirectContent();
+        if (directContent != null) {
+            return new MyByteBufferInputStream(directContent);
+        }
+
+        if (_contentFile == null) {
+            return new ByteArrayInputStream(_content);
+        }
+
+        return Files.newInputStream(_contentFile);
+    }
+
+    /**
+     * @return a read-only buffer with the body. A body in a file is memory
+     *         mapped, so it isn't copied onto the heap. A body in a direct
+     *         buffer is copied, as the direct buffer is given back to its
+     *         pool when the result is closed (see
+     *         {@link #mapContentUnsafe()} for a view without the copy).
+     * @throws IOException if the content file can't be mapped
+     */
+    public ByteBuffer mapContent() throws IOException {
+        if (hasDirectContent()) {
+            return ByteBuffer.wrap(getContent()).asReadOnlyBuffer();
+        }
+
+        return mapContentUnsafe();
+    }
+
+    /**
+     * Same as {@link #mapContent()}, but a body in a direct buffer is
+     * returned as a view of that buffer, without copying it.
+     * 
+     * <b>Warning:</b> the view is of pooled memory. Once the result is
+     * closed, the memory is reused for other fetches, and the view silently
+     * reads <i>their</i> bodies instead of failing. So the view (or anything
+     * sliced from it) must not be used after {@link #close()}.
+     * 
+     * @return a read-only buffer with the body
+     * @throws IOException if the content file can't be mapped
+     */
+    public ByteBuffer mapContentUnsafe() throws IOException {
+        ByteBuffer directContent = getDirectContent();
+        if (directContent != null) {
+            return directContent.asReadOnlyBuffer();
+        }
+
+        if (_contentFile == null) {
+            return ByteBuffer.wrap(_content).asReadOnlyBuffer();
+        }
+
+        // The mapping stays valid after the channel is closed.
+        try (FileChannel channel = FileChannel.open(_contentFile, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Delete the file the body was written to, if any.
+     * 
+     * @return true if there was a file and it was deleted
+     * @throws IOException if the file couldn't be deleted
+     */
+    public boolean deleteContentFile() throws IOException {
+        return (_contentFile != null) && Files.deleteIfExists(_contentFile);
+    }
+
+    /**
+     * @return true if the body is in a direct buffer
+     */
+    public synchronized boolean hasDirectContent() {
+        return _directContent != null;
+    }
+
+    /**
+     * Give the body's direct buffer (if any) back to its pool, and delete the
+     * file the body was written to (if any). The body can't be read after
+     * that.
+     */
+    @Override
+    public synchronized void close() {
+        if (_directContent != null) {
+            _directPool.release(_directContent);
+            _directContent = null;
+            _closed = true;
+        }
+
+        try {
+            deleteContentFile();
+        } catch (IOException e) {
+            LOGGER.warn("Can't delete content file " + _contentFile, e);
+        }
     }
 
+    /**
+     * @return a view of the direct buffer, or null if there isn't one
+     */
+    private synchronized ByteBuffer getDirectContent() {
+        if (_closed) {
+            throw new IllegalStateException("Content has been released");
+        }
+
+        return (_directContent == null) ? null : _directContent.duplicate();
+    }
+
+    /**
+     * Reads a view of the direct buffer, checking that the result hasn't been
+     * closed (and the buffer reused) before every read.
+     */
+    private class MyByteBufferInputStream extends InputStream {
+        private final ByteBuffer _buffer;
+
+        public MyByteBufferInputStream(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (FetchedResult.this) {
+                checkOpen();
+                return _buffer.hasRemaining() ? (_buffer.get() & 0xff) : -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (FetchedResult.this) {
+                checkOpen();
+                if (len == 0) {
+                    return 0;
+                }
+
+                if (!_buffer.hasRemaining()) {
+                    return -1;
+                }
+
+                int count = Math.min(len, _buffer.remaining());
+                _buffer.get(b, off, count);
+                return count;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (FetchedResult.this) {
+                checkOpen();
+                return _buffer.remaining();
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (_closed) {
+                throw new IOException("Content has been released");
+            }
+        }
+    }
+
+    /**
+     * @return length of the body, which is the length of the content unless
+     *         the body was passed to a {@link BodyConsumer}
+     */
     public int getContentLength() {
-        return _content.length;
+        return _contentLength;
     }
 
     public String getContentType() {
@@ -173,7 +446,15 @@ public class FetchedResult {
         report.append("    FetchedUrl    : " + getFetchedUrl() + "\n");
         report.append("    ContentType   : " + getContentType() + "\n");
         report.append("    ContentLength : " + getContentLength() + "\n");
-        report.append("    Content       : " + new String(getContent(), Charset.defaultCharset()) + "\n");
+        if (_contentFile != null) {
+            // Don't read a (possibly huge, or already deleted) file.
+            report.append("    Content       : in file " + _contentFile + "\n");
+        } else if ((_directPool != null) || _closed) {
+            // Or copy a direct buffer (which may have been released).
+            report.append("    Content       : in direct buffer" + (_closed ? " (released)" : "") + "\n");
+        } else {
+            report.append("    Content       : " + new String(getContent(), Charset.defaultCharset()) + "\n");
+        }
         report.append("*********************\n");
         report.append("End of Report:\n");
         return report.toString();
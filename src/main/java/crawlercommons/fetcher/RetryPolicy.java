@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether (and when) a failed fetch is retried, for a
+ * {@link FetchScheduler}. Retries are delayed with jittered exponential
+ * backoff: the n-th retry waits between half and all of
+ * <code>initialDelay * 2^(n-1)</code>, capped at the max delay.
+ *
+ * Retry traffic is capped by retry budgets, one per host and one for the
+ * whole crawl, so that a burst of failures doesn't turn into a retry storm.
+ * Each budget holds tokens: every first attempt adds <code>ratio</code>
+ * tokens (up to <code>maxTokens</code>), and every retry takes one. So in the
+ * long run retries are at most <code>ratio</code> times the first attempts,
+ * while a new host can still be retried up to <code>maxTokens</code> times.
+ *
+ * By default {@link IOFetchException}s are retried; override
+ * {@link #isRetriable(BaseFetchException)} to change that.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_INITIAL_DELAY = 1000L;
+    public static final long DEFAULT_MAX_DELAY = 60 * 1000L;
+    public static final double DEFAULT_HOST_BUDGET_RATIO = 0.2;
+    public static final int DEFAULT_HOST_BUDGET_MAX_TOKENS = 5;
+    public static final double DEFAULT_TOTAL_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_TOTAL_BUDGET_MAX_TOKENS = 100;
+    public static final int DEFAULT_MAX_HOSTS = 10000;
+
+    private static class RetryBudget {
+        private double _tokens;
+
+        public RetryBudget(double tokens) {
+            _tokens = tokens;
+        }
+    }
+
+    private final Map<String, RetryBudget> _hostBudgets;
+    private final RetryBudget _totalBudget = new RetryBudget(DEFAULT_TOTAL_BUDGET_MAX_TOKENS);
+
+    private volatile int _maxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long _initialDelay = DEFAULT_INITIAL_DELAY;
+    private volatile long _maxDelay = DEFAULT_MAX_DELAY;
+    private volatile double _hostBudgetRatio = DEFAULT_HOST_BUDGET_RATIO;
+    private volatile int _hostBudgetMaxTokens = DEFAULT_HOST_BUDGET_MAX_TOKENS;
+    private volatile double _totalBudgetRatio = DEFAULT_TOTAL_BUDGET_RATIO;
+    private volatile int _totalBudgetMaxTokens = DEFAULT_TOTAL_BUDGET_MAX_TOKENS;
+    private volatile int _maxHosts = DEFAULT_MAX_HOSTS;
+
+    private final AtomicLong _numRetries = new AtomicLong();
+    private final AtomicLong _numOverBudget = new AtomicLong();
+
+    @SuppressWarnings("serial")
+    public RetryPolicy() {
+        _hostBudgets = new LinkedHashMap<String, RetryBudget>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RetryBudget> eldest) {
+                return size() > _maxHosts;
+            }
+        };
+    }
+
+    /**
+     * @param maxRetries max number of times one fetch is retried
+     */
+    public void setMaxRetries(int maxRetries) {
+        _maxRetries = maxRetries;
+    }
+
+    public int getMaxRetries() {
+        return _maxRetries;
+    }
+
+    /**
+     * @param initialDelay delay in milliseconds before the first retry
+     * @param maxDelay max delay in milliseconds before any retry
+     */
+    public void setBackoff(long initialDelay, long maxDelay) {
+        if ((initialDelay < 0) || (maxDelay < initialDelay)) {
+            throw new IllegalArgumentException("Invalid backoff range: " + initialDelay + " to " + maxDelay);
+        }
+
+        _initialDelay = initialDelay;
+        _maxDelay = maxDelay;
+    }
+
+    /**
+     * @param ratio retries allowed per first attempt to a host
+     * @param maxTokens max number of retries a host can save up
+     */
+    public void setHostBudget(double ratio, int maxTokens) {
+        _hostBudgetRatio = ratio;
+        _hostBudgetMaxTokens = maxTokens;
+    }
+
+    /**
+     * @param ratio retries allowed per first attempt, across all hosts
+     * @param maxTokens max number of retries that can be saved up, across all
+     *        hosts
+     */
+    public synchronized void setTotalBudget(double ratio, int maxTokens) {
+        _totalBudgetRatio = ratio;
+        _totalBudgetMaxTokens = maxTokens;
+        _totalBudget._tokens = Math.min(_totalBudget._tokens, maxTokens);
+    }
+
+    /**
+     * @param maxHosts max number of hosts to keep retry budgets for
+     */
+    public void setMaxHosts(int maxHosts) {
+        _maxHosts = maxHosts;
+    }
+
+    /**
+     * @param e exception from a fetch
+     * @return true if the fetch might succeed if tried again
+     */
+    public boolean isRetriable(BaseFetchException e) {
+        return e instanceof IOFetchException;
+    }
+
+    /**
+     * Add to the retry budgets, for a fetch that's being tried for the first
+     * time.
+     *
+     * @param hostKey host of the fetch
+     */
+    public synchronized void onFirstAttempt(String hostKey) {
+        RetryBudget hostBudget = getHostBudget(hostKey);
+        hostBudget._tokens = Math.min(_hostBudgetMaxTokens, hostBudget._tokens + _hostBudgetRatio);
+        _totalBudget._tokens = Math.min(_totalBudgetMaxTokens, _totalBudget._tokens + _totalBudgetRatio);
+    }
+
+    /**
+     * Decide whether a failed fetch is retried, and if so take the retry
+     * from the budgets.
+     *
+     * @param hostKey host of the fetch
+     * @param numRetries number of times the fetch has been retried so far
+     * @param e exception from the fetch
+     * @return delay in milliseconds before the retry, or -1 if the fetch
+     *         shouldn't be retried
+     */
+    public long getRetryDelay(String hostKey, int numRetries, BaseFetchException e) {
+        if ((numRetries >= _maxRetries) || !isRetriable(e)) {
+            return -1;
+        }
+
+        synchronized (this) {
+            RetryBudget hostBudget = getHostBudget(hostKey);
+            if ((hostBudget._tokens < 1.0) || (_totalBudget._tokens < 1.0)) {
+                _numOverBudget.incrementAndGet();
+                return -1;
+            }
+
+            hostBudget._tokens -= 1.0;
+            _totalBudget._tokens -= 1.0;
+        }
+
+        _numRetries.incrementAndGet();
+        long delay = Math.min(_maxDelay, _initialDelay << Math.min(numRetries, 30));
+        return (delay / 2) + ThreadLocalRandom.current().nextLong((delay / 2) + 1);
+    }
+
+    /**
+     * @return number of retries that were allowed
+     */
+    public long getNumRetries() {
+        return _numRetries.get();
+    }
+
+    /**
+     * @return number of retries that were refused because a budget was used
+     *         up
+     */
+    public long getNumOverBudget() {
+        return _numOverBudget.get();
+    }
+
+    private RetryBudget getHostBudget(String hostKey) {
+        RetryBudget budget = _hostBudgets.get(hostKey);
+        if (budget == null) {
+            budget = new RetryBudget(_hostBudgetMaxTokens);
+            _hostBudgets.put(hostKey, budget);
+        }
+
+        return budget;
+    }
+}
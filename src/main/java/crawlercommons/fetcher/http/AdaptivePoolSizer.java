@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the max number of connections for each route (host) of a
+ * connection pool at runtime, based on how the host is responding.
+ *
+ * The fetcher reports the outcome of every request via
+ * {@link #onSuccess(HttpRoute, long)} and {@link #onFailure(HttpRoute)}. At
+ * most once per adjust interval, each route's limit is re-evaluated:
+ * <ul>
+ * <li>If the error rate is above the max error rate, or the (smoothed)
+ * response latency has grown well beyond the lowest latency seen for the
+ * route, the limit is halved.</li>
+ * <li>Otherwise, if requests are queued up waiting for a connection to the
+ * route, the limit is increased by one.</li>
+ * </ul>
+ * Limits always stay between the min and max connections per route. This
+ * raises throughput for hosts that handle it well, while backing off quickly
+ * from hosts that are struggling.
+ *
+ * State is kept for at most <code>maxRoutes</code> routes; when the least
+ * recently used route is dropped, its limit reverts to the pool's default.
+ */
+public class AdaptivePoolSizer {
+    private static Logger LOGGER = LoggerFactory.getLogger(AdaptivePoolSizer.class);
+
+    public static final long DEFAULT_ADJUST_INTERVAL = 5 * 1000L;
+    public static final double DEFAULT_MAX_ERROR_RATE = 0.1;
+    public static final double DEFAULT_LATENCY_FACTOR = 2.0;
+    public static final long DEFAULT_MIN_LATENCY_INCREASE = 100L;
+    public static final int DEFAULT_MAX_ROUTES = 10000;
+
+    // Weight of the newest sample in the latency moving average.
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    // How fast the base latency follows the current latency upwards, per
+    // adjustment, so a host that's permanently slower isn't stuck at the min.
+    private static final double BASE_LATENCY_DRIFT = 0.05;
+
+    private static class RouteState {
+        private int _maxConnections;
+        private double _latency = -1;
+        private double _baseLatency = -1;
+        private int _numSuccesses = 0;
+        private int _numFailures = 0;
+        private long _lastAdjustTime;
+
+        public RouteState(int maxConnections, long now) {
+            _maxConnections = maxConnections;
+            _lastAdjustTime = now;
+        }
+    }
+
+    private final ConnPoolControl<HttpRoute> _pool;
+    private final int _minPerRoute;
+    private final int _maxPerRoute;
+    private final int _initialPerRoute;
+    private final Map<HttpRoute, RouteState> _routes;
+
+    private volatile long _adjustInterval = DEFAULT_ADJUST_INTERVAL;
+    private volatile double _maxErrorRate = DEFAULT_MAX_ERROR_RATE;
+    private volatile double _latencyFactor = DEFAULT_LATENCY_FACTOR;
+    private volatile long _minLatencyIncrease = DEFAULT_MIN_LATENCY_INCREASE;
+    private volatile int _maxRoutes = DEFAULT_MAX_ROUTES;
+
+    private final AtomicLong _numIncreases = new AtomicLong();
+    private final AtomicLong _numDecreases = new AtomicLong();
+
+    /**
+     * @param pool connection pool whose per-route limits are adjusted
+     * @param initialPerRoute limit for routes that haven't been adjusted yet
+     * @param minPerRoute lowest limit for any route
+     * @param maxPerRoute highest limit for any route
+     */
+    @SuppressWarnings("serial")
+    public AdaptivePoolSizer(ConnPoolControl<HttpRoute> pool, int initialPerRoute, int minPerRoute, int maxPerRoute) {
+        if ((minPerRoute < 1) || (maxPerRoute < minPerRoute)) {
+            throw new IllegalArgumentException("Invalid connections per route range: " + minPerRoute + " to " + maxPerRoute);
+        }
+
+        _pool = pool;
+        _minPerRoute = minPerRoute;
+        _maxPerRoute = maxPerRoute;
+        _initialPerRoute = Math.max(minPerRoute, Math.min(maxPerRoute, initialPerRoute));
+        _routes = new LinkedHashMap<HttpRoute, RouteState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HttpRoute, RouteState> eldest) {
+                if (size() > _maxRoutes) {
+                    _pool.setMaxPerRoute(eldest.getKey(), -1);
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public int getMinPerRoute() {
+        return _minPerRoute;
+    }
+
+    public int getMaxPerRoute() {
+        return _maxPerRoute;
+    }
+
+    /**
+     * Set the min time between adjustments of a route's limit, which should
+     * be long enough to see the effect of the previous adjustment.
+     *
+     * @param adjustInterval interval in milliseconds
+     */
+    public void setAdjustInterval(long adjustInterval) {
+        _adjustInterval = adjustInterval;
+    }
+
+    public long getAdjustInterval() {
+        return _adjustInterval;
+    }
+
+    /**
+     * @param maxErrorRate fraction of failed requests (0.0 - 1.0) above
+     *        which a route's limit is lowered
+     */
+    public void setMaxErrorRate(double maxErrorRate) {
+        _maxErrorRate = maxErrorRate;
+    }
+
+    public double getMaxErrorRate() {
+        return _maxErrorRate;
+    }
+
+    /**
+     * Set how much a route's latency can grow, relative to the lowest latency
+     * seen for it, before its limit is lowered. The increase also has to be
+     * more than the min latency increase, so that small changes for fast
+     * hosts are ignored.
+     *
+     * @param latencyFactor ratio of current to base latency
+     * @param minLatencyIncrease min increase in milliseconds
+     */
+    public void setLatencyThreshold(double latencyFactor, long minLatencyIncrease) {
+        _latencyFactor = latencyFactor;
+        _minLatencyIncrease = minLatencyIncrease;
+    }
+
+    public double getLatencyFactor() {
+        return _latencyFactor;
+    }
+
+    public long getMinLatencyIncrease() {
+        return _minLatencyIncrease;
+    }
+
+    public void setMaxRoutes(int maxRoutes) {
+        _maxRoutes = maxRoutes;
+    }
+
+    public int getMaxRoutes() {
+        return _maxRoutes;
+    }
+
+    /**
+     * Record a request that got a response.
+     *
+     * @param route route the request was sent over
+     * @param latency time in milliseconds until the response headers arrived
+     */
+    public void onSuccess(HttpRoute route, long latency) {
+        RouteState state = getState(route);
+        synchronized (state) {
+            state._numSuccesses += 1;
+            if (state._latency < 0) {
+                state._latency = latency;
+            } else {
+                state._latency += LATENCY_WEIGHT * (latency - state._latency);
+            }
+
+            if ((state._baseLatency < 0) || (state._latency < state._baseLatency)) {
+                state._baseLatency = state._latency;
+            }
+
+            adjust(route, state);
+        }
+    }
+
+    /**
+     * Record a request that failed with an I/O error (including timeouts),
+     * or got a response that indicates the server is overloaded.
+     *
+     * @param route route the request was sent over
+     */
+    public void onFailure(HttpRoute route) {
+        RouteState state = getState(route);
+        synchronized (state) {
+            state._numFailures += 1;
+            adjust(route, state);
+        }
+    }
+
+    /**
+     * @param route route to check
+     * @return current max number of connections for the route
+     */
+    public int getMaxPerRoute(HttpRoute route) {
+        RouteState state;
+        synchronized (_routes) {
+            state = _routes.get(route);
+        }
+
+        if (state == null) {
+            return _initialPerRoute;
+        }
+
+        synchronized (state) {
+            return state._maxConnections;
+        }
+    }
+
+    /**
+     * @return number of routes being tracked
+     */
+    public int getNumRoutes() {
+        synchronized (_routes) {
+            return _routes.size();
+        }
+    }
+
+    /**
+     * @return number of times any route's limit was raised
+     */
+    public long getNumIncreases() {
+        return _numIncreases.get();
+    }
+
+    /**
+     * @return number of times any route's limit was lowered
+     */
+    public long getNumDecreases() {
+        return _numDecreases.get();
+    }
+
+    private RouteState getState(HttpRoute route) {
+        synchronized (_routes) {
+            RouteState state = _routes.get(route);
+            if (state == null) {
+                state = new RouteState(_initialPerRoute, System.currentTimeMillis());
+                _routes.put(route, state);
+                if (_initialPerRoute != _pool.getDefaultMaxPerRoute()) {
+                    _pool.setMaxPerRoute(route, _initialPerRoute);
+                }
+            }
+
+            return state;
+        }
+    }
+
+    // Must be called while synchronized on state.
+    private void adjust(HttpRoute route, RouteState state) {
+        long now = System.currentTimeMillis();
+        if (now - state._lastAdjustTime < _adjustInterval) {
+            return;
+        }
+
+        int numRequests = state._numSuccesses + state._numFailures;
+        boolean tooManyErrors = state._numFailures > (numRequests * _maxErrorRate);
+        boolean tooSlow = (state._latency > (state._baseLatency * _latencyFactor)) && (state._latency - state._baseLatency > _minLatencyIncrease);
+
+        int maxConnections = state._maxConnections;
+        if (tooManyErrors || tooSlow) {
+            maxConnections = Math.max(_minPerRoute, maxConnections / 2);
+        } else if ((maxConnections < _maxPerRoute) && (_pool.getStats(route).getPending() > 0)) {
+            maxConnections += 1;
+        }
+
+        if (state._latency > state._baseLatency) {
+            state._baseLatency += BASE_LATENCY_DRIFT * (state._latency - state._baseLatency);
+        }
+
+        state._numSuccesses = 0;
+        state._numFailures = 0;
+        state._lastAdjustTime = now;
+
+        if (maxConnections != state._maxConnections) {
+            LOGGER.debug("Changing max connections for {} from {} to {}", route, state._maxConnections, maxConnections);
+            if (maxConnections > state._maxConnections) {
+                _numIncreases.incrementAndGet();
+            } else {
+                _numDecreases.incrementAndGet();
+            }
+
+            state._maxConnections = maxConnections;
+            _pool.setMaxPerRoute(route, maxConnections);
+        }
+    }
+}
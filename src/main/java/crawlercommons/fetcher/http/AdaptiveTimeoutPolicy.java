@@ -0,0 +1,316 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-host connect and socket timeouts, derived from the latencies seen for
+ * each host, so that a stalled request to a fast host is given up on long
+ * before the global timeouts (which have to allow for the slowest hosts).
+ *
+ * For every host a compact histogram is kept of the connect time (including
+ * the TLS handshake) and the time to first byte (from sending the request
+ * to getting the response headers). A request's connect timeout is the
+ * connect time at the configured percentile times the multiplier, and its
+ * socket timeout is derived in the same way from the time to first byte.
+ * Both are kept between their min and max bounds. Until a host has at least
+ * <code>minSamples</code> samples, the fetcher's own timeouts are used.
+ *
+ * Histograms use buckets that grow by a factor of 2^(1/4) (about 19%), so
+ * percentiles are rounded up by at most that much. Once a histogram has
+ * <code>maxSamples</code> samples all counts are halved, so older samples
+ * gradually lose weight. State is kept for at most <code>maxHosts</code>
+ * hosts, dropping the least recently used.
+ *
+ * One policy can be shared by several fetchers.
+ */
+public class AdaptiveTimeoutPolicy {
+
+    public static final double DEFAULT_PERCENTILE = 0.99;
+    public static final double DEFAULT_MULTIPLIER = 3.0;
+    public static final int DEFAULT_MIN_SAMPLES = 10;
+    public static final int DEFAULT_MAX_SAMPLES = 1000;
+    public static final int DEFAULT_MAX_HOSTS = 10000;
+
+    public static final int DEFAULT_MIN_CONNECT_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_CONNECT_TIMEOUT = 30 * 1000;
+    public static final int DEFAULT_MIN_SOCKET_TIMEOUT = 2000;
+    public static final int DEFAULT_MAX_SOCKET_TIMEOUT = 60 * 1000;
+
+    // Buckets per doubling of latency, and enough buckets to cover 2^17ms
+    // (a bit over two minutes). Anything slower goes in the last bucket.
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int NUM_BUCKETS = 17 * BUCKETS_PER_DOUBLING + 1;
+
+    /**
+     * Log-scale histogram of latencies in milliseconds.
+     */
+    static class MyHistogram {
+        private final int[] _counts = new int[NUM_BUCKETS];
+        private int _total = 0;
+
+        public void add(long latency, int maxSamples) {
+            if (_total >= maxSamples) {
+                _total = 0;
+                for (int i = 0; i < _counts.length; i++) {
+                    _counts[i] >>= 1;
+                    _total += _counts[i];
+                }
+            }
+
+            _counts[getBucket(latency)] += 1;
+            _total += 1;
+        }
+
+        public int getTotal() {
+            return _total;
+        }
+
+        /**
+         * @param percentile fraction (0 to 1) of samples
+         * @return latency that at least <code>percentile</code> of the
+         *         samples are at or below, rounded up to the bucket's upper
+         *         bound
+         */
+        public long getPercentile(double percentile) {
+            long target = (long) Math.ceil(percentile * _total);
+            long count = 0;
+            for (int i = 0; i < _counts.length; i++) {
+                count += _counts[i];
+                if ((count >= target) && (count > 0)) {
+                    return getUpperBound(i);
+                }
+            }
+
+            return getUpperBound(_counts.length - 1);
+        }
+
+        static int getBucket(long latency) {
+            if (latency <= 1) {
+                return 0;
+            }
+
+            int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING * Math.log(latency) / Math.log(2));
+            return Math.min(bucket, NUM_BUCKETS - 1);
+        }
+
+        static long getUpperBound(int bucket) {
+            return (long) Math.ceil(Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING));
+        }
+    }
+
+    private static class HostState {
+        private final MyHistogram _connectTimes = new MyHistogram();
+        private final MyHistogram _firstByteTimes = new MyHistogram();
+    }
+
+    private final Map<String, HostState> _hosts;
+
+    private volatile double _percentile = DEFAULT_PERCENTILE;
+    private volatile double _multiplier = DEFAULT_MULTIPLIER;
+    private volatile int _minSamples = DEFAULT_MIN_SAMPLES;
+    private volatile int _maxSamples = DEFAULT_MAX_SAMPLES;
+    private volatile int _maxHosts = DEFAULT_MAX_HOSTS;
+    private volatile int _minConnectTimeout = DEFAULT_MIN_CONNECT_TIMEOUT;
+    private volatile int _maxConnectTimeout = DEFAULT_MAX_CONNECT_TIMEOUT;
+    private volatile int _minSocketTimeout = DEFAULT_MIN_SOCKET_TIMEOUT;
+    private volatile int _maxSocketTimeout = DEFAULT_MAX_SOCKET_TIMEOUT;
+
+    @SuppressWarnings("serial")
+    public AdaptiveTimeoutPolicy() {
+        _hosts = new LinkedHashMap<String, HostState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HostState> eldest) {
+                return size() > _maxHosts;
+            }
+        };
+    }
+
+    /**
+     * @param percentile fraction (0 to 1) of observed latencies that the
+     *        timeouts are based on
+     * @param multiplier factor applied to the latency at that percentile
+     */
+    public void setPercentile(double percentile, double multiplier) {
+        if ((percentile <= 0.0) || (percentile > 1.0)) {
+            throw new IllegalArgumentException("Percentile must be > 0 and <= 1: " + percentile);
+        }
+
+        if (multiplier < 1.0) {
+            throw new IllegalArgumentException("Multiplier must be at least 1: " + multiplier);
+        }
+
+        _percentile = percentile;
+        _multiplier = multiplier;
+    }
+
+    public double getPercentile() {
+        return _percentile;
+    }
+
+    public double getMultiplier() {
+        return _multiplier;
+    }
+
+    /**
+     * @param minSamples number of samples needed for a host before its
+     *        timeouts are adjusted
+     * @param maxSamples number of samples at which older samples start to
+     *        lose weight
+     */
+    public void setSamples(int minSamples, int maxSamples) {
+        if ((minSamples < 1) || (maxSamples < minSamples)) {
+            throw new IllegalArgumentException("Invalid samples range: " + minSamples + " to " + maxSamples);
+        }
+
+        _minSamples = minSamples;
+        _maxSamples = maxSamples;
+    }
+
+    /**
+     * @param minTimeout lowest connect timeout in milliseconds
+     * @param maxTimeout highest connect timeout in milliseconds
+     */
+    public void setConnectTimeoutBounds(int minTimeout, int maxTimeout) {
+        if ((minTimeout < 1) || (maxTimeout < minTimeout)) {
+            throw new IllegalArgumentException("Invalid connect timeout range: " + minTimeout + " to " + maxTimeout);
+        }
+
+        _minConnectTimeout = minTimeout;
+        _maxConnectTimeout = maxTimeout;
+    }
+
+    /**
+     * @param minTimeout lowest socket timeout in milliseconds
+     * @param maxTimeout highest socket timeout in milliseconds
+     */
+    public void setSocketTimeoutBounds(int minTimeout, int maxTimeout) {
+        if ((minTimeout < 1) || (maxTimeout < minTimeout)) {
+            throw new IllegalArgumentException("Invalid socket timeout range: " + minTimeout + " to " + maxTimeout);
+        }
+
+        _minSocketTimeout = minTimeout;
+        _maxSocketTimeout = maxTimeout;
+    }
+
+    /**
+     * @param maxHosts max number of hosts to keep histograms for
+     */
+    public void setMaxHosts(int maxHosts) {
+        _maxHosts = maxHosts;
+    }
+
+    /**
+     * @param host host that a new connection was opened to
+     * @param connectTime time in milliseconds it took to connect
+     */
+    public void recordConnectTime(String host, long connectTime) {
+        synchronized (_hosts) {
+            getHostState(host)._connectTimes.add(connectTime, _maxSamples);
+        }
+    }
+
+    /**
+     * @param host host that a response was received from
+     * @param firstByteTime time in milliseconds from sending the request to
+     *        getting the response headers
+     */
+    public void recordFirstByteTime(String host, long firstByteTime) {
+        synchronized (_hosts) {
+            getHostState(host)._firstByteTimes.add(firstByteTime, _maxSamples);
+        }
+    }
+
+    /**
+     * @param host host that's about to be fetched from
+     * @param defaultTimeout timeout to use if there aren't enough samples
+     * @return connect timeout in milliseconds
+     */
+    public int getConnectTimeout(String host, int defaultTimeout) {
+        synchronized (_hosts) {
+            HostState state = _hosts.get(host);
+            if (state == null) {
+                return defaultTimeout;
+            }
+
+            return getTimeout(state._connectTimes, defaultTimeout, _minConnectTimeout, _maxConnectTimeout);
+        }
+    }
+
+    /**
+     * @param host host that's about to be fetched from
+     * @param defaultTimeout timeout to use if there aren't enough samples
+     * @return socket timeout in milliseconds
+     */
+    public int getSocketTimeout(String host, int defaultTimeout) {
+        synchronized (_hosts) {
+            HostState state = _hosts.get(host);
+            if (state == null) {
+                return defaultTimeout;
+            }
+
+            return getTimeout(state._firstByteTimes, defaultTimeout, _minSocketTimeout, _maxSocketTimeout);
+        }
+    }
+
+    /**
+     * @param host host to check
+     * @param percentile fraction (0 to 1) of samples
+     * @return time to first byte in milliseconds at <code>percentile</code>
+     *         for the host, or -1 if there aren't enough samples
+     */
+    public long getFirstByteTime(String host, double percentile) {
+        synchronized (_hosts) {
+            HostState state = _hosts.get(host);
+            if ((state == null) || (state._firstByteTimes.getTotal() < _minSamples)) {
+                return -1;
+            }
+
+            return state._firstByteTimes.getPercentile(percentile);
+        }
+    }
+
+    /**
+     * @return number of hosts with histograms
+     */
+    public int getNumHosts() {
+        synchronized (_hosts) {
+            return _hosts.size();
+        }
+    }
+
+    private HostState getHostState(String host) {
+        HostState state = _hosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            _hosts.put(host, state);
+        }
+
+        return state;
+    }
+
+    private int getTimeout(MyHistogram histogram, int defaultTimeout, int minTimeout, int maxTimeout) {
+        if (histogram.getTotal() < _minSamples) {
+            return defaultTimeout;
+        }
+
+        long timeout = (long) Math.ceil(histogram.getPercentile(_percentile) * _multiplier);
+        return (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+}
@@ -0,0 +1,659 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.RedirectException;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.fetcher.AbortedFetchException;
+import crawlercommons.fetcher.AbortedFetchReason;
+import crawlercommons.fetcher.BaseFetchException;
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.fetcher.IOFetchException;
+import crawlercommons.fetcher.Payload;
+import crawlercommons.fetcher.RedirectFetchException;
+import crawlercommons.fetcher.RedirectFetchException.RedirectExceptionReason;
+import crawlercommons.fetcher.UrlFetchException;
+import crawlercommons.fetcher.http.SimpleHttpFetcher.MyRedirectException;
+import crawlercommons.fetcher.http.SimpleHttpFetcher.MyRedirectStrategy;
+import crawlercommons.util.Headers;
+
+/**
+ * Fetcher that uses an event-driven (NIO) engine, so that a small number of
+ * I/O dispatch threads can drive a large number of concurrent fetches. Use
+ * {@link #fetchAsync(String, Payload)} to start a fetch without blocking; the
+ * blocking {@link #get(String, Payload)} just waits on the result.
+ *
+ * The redirect mode, mime-type filtering, max content size, min response rate
+ * and fetch duration settings have the same meaning as for
+ * {@link SimpleHttpFetcher}. The <code>maxThreads</code> value is used as the
+ * limit on the total number of open connections, since fetches don't tie up a
+ * thread here.
+ *
+ * Fetchers should be closed when no longer needed, so that the I/O dispatch
+ * threads are stopped.
+ */
+@SuppressWarnings("serial")
+public class AsyncHttpFetcher extends BaseHttpFetcher implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(AsyncHttpFetcher.class);
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    private int _socketTimeout;
+    private int _connectionTimeout;
+    private int _connectionRequestTimeout;
+    private int _ioThreadCount;
+
+    private CookieStoreProvider cookieStoreProvider = new SharedCookieStoreProvider();
+
+    transient private DnsResolver _dnsResolver;
+
+    transient private volatile CloseableHttpAsyncClient _httpClient;
+    transient private PoolingNHttpClientConnectionManager _connectionManager;
+    // Requests currently being processed, mapped to the url being fetched, so
+    // that they can be aborted.
+    transient private Map<Future<FetchedResult>, String> _inFlight;
+
+    /**
+     * Request producer that records when the request was actually sent, so
+     * that time spent waiting for a pooled connection doesn't count against
+     * the fetch duration or response rate.
+     */
+    private static class TimedRequestProducer extends BasicAsyncRequestProducer {
+
+        private volatile long _requestTime = 0;
+
+        public TimedRequestProducer(HttpHost target, HttpRequest request) {
+            super(target, request);
+        }
+
+        @Override
+        public HttpRequest generateRequest() {
+            if (_requestTime == 0) {
+                _requestTime = System.currentTimeMillis();
+            }
+
+            return super.generateRequest();
+        }
+
+        public long getRequestTime() {
+            return _requestTime;
+        }
+    }
+
+    /**
+     * Consumes the (final) response for one fetch, applying the same
+     * mime-type, content size, response rate and duration checks as
+     * {@link SimpleHttpFetcher}.
+     */
+    private class FetchConsumer extends AbstractAsyncResponseConsumer<FetchedResult> {
+
+        private final String _url;
+        private final Payload _payload;
+        private final HttpContext _context;
+        private final TimedRequestProducer _producer;
+        private final CompletableFuture<FetchedResult> _future;
+
+        private final Headers _headerMap = new Headers();
+        private final ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteArrayOutputStream _out = null;
+
+        private int _statusCode;
+        private String _reasonPhrase;
+        private String _contentType = "";
+        private String _mimeType = "";
+        private String _redirectedUrl;
+        private String _newBaseUrl;
+        private int _numRedirects = 0;
+        private String _hostAddress;
+
+        private int _targetLength;
+        private boolean _truncated = false;
+        private int _totalRead = 0;
+        private int _readRequests = 0;
+        private long _readRate = 0;
+
+        // Set when we bail out of a fetch, so that we can report why.
+        private volatile BaseFetchException _fetchException = null;
+
+        public FetchConsumer(String url, Payload payload, HttpContext context, TimedRequestProducer producer, CompletableFuture<FetchedResult> future) {
+            _url = url;
+            _payload = payload;
+            _context = context;
+            _producer = producer;
+            _future = future;
+        }
+
+        public BaseFetchException getFetchException() {
+            return _fetchException;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+            for (Header header : response.getAllHeaders()) {
+                _headerMap.add(header.getName(), header.getValue());
+            }
+
+            _statusCode = response.getStatusLine().getStatusCode();
+            _reasonPhrase = response.getStatusLine().getReasonPhrase();
+            _redirectedUrl = SimpleHttpFetcher.extractRedirectedUrl(_url, _context);
+
+            URI permRedirectUri = (URI) _context.getAttribute(SimpleHttpFetcher.PERM_REDIRECT_CONTEXT_KEY);
+            if (permRedirectUri != null) {
+                _newBaseUrl = permRedirectUri.toURL().toExternalForm();
+            }
+
+            Integer redirects = (Integer) _context.getAttribute(SimpleHttpFetcher.REDIRECT_COUNT_CONTEXT_KEY);
+            if (redirects != null) {
+                _numRedirects = redirects.intValue();
+            }
+
+            Object conn = _context.getAttribute(HttpCoreContext.HTTP_CONNECTION);
+            if (conn instanceof HttpInetConnection) {
+                _hostAddress = ((HttpInetConnection) conn).getRemoteAddress().getHostAddress();
+            }
+
+            if (_hostAddress == null) {
+                abortFetch(new UrlFetchException(_url, "Host address not saved in context"));
+            }
+
+            Header cth = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+            if (cth != null) {
+                _contentType = cth.getValue();
+            }
+
+            _mimeType = getMimeTypeFromContentType(_contentType);
+            try {
+                checkMimeType(_url, _mimeType);
+            } catch (AbortedFetchException e) {
+                abortFetch(e);
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+            // Figure out how much data we want to try to fetch.
+            _targetLength = getMaxContentSize(_mimeType);
+            long contentLength = entity.getContentLength();
+            if (contentLength > _targetLength) {
+                _truncated = true;
+            } else if (contentLength >= 0) {
+                _targetLength = (int) contentLength;
+            }
+
+            _out = new ByteArrayOutputStream(Math.min(_targetLength, DEFAULT_BYTEARRAY_SIZE));
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            int minResponseRate = getMinResponseRate();
+            long fetchDurationTimeout = getFetchDurationTimeoutInSeconds() * 1000L;
+            long readStartTime = _producer.getRequestTime();
+
+            int bytesRead;
+            while ((bytesRead = decoder.read(_buffer)) > 0) {
+                int bytesToKeep = Math.min(bytesRead, _targetLength - _totalRead);
+                _out.write(_buffer.array(), 0, bytesToKeep);
+                _buffer.clear();
+
+                _readRequests += 1;
+                _totalRead += bytesToKeep;
+
+                // Assume read time is at least one millisecond, to avoid
+                // DBZ exception.
+                long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
+                if (totalReadTime > fetchDurationTimeout) {
+                    abortFetch(new AbortedFetchException(_url, "Fetch duration of " + getFetchDurationTimeoutInSeconds() + " sec exceeded", AbortedFetchReason.FETCH_DURATION_EXCEEDED));
+                }
+                _readRate = (_totalRead * 1000L) / totalReadTime;
+
+                // Don't bail on the first read cycle, as we can get a hiccup
+                // starting out. Also don't bail if we've read everything we
+                // need.
+                if ((_readRequests > 1) && (_totalRead < _targetLength) && (_readRate < minResponseRate)) {
+                    abortFetch(new AbortedFetchException(_url, "Slow response rate of " + _readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE));
+                }
+
+                if ((_totalRead >= _targetLength) && !decoder.isCompleted()) {
+                    // We've got all we want, so complete the fetch now and
+                    // drop the connection rather than draining the rest of
+                    // the response.
+                    try {
+                        _future.complete(buildResult(_context));
+                    } catch (BaseFetchException e) {
+                        _future.completeExceptionally(e);
+                    }
+
+                    ioctrl.shutdown();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected FetchedResult buildResult(HttpContext context) throws BaseFetchException {
+            byte[] content = (_out == null) ? new byte[0] : _out.toByteArray();
+
+            // Toss truncated image content, and uncompress the content if
+            // needed.
+            String contentEncoding = _headerMap.get(HttpHeaders.CONTENT_ENCODING);
+            content = processContent(_url, content, _mimeType, contentEncoding, getMaxContentSize(_mimeType), _truncated, _decodeContent);
+
+            return new FetchedResult(_url, _redirectedUrl, System.currentTimeMillis(), _headerMap, content, _contentType, (int) _readRate, _payload, _newBaseUrl, _numRedirects, _hostAddress,
+                            _statusCode, _reasonPhrase);
+        }
+
+        @Override
+        protected void releaseResources() {
+            _out = null;
+        }
+
+        private void abortFetch(BaseFetchException e) throws IOException {
+            _fetchException = e;
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    public AsyncHttpFetcher(int maxConnections, UserAgent userAgent) {
+        super(maxConnections, userAgent);
+
+        _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+        _ioThreadCount = Runtime.getRuntime().availableProcessors();
+
+        // Just to be explicit, we rely on lazy initialization of this so that
+        // we don't have to worry about serializing it.
+        _httpClient = null;
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        if (_httpClient == null) {
+            _socketTimeout = socketTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change socket timeout after HttpClient has been initialized");
+        }
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_httpClient == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after HttpClient has been initialized");
+        }
+    }
+
+    public int getConnectionRequestTimeout() {
+        return _connectionRequestTimeout;
+    }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeoutInMs) {
+        if (_httpClient == null) {
+            _connectionRequestTimeout = connectionRequestTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection request timeout after HttpClient has been initialized");
+        }
+    }
+
+    public int getIoThreadCount() {
+        return _ioThreadCount;
+    }
+
+    /**
+     * Set the number of I/O dispatch threads. Defaults to the number of
+     * available processors.
+     *
+     * @param ioThreadCount number of I/O dispatch threads
+     */
+    public void setIoThreadCount(int ioThreadCount) {
+        if (_httpClient == null) {
+            _ioThreadCount = ioThreadCount;
+        } else {
+            throw new IllegalStateException("Can't change I/O thread count after HttpClient has been initialized");
+        }
+    }
+
+    public void setCookieStoreProvider(CookieStoreProvider cookieStoreProvider) {
+        this.cookieStoreProvider = cookieStoreProvider;
+    }
+
+    public CookieStoreProvider getCookieStoreProvider() {
+        return cookieStoreProvider;
+    }
+
+    /**
+     * Set the resolver used to look up host names for new connections, e.g.
+     * a {@link CachingDnsResolver}. By default the system resolver is used.
+     *
+     * @param dnsResolver resolver for host names
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (_httpClient == null) {
+            _dnsResolver = dnsResolver;
+        } else {
+            throw new IllegalStateException("Can't change DNS resolver after HttpClient has been initialized");
+        }
+    }
+
+    public DnsResolver getDnsResolver() {
+        return _dnsResolver;
+    }
+
+    @Override
+    public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+        try {
+            return fetchAsync(url, payload).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BaseFetchException) {
+                throw (BaseFetchException) e.getCause();
+            }
+
+            throw new IOFetchException(url, new IOException(e.getCause()));
+        }
+    }
+
+    /**
+     * Start fetching the content stored in the resource referenced by the
+     * 'url' parameter, without blocking the calling thread.
+     *
+     * The returned future completes with the
+     * {@link crawlercommons.fetcher.FetchedResult}, or exceptionally with a
+     * {@link crawlercommons.fetcher.BaseFetchException}. Cancelling the future
+     * aborts the request.
+     *
+     * @param url a string url for which to get content
+     * @param payload a populated {@link crawlercommons.fetcher.Payload}
+     * @return future for the result of the fetch
+     */
+    public CompletableFuture<FetchedResult> fetchAsync(String url, Payload payload) {
+        final CompletableFuture<FetchedResult> result = new CompletableFuture<>();
+
+        try {
+            checkUrl(url);
+            init();
+        } catch (BaseFetchException e) {
+            result.completeExceptionally(e);
+            return result;
+        } catch (IOException e) {
+            result.completeExceptionally(new IOFetchException(url, e));
+            return result;
+        }
+
+        LOGGER.trace("Fetching " + url);
+
+        HttpGet request;
+        HttpHost target;
+        try {
+            request = new HttpGet(new URI(url));
+            target = URIUtils.extractHost(request.getURI());
+        } catch (URISyntaxException e) {
+            result.completeExceptionally(new UrlFetchException(url, e.getMessage()));
+            return result;
+        }
+
+        if (target == null) {
+            result.completeExceptionally(new UrlFetchException(url, "No target host in url"));
+            return result;
+        }
+
+        HttpClientContext localContext = HttpClientContext.create();
+        localContext.setCookieStore(cookieStoreProvider.get());
+
+        TimedRequestProducer producer = new TimedRequestProducer(target, request);
+        final FetchConsumer consumer = new FetchConsumer(url, payload, localContext, producer, result);
+        final Future<FetchedResult> requestFuture = _httpClient.execute(producer, consumer, localContext, new FutureCallback<FetchedResult>() {
+
+            @Override
+            public void completed(FetchedResult fetchedResult) {
+                result.complete(fetchedResult);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                BaseFetchException fetchException = consumer.getFetchException();
+                if (fetchException == null) {
+                    fetchException = mapException(url, e);
+                }
+
+                if (result.completeExceptionally(fetchException)) {
+                    if ((fetchException instanceof AbortedFetchException)
+                                    && (((AbortedFetchException) fetchException).getAbortReason() == AbortedFetchReason.INVALID_MIMETYPE)) {
+                        // Don't bother reporting that we bailed because the
+                        // mime-type wasn't one that we wanted.
+                    } else {
+                        LOGGER.debug("Exception fetching {} {}", url, fetchException.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                result.completeExceptionally(new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED));
+            }
+        });
+
+        _inFlight.put(requestFuture, url);
+        result.whenComplete((r, t) -> {
+            _inFlight.remove(requestFuture);
+            if (result.isCancelled()) {
+                requestFuture.cancel(true);
+            }
+        });
+
+        return result;
+    }
+
+    private static BaseFetchException mapException(String url, Exception e) {
+        if (e instanceof BaseFetchException) {
+            return (BaseFetchException) e;
+        } else if (e instanceof MyRedirectException) {
+            MyRedirectException mre = (MyRedirectException) e;
+            String redirectUrl = url;
+
+            try {
+                redirectUrl = mre.getUri().toURL().toExternalForm();
+            } catch (MalformedURLException e2) {
+                LOGGER.warn("Invalid URI saved during redirect handling: " + mre.getUri());
+            }
+
+            return new RedirectFetchException(url, redirectUrl, mre.getReason());
+        } else if (e instanceof RedirectException) {
+            LOGGER.error(e.getMessage());
+            return new RedirectFetchException(url, url, RedirectExceptionReason.TOO_MANY_REDIRECTS);
+        } else if (e instanceof IOException) {
+            return new IOFetchException(url, (IOException) e);
+        } else {
+            // Map anything else to a generic IOFetchException
+            return new IOFetchException(url, new IOException(e));
+        }
+    }
+
+    private void init() throws IOException {
+        if (_httpClient == null) {
+            synchronized (this) {
+                if (_httpClient != null)
+                    return;
+
+                _inFlight = new ConcurrentHashMap<>();
+
+                IOReactorConfig ioReactorConfig = IOReactorConfig.custom() //
+                                .setIoThreadCount(_ioThreadCount) //
+                                .setSoTimeout(_socketTimeout) //
+                                .setConnectTimeout(_connectionTimeout) //
+                                .setTcpNoDelay(true) //
+                                .build();
+
+                RegistryBuilder<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create();
+                registry.register("http", NoopIOSessionStrategy.INSTANCE);
+                SharedTlsContext tlsContext = getTlsContext();
+                if (tlsContext != null) {
+                    registry.register("https", tlsContext.getIOSessionStrategy());
+                } else {
+                    LOGGER.warn("No valid SSLContext found for https");
+                }
+
+                _connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig), null, registry.build(), _dnsResolver);
+                _connectionManager.setMaxTotal(_maxThreads);
+                _connectionManager.setDefaultMaxPerRoute(getMaxConnectionsPerHost());
+                getIdleConnectionEvictor().register(_connectionManager, _maxIdleTime);
+
+                final HttpAsyncClientBuilder httpClientBuilder = HttpAsyncClientBuilder.create();
+                final RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
+
+                requestConfigBuilder.setSocketTimeout(_socketTimeout);
+                requestConfigBuilder.setConnectTimeout(_connectionTimeout);
+                requestConfigBuilder.setConnectionRequestTimeout(_connectionRequestTimeout);
+                requestConfigBuilder.setCookieSpec(CookieSpecs.DEFAULT);
+
+                if (getMaxRedirects() == 0) {
+                    requestConfigBuilder.setRedirectsEnabled(false);
+                } else {
+                    requestConfigBuilder.setRedirectsEnabled(true);
+                    requestConfigBuilder.setMaxRedirects(getMaxRedirects());
+                }
+
+                if (_proxy != null) {
+                    LOGGER.info("Configuring fetcher to use _proxy: " + _proxy.toURI());
+                    httpClientBuilder.setProxy(_proxy);
+                }
+
+                httpClientBuilder.setUserAgent(_userAgent.getUserAgentString());
+                httpClientBuilder.setConnectionManager(_connectionManager);
+                httpClientBuilder.setRedirectStrategy(new MyRedirectStrategy(getRedirectMode()));
+                httpClientBuilder.setKeepAliveStrategy(new SimpleHttpFetcher.MyConnectionKeepAliveStrategy());
+
+                // Set up default headers. This helps us get back from servers
+                // what we want.
+                HashSet<Header> defaultHeaders = new HashSet<Header>();
+                defaultHeaders.add(new BasicHeader(HttpHeaders.ACCEPT_LANGUAGE, getAcceptLanguage()));
+                defaultHeaders.add(new BasicHeader(HttpHeaders.ACCEPT_CHARSET, DEFAULT_ACCEPT_CHARSET));
+                defaultHeaders.add(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, DEFAULT_ACCEPT_ENCODING));
+                defaultHeaders.add(new BasicHeader(HttpHeaders.ACCEPT, DEFAULT_ACCEPT));
+                httpClientBuilder.setDefaultHeaders(defaultHeaders);
+
+                httpClientBuilder.setDefaultRequestConfig(requestConfigBuilder.build());
+                CloseableHttpAsyncClient httpClient = httpClientBuilder.build();
+                httpClient.start();
+                _httpClient = httpClient;
+            }
+        }
+    }
+
+    /**
+     * Abort all fetches that are currently in progress. Each one completes
+     * with an {@link AbortedFetchException} (reason
+     * {@link AbortedFetchReason#INTERRUPTED}).
+     */
+    @Override
+    public void abort() {
+        Map<Future<FetchedResult>, String> inFlight = _inFlight;
+        if (inFlight != null) {
+            for (Future<FetchedResult> requestFuture : inFlight.keySet()) {
+                requestFuture.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public boolean abort(String url) {
+        boolean aborted = false;
+        Map<Future<FetchedResult>, String> inFlight = _inFlight;
+        if (inFlight != null) {
+            for (Map.Entry<Future<FetchedResult>, String> entry : inFlight.entrySet()) {
+                if (entry.getValue().equals(url)) {
+                    entry.getKey().cancel(true);
+                    aborted = true;
+                }
+            }
+        }
+
+        return aborted;
+    }
+
+    /**
+     * Abort any in-progress fetches, and stop the I/O dispatch threads.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (_httpClient != null) {
+                abort();
+                getIdleConnectionEvictor().unregister(_connectionManager);
+                _httpClient.close();
+                _httpClient = null;
+            }
+        }
+    }
+}
@@ -15,9 +15,22 @@
  */
 package crawlercommons.fetcher.http;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+
 import org.apache.http.HttpHost;
 
+import crawlercommons.fetcher.AbortedFetchException;
+import crawlercommons.fetcher.AbortedFetchReason;
+import crawlercommons.fetcher.BadProtocolFetchException;
+import crawlercommons.fetcher.BaseFetchException;
 import crawlercommons.fetcher.BaseFetcher;
+import crawlercommons.fetcher.IOFetchException;
+import crawlercommons.fetcher.UrlFetchException;
+import crawlercommons.util.EncodingUtils;
+import crawlercommons.util.EncodingUtils.ExpandedResult;
 
 /**
  * 
@@ -41,6 +54,33 @@ public abstract class BaseHttpFetcher extends BaseFetcher {
     public static final int DEFAULT_MAX_REDIRECTS = 20;
     public static final String DEFAULT_ACCEPT_LANGUAGE = "en-us,en-gb,en;q=0.7,*;q=0.3";
     public static final RedirectMode DEFAULT_REDIRECT_MODE = RedirectMode.FOLLOW_ALL;
+    public static final long DEFAULT_MAX_IDLE_TIME = 30 * 1000L;
+
+    // We tried 10 seconds for all of these, but got a number of connection/read
+    // timeouts for
+    // sites that would have eventually worked, so bumping it up to 30 seconds.
+    protected static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+
+    // As of HttpComponents v.4.2.1, this will also include timeout needed to
+    // get Connection from Pool.
+    // From initial comment of the deprecated 'CONNECTION_POOL_TIMEOUT' static
+    // element:
+    // "This normally doesn't ever hit this timeout, since we manage the number
+    // of
+    // fetcher threads to be <= the maxThreads value used to configure a
+    // HttpFetcher. However the limit of connections/host can cause a timeout,
+    // when redirects cause multiple threads to hit the same domain.
+    // We therefore jack this right up."
+    protected static final int DEFAULT_CONNECTION_TIMEOUT = 100 * 1000;
+
+    // Use the same values as Firefox (except that we don't accept deflate,
+    // which we're not sure is implemented correctly - see the notes in
+    // EncodingUtils/EncodingUtilsTest for more details).
+    protected static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+    protected static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+    protected static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+
+    private static final String TEXT_MIME_TYPES[] = { "text/html", "application/x-asp", "application/xhtml+xml", "application/vnd.wap.xhtml+xml", };
 
     protected int _maxThreads;
     protected UserAgent _userAgent;
@@ -51,6 +91,10 @@ public abstract class BaseHttpFetcher extends BaseFetcher {
     protected String _acceptLanguage = DEFAULT_ACCEPT_LANGUAGE;
     protected RedirectMode _redirectMode = DEFAULT_REDIRECT_MODE;
     protected HttpHost _proxy = null;
+    protected boolean _decodeContent = true;
+    protected long _maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    transient protected IdleConnectionEvictor _idleConnectionEvictor = null;
+    transient protected SharedTlsContext _tlsContext = null;
 
     public BaseHttpFetcher(int maxThreads, UserAgent userAgent) {
         super();
@@ -130,4 +174,177 @@ public abstract class BaseHttpFetcher extends BaseFetcher {
         return _proxy;
     }
 
+    /**
+     * Set whether compressed content is expanded by the fetcher. If not, the
+     * content is returned as received (along with its Content-Encoding
+     * header), so that it can be decoded later, e.g. by a {@link DecodeStage}
+     * in a {@link crawlercommons.fetcher.FetchPipeline}.
+     * 
+     * @param decodeContent true (the default) to decode content
+     */
+    public void setDecodeContent(boolean decodeContent) {
+        _decodeContent = decodeContent;
+    }
+
+    public boolean isDecodeContent() {
+        return _decodeContent;
+    }
+
+    /**
+     * Set how long a pooled connection can be idle before it's closed. This
+     * only takes effect for fetchers that haven't been used yet.
+     * 
+     * @param maxIdleTime max idle time in milliseconds
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        _maxIdleTime = maxIdleTime;
+    }
+
+    public long getMaxIdleTime() {
+        return _maxIdleTime;
+    }
+
+    /**
+     * Set the evictor that closes idle pooled connections. By default the
+     * shared {@link IdleConnectionEvictor#getDefault()} is used. This only
+     * takes effect for fetchers that haven't been used yet.
+     * 
+     * @param idleConnectionEvictor evictor for idle connections
+     */
+    public void setIdleConnectionEvictor(IdleConnectionEvictor idleConnectionEvictor) {
+        _idleConnectionEvictor = idleConnectionEvictor;
+    }
+
+    public IdleConnectionEvictor getIdleConnectionEvictor() {
+        return (_idleConnectionEvictor == null) ? IdleConnectionEvictor.getDefault() : _idleConnectionEvictor;
+    }
+
+    /**
+     * Set the TLS context used for https connections, whose session cache
+     * lets connections resume earlier TLS sessions. By default the shared
+     * {@link SharedTlsContext#getDefault()} is used. This only takes effect
+     * for fetchers that haven't been used yet.
+     * 
+     * @param tlsContext context for https connections
+     */
+    public void setTlsContext(SharedTlsContext tlsContext) {
+        _tlsContext = tlsContext;
+    }
+
+    public SharedTlsContext getTlsContext() {
+        return (_tlsContext == null) ? SharedTlsContext.getDefault() : _tlsContext;
+    }
+
+    /**
+     * Verify that <code>url</code> is well-formed, and uses a protocol we can
+     * fetch (http or https).
+     * 
+     * @param url the url that is about to be fetched
+     * @throws BaseFetchException if the url can't be fetched by this fetcher
+     */
+    protected static void checkUrl(String url) throws BaseFetchException {
+        try {
+            URL realUrl = new URL(url);
+            String protocol = realUrl.getProtocol();
+            if (!protocol.equals("http") && !protocol.equals("https")) {
+                throw new BadProtocolFetchException(url);
+            }
+        } catch (MalformedURLException e) {
+            throw new UrlFetchException(url, e.getMessage());
+        }
+    }
+
+    /**
+     * Check if we should abort due to mime-type filtering. Note that this will
+     * fail if the server doesn't report a mime-type, but that's how we want it
+     * as this configuration is typically used when only a subset of parsers
+     * are installed/enabled. If you want unknown mime-types from the server to
+     * be processed, set "" as one of the valid mime-types.
+     * 
+     * @param url the url being fetched
+     * @param mimeType mime-type reported by the server (or "")
+     * @throws AbortedFetchException if the mime-type isn't a valid one
+     */
+    protected void checkMimeType(String url, String mimeType) throws AbortedFetchException {
+        Set<String> mimeTypes = getValidMimeTypes();
+        if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
+            if (!mimeTypes.contains(mimeType)) {
+                throw new AbortedFetchException(url, "Invalid mime-type: " + mimeType, AbortedFetchReason.INVALID_MIMETYPE);
+            }
+        }
+    }
+
+    protected static boolean isTextMimeType(String mimeType) {
+        for (String textContentType : TEXT_MIME_TYPES) {
+            if (textContentType.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Apply the checks that happen after the response body has been read:
+     * truncated non-text content is tossed, and gzip-encoded content is
+     * expanded (up to <code>maxContentSize</code> bytes).
+     * 
+     * @param url the url being fetched
+     * @param content raw response body, possibly truncated
+     * @param mimeType mime-type reported by the server (or "")
+     * @param contentEncoding value of the Content-Encoding header, or null
+     * @param maxContentSize max size of the (expanded) content
+     * @param truncated true if the raw body was truncated
+     * @return the (possibly expanded) content
+     * @throws BaseFetchException if the content has to be discarded
+     */
+    protected static byte[] processContent(String url, byte[] content, String mimeType, String contentEncoding, int maxContentSize, boolean truncated) throws BaseFetchException {
+        return processContent(url, content, mimeType, contentEncoding, maxContentSize, truncated, true);
+    }
+
+    /**
+     * Same as {@link #processContent(String, byte[], String, String, int, boolean)},
+     * but if <code>decode</code> is false then compressed content is only
+     * checked (truncated compressed data can't be decoded later), not
+     * expanded.
+     */
+    protected static byte[] processContent(String url, byte[] content, String mimeType, String contentEncoding, int maxContentSize, boolean truncated, boolean decode) throws BaseFetchException {
+        // Toss truncated image content.
+        if ((truncated) && (!isTextMimeType(mimeType))) {
+            throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
+        }
+
+        // Now see if we need to uncompress the content.
+        if (contentEncoding == null) {
+            return content;
+        }
+
+        // TODO KKr We might want to just decompress a truncated gzip
+        // containing text (since we have a max content size to save us
+        // from any gzip corruption).
+        try {
+            if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+                if (truncated) {
+                    throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
+                }
+
+                if (!decode) {
+                    return content;
+                }
+
+                ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, maxContentSize);
+                if ((expandedResult.isTruncated()) && (!isTextMimeType(mimeType))) {
+                    throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
+                }
+
+                return expandedResult.getExpanded();
+                // } else if ("deflate".equals(contentEncoding)) {
+                // content = EncodingUtils.processDeflateEncoded(content);
+            }
+        } catch (IOException e) {
+            throw new IOFetchException(url, e);
+        }
+
+        return content;
+    }
+
 }
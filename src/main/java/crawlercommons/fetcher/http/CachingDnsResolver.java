@@ -0,0 +1,441 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * {@link DnsResolver} that caches the results of another resolver (by default
+ * the system resolver).
+ *
+ * Successful lookups are cached for the TTL, and failed lookups (unknown
+ * hosts, and lookups that take longer than the lookup timeout) for the
+ * negative TTL, so dead domains don't cost a full lookup for every URL.
+ * Entries that are used during the last part of their TTL (the refresh-ahead
+ * period) are refreshed in the background, so busy hosts never block on a
+ * lookup. Concurrent lookups of the same host share one request to the
+ * underlying resolver.
+ *
+ * The JVM's resolver doesn't expose record TTLs, so one TTL is used for all
+ * hosts. Note that the JVM also caches lookups (see the
+ * <code>networkaddress.cache.ttl</code> security property), so for the TTLs
+ * here to take effect, the JVM cache TTL should be no longer than them.
+ *
+ * The cache holds at most <code>maxEntries</code> hosts; expired entries, and
+ * then the least recently used ones, are evicted to make room.
+ */
+public class CachingDnsResolver implements DnsResolver, Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000L;
+    public static final long DEFAULT_LOOKUP_TIMEOUT = 10 * 1000L;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    public static final int DEFAULT_NUM_THREADS = 16;
+
+    private static class CacheEntry {
+        private final CompletableFuture<InetAddress[]> _addresses;
+        private volatile long _expirationTime = Long.MAX_VALUE;
+        private volatile long _lastAccessTime;
+        private final AtomicBoolean _refreshing = new AtomicBoolean(false);
+
+        public CacheEntry(CompletableFuture<InetAddress[]> addresses, long now) {
+            _addresses = addresses;
+            _lastAccessTime = now;
+        }
+
+        public boolean isExpired(long now) {
+            return _addresses.isDone() && (now >= _expirationTime);
+        }
+    }
+
+    private final DnsResolver _resolver;
+    private final ExecutorService _executor;
+    private final Map<String, CacheEntry> _cache = new ConcurrentHashMap<>();
+
+    private volatile long _ttl = DEFAULT_TTL;
+    private volatile long _negativeTtl = DEFAULT_NEGATIVE_TTL;
+    private volatile long _refreshAhead = DEFAULT_TTL / 5;
+    private volatile long _lookupTimeout = DEFAULT_LOOKUP_TIMEOUT;
+    private volatile int _maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final AtomicLong _numHits = new AtomicLong();
+    private final AtomicLong _numNegativeHits = new AtomicLong();
+    private final AtomicLong _numMisses = new AtomicLong();
+    private final AtomicLong _numRefreshes = new AtomicLong();
+    private final AtomicLong _numTimeouts = new AtomicLong();
+
+    public CachingDnsResolver() {
+        this(SystemDefaultDnsResolver.INSTANCE, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param resolver resolver used for lookups that aren't in the cache
+     * @param numThreads number of threads used for lookups
+     */
+    public CachingDnsResolver(DnsResolver resolver, int numThreads) {
+        _resolver = resolver;
+        _executor = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("dns-resolver"));
+    }
+
+    /**
+     * Set how long successful lookups are cached. The refresh-ahead period
+     * is reset to a fifth of this.
+     *
+     * @param ttl time to live in milliseconds
+     */
+    public void setTtl(long ttl) {
+        _ttl = ttl;
+        _refreshAhead = ttl / 5;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    /**
+     * Set how long failed lookups (unknown hosts and timeouts) are cached.
+     *
+     * @param negativeTtl time to live in milliseconds
+     */
+    public void setNegativeTtl(long negativeTtl) {
+        _negativeTtl = negativeTtl;
+    }
+
+    public long getNegativeTtl() {
+        return _negativeTtl;
+    }
+
+    /**
+     * Set how long before an entry expires it is refreshed in the background,
+     * if it's used. Use 0 to disable refreshing.
+     *
+     * @param refreshAhead time in milliseconds
+     */
+    public void setRefreshAhead(long refreshAhead) {
+        _refreshAhead = refreshAhead;
+    }
+
+    public long getRefreshAhead() {
+        return _refreshAhead;
+    }
+
+    /**
+     * Set the max time to wait for the underlying resolver. Lookups that take
+     * longer fail, and are cached as unknown hosts.
+     *
+     * @param lookupTimeout timeout in milliseconds
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        _lookupTimeout = lookupTimeout;
+    }
+
+    public long getLookupTimeout() {
+        return _lookupTimeout;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        _maxEntries = maxEntries;
+    }
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        try {
+            return resolveAsync(host).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + host);
+        } catch (ExecutionException e) {
+            throw toUnknownHostException(host, e.getCause());
+        }
+    }
+
+    /**
+     * Look up <code>host</code> without blocking.
+     *
+     * @param host host name
+     * @return future that completes with the host's addresses, or
+     *         exceptionally with an {@link UnknownHostException}
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(String host) {
+        final String key = host.toLowerCase(Locale.ROOT);
+        final long now = System.currentTimeMillis();
+
+        CacheEntry entry = _cache.get(key);
+        if ((entry != null) && !entry.isExpired(now)) {
+            entry._lastAccessTime = now;
+            if (entry._addresses.isCompletedExceptionally()) {
+                _numNegativeHits.incrementAndGet();
+            } else {
+                _numHits.incrementAndGet();
+                maybeRefresh(key, entry, now);
+            }
+
+            return entry._addresses;
+        }
+
+        final AtomicBoolean added = new AtomicBoolean(false);
+        entry = _cache.compute(key, (k, oldEntry) -> {
+            if ((oldEntry != null) && !oldEntry.isExpired(now)) {
+                return oldEntry;
+            }
+
+            added.set(true);
+            return newEntry(k, now);
+        });
+
+        if (added.get()) {
+            _numMisses.incrementAndGet();
+            if (_cache.size() > _maxEntries) {
+                evict();
+            }
+        } else {
+            _numHits.incrementAndGet();
+        }
+
+        return entry._addresses;
+    }
+
+    /**
+     * Look up all of <code>hosts</code> in parallel (using the lookup
+     * threads), so that they're cached before fetching starts. Hosts that are
+     * already cached aren't looked up again.
+     *
+     * @param hosts host names
+     * @return the hosts that couldn't be resolved, so that their URLs can be
+     *         dropped before fetching
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Set<String> prefetchHosts(Collection<String> hosts) throws InterruptedException {
+        Map<String, CompletableFuture<InetAddress[]>> lookups = new HashMap<>();
+        for (String host : hosts) {
+            if (!lookups.containsKey(host)) {
+                lookups.put(host, resolveAsync(host));
+            }
+        }
+
+        Set<String> result = new HashSet<>();
+        for (Map.Entry<String, CompletableFuture<InetAddress[]>> lookup : lookups.entrySet()) {
+            try {
+                lookup.getValue().get();
+            } catch (ExecutionException e) {
+                result.add(lookup.getKey());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return number of lookups answered by a cached address
+     */
+    public long getNumHits() {
+        return _numHits.get();
+    }
+
+    /**
+     * @return number of lookups answered by a cached failure
+     */
+    public long getNumNegativeHits() {
+        return _numNegativeHits.get();
+    }
+
+    /**
+     * @return number of lookups that went to the underlying resolver
+     */
+    public long getNumMisses() {
+        return _numMisses.get();
+    }
+
+    /**
+     * @return number of background refreshes
+     */
+    public long getNumRefreshes() {
+        return _numRefreshes.get();
+    }
+
+    /**
+     * @return number of lookups that timed out
+     */
+    public long getNumTimeouts() {
+        return _numTimeouts.get();
+    }
+
+    /**
+     * @return number of hosts in the cache
+     */
+    public int size() {
+        return _cache.size();
+    }
+
+    public void clear() {
+        _cache.clear();
+    }
+
+    /**
+     * Stop the lookup threads.
+     */
+    @Override
+    public void close() {
+        _executor.shutdownNow();
+    }
+
+    private CacheEntry newEntry(final String host, long now) {
+        final CacheEntry entry = new CacheEntry(lookup(host), now);
+        entry._addresses.whenComplete((addresses, t) -> {
+            entry._expirationTime = System.currentTimeMillis() + ((t == null) ? _ttl : _negativeTtl);
+        });
+
+        return entry;
+    }
+
+    /**
+     * Look up <code>host</code> using the underlying resolver. The timeout
+     * starts once a lookup thread picks up the request, so lookups that are
+     * queued behind a large batch don't fail.
+     */
+    private CompletableFuture<InetAddress[]> lookup(final String host) {
+        final CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        try {
+            _executor.execute(() -> {
+                final long lookupTimeout = _lookupTimeout;
+                CompletableFuture.delayedExecutor(lookupTimeout, TimeUnit.MILLISECONDS).execute(() -> {
+                    if (!result.isDone()) {
+                        _numTimeouts.incrementAndGet();
+                        result.completeExceptionally(new UnknownHostException("Timeout resolving " + host));
+                    }
+                });
+
+                try {
+                    result.complete(_resolver.resolve(host));
+                } catch (UnknownHostException e) {
+                    result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(toUnknownHostException(host, e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(toUnknownHostException(host, e));
+        }
+
+        return result;
+    }
+
+    /**
+     * If <code>entry</code> is close to expiring, look up the host again and
+     * replace the entry once that succeeds. If the lookup fails, we keep using
+     * the old addresses until they expire.
+     */
+    private void maybeRefresh(final String key, final CacheEntry entry, long now) {
+        long refreshAhead = _refreshAhead;
+        if ((refreshAhead <= 0) || !entry._addresses.isDone() || (now < entry._expirationTime - refreshAhead)) {
+            return;
+        }
+
+        if (!entry._refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        _numRefreshes.incrementAndGet();
+        final CacheEntry newEntry = new CacheEntry(lookup(key), now);
+        newEntry._addresses.whenComplete((addresses, t) -> {
+            if (t == null) {
+                newEntry._expirationTime = System.currentTimeMillis() + _ttl;
+                _cache.replace(key, entry, newEntry);
+            } else {
+                LOGGER.debug("Failed to refresh DNS entry for {}: {}", key, t.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Remove expired entries, and if that's not enough then also the least
+     * recently used ones, to get the cache back to 90% of its max size (so we
+     * don't have to do this for every new entry).
+     */
+    private synchronized void evict() {
+        int maxEntries = _maxEntries;
+        if (_cache.size() <= maxEntries) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        _cache.values().removeIf(entry -> entry.isExpired(now));
+
+        int targetSize = maxEntries - (maxEntries / 10);
+        int numToRemove = _cache.size() - targetSize;
+        if (numToRemove <= 0) {
+            return;
+        }
+
+        List<Map.Entry<String, CacheEntry>> entries = new ArrayList<>(_cache.entrySet());
+        entries.sort((e1, e2) -> Long.compare(e1.getValue()._lastAccessTime, e2.getValue()._lastAccessTime));
+        for (int i = 0; i < numToRemove; i++) {
+            _cache.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (((t instanceof CompletionException) || (t instanceof ExecutionException)) && (t.getCause() != null)) {
+            t = t.getCause();
+        }
+
+        return t;
+    }
+
+    private static UnknownHostException toUnknownHostException(String host, Throwable t) {
+        t = unwrap(t);
+        if (t instanceof UnknownHostException) {
+            return (UnknownHostException) t;
+        }
+
+        UnknownHostException result = new UnknownHostException(host);
+        result.initCause(t);
+        return result;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-host circuit breaker, so that requests to a host that's down fail
+ * immediately, rather than each one waiting for a connect or socket timeout.
+ *
+ * Every host starts out {@link State#CLOSED}, where requests are allowed.
+ * After <code>failureThreshold</code> consecutive failures the host's circuit
+ * is {@link State#OPEN}, and requests are rejected. Once the open duration
+ * has passed, the circuit is {@link State#HALF_OPEN}: a single probe request
+ * is allowed, and while it's running other requests are still rejected. If
+ * the probe succeeds the circuit closes again, and if it fails the circuit
+ * re-opens for another open duration.
+ *
+ * The fetcher calls {@link #allowRequest(String)} before each request, and
+ * then reports the outcome via {@link #onSuccess(String)} or
+ * {@link #onFailure(String)}. One breaker can be shared by several fetchers.
+ *
+ * State is kept for at most <code>maxHosts</code> hosts; the least recently
+ * used host is dropped (i.e. its circuit is closed) when that's exceeded.
+ */
+public class CircuitBreaker {
+    private static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION = 60 * 1000L;
+    public static final int DEFAULT_MAX_HOSTS = 10000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static class HostState {
+        private State _state = State.CLOSED;
+        private int _numFailures = 0;
+
+        // When the circuit was opened, or when the probe was started.
+        private long _stateTime;
+    }
+
+    private final Map<String, HostState> _hosts;
+
+    private volatile int _failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long _openDuration = DEFAULT_OPEN_DURATION;
+    private volatile int _maxHosts = DEFAULT_MAX_HOSTS;
+
+    private final AtomicLong _numTrips = new AtomicLong();
+    private final AtomicLong _numRejected = new AtomicLong();
+
+    @SuppressWarnings("serial")
+    public CircuitBreaker() {
+        _hosts = new LinkedHashMap<String, HostState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HostState> eldest) {
+                return size() > _maxHosts;
+            }
+        };
+    }
+
+    /**
+     * @param failureThreshold number of consecutive failures that opens a
+     *        host's circuit
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1");
+        }
+
+        _failureThreshold = failureThreshold;
+    }
+
+    public int getFailureThreshold() {
+        return _failureThreshold;
+    }
+
+    /**
+     * @param openDuration time in milliseconds that requests are rejected
+     *        for, before a probe request is allowed. This is also how long a
+     *        probe can run before another probe is allowed, in case its
+     *        outcome is never reported.
+     */
+    public void setOpenDuration(long openDuration) {
+        _openDuration = openDuration;
+    }
+
+    public long getOpenDuration() {
+        return _openDuration;
+    }
+
+    /**
+     * @param maxHosts max number of hosts to keep state for
+     */
+    public void setMaxHosts(int maxHosts) {
+        _maxHosts = maxHosts;
+    }
+
+    /**
+     * @param host host that's about to be fetched from
+     * @return true if the request should be made, false if it should be
+     *         rejected
+     */
+    public boolean allowRequest(String host) {
+        synchronized (_hosts) {
+            HostState state = _hosts.get(host);
+            if ((state == null) || (state._state == State.CLOSED)) {
+                return true;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - state._stateTime >= _openDuration) {
+                // Let this request be the probe.
+                state._state = State.HALF_OPEN;
+                state._stateTime = now;
+                return true;
+            }
+        }
+
+        _numRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * A request to <code>host</code> got a response.
+     *
+     * @param host host that was fetched from
+     */
+    public void onSuccess(String host) {
+        synchronized (_hosts) {
+            HostState state = _hosts.remove(host);
+            if ((state != null) && (state._state != State.CLOSED)) {
+                LOGGER.info("Closing circuit for {}", host);
+            }
+        }
+    }
+
+    /**
+     * A request to <code>host</code> failed without getting a response, e.g.
+     * due to a connection or I/O error.
+     *
+     * @param host host that was fetched from
+     */
+    public void onFailure(String host) {
+        synchronized (_hosts) {
+            HostState state = _hosts.get(host);
+            if (state == null) {
+                state = new HostState();
+                _hosts.put(host, state);
+            }
+
+            state._numFailures += 1;
+            if ((state._state == State.HALF_OPEN) || ((state._state == State.CLOSED) && (state._numFailures >= _failureThreshold))) {
+                LOGGER.info("Opening circuit for {} after {} consecutive failures", host, state._numFailures);
+                state._state = State.OPEN;
+                state._stateTime = System.currentTimeMillis();
+                _numTrips.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param host host to check
+     * @return current state of the host's circuit. An open circuit whose
+     *         open duration has passed is still reported as open, until the
+     *         next request turns it half-open.
+     */
+    public State getState(String host) {
+        synchronized (_hosts) {
+            HostState state = _hosts.get(host);
+            return state == null ? State.CLOSED : state._state;
+        }
+    }
+
+    /**
+     * @return number of hosts with state (i.e. at least one recent failure)
+     */
+    public int getNumHosts() {
+        synchronized (_hosts) {
+            return _hosts.size();
+        }
+    }
+
+    /**
+     * @return number of times a circuit was opened
+     */
+    public long getNumTrips() {
+        return _numTrips.get();
+    }
+
+    /**
+     * @return number of requests that were rejected
+     */
+    public long getNumRejected() {
+        return _numRejected.get();
+    }
+}
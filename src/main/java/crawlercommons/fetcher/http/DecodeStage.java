@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import org.apache.http.HttpHeaders;
+
+import crawlercommons.fetcher.BaseFetchException;
+import crawlercommons.fetcher.BaseFetcher;
+import crawlercommons.fetcher.FetchStage;
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.util.Headers;
+
+/**
+ * Pipeline stage that expands compressed content, for use with a fetcher that
+ * has been configured to not decode content itself (see
+ * {@link BaseHttpFetcher#setDecodeContent(boolean)}), so that decoding
+ * doesn't happen on fetch threads. If the fetcher does decode content, the
+ * stage passes results through unchanged.
+ *
+ * The expanded result doesn't have the Content-Encoding and Content-Length
+ * headers of the compressed response, so it isn't decoded twice.
+ */
+public class DecodeStage implements FetchStage {
+
+    private final BaseFetcher _fetcher;
+
+    /**
+     * @param fetcher fetcher whose max content sizes limit the size of the
+     *            expanded content
+     */
+    public DecodeStage(BaseFetcher fetcher) {
+        _fetcher = fetcher;
+    }
+
+    @Override
+    public FetchedResult process(FetchedResult result) throws BaseFetchException {
+        // Content-Encoding is still set when the fetcher has decoded the body.
+        if ((_fetcher instanceof BaseHttpFetcher) && ((BaseHttpFetcher) _fetcher).isDecodeContent()) {
+            return result;
+        }
+
+        String contentEncoding = result.getHeaders().get(HttpHeaders.CONTENT_ENCODING);
+        if (contentEncoding == null) {
+            return result;
+        }
+
+        String url = result.getBaseUrl();
+        String mimeType = BaseFetcher.getMimeTypeFromContentType(result.getContentType());
+        byte[] original = result.getContent();
+        byte[] content = BaseHttpFetcher.processContent(url, original, mimeType, contentEncoding, _fetcher.getMaxContentSize(mimeType), false);
+        if (content == original) {
+            return result;
+        }
+
+        // The expanded content replaces any direct buffer or content file.
+        result.close();
+
+        Headers headers = new Headers();
+        for (String name : result.getHeaders().names()) {
+            if (!name.equalsIgnoreCase(HttpHeaders.CONTENT_ENCODING) && !name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
+                for (String value : result.getHeaders().getValues(name)) {
+                    headers.add(name, value);
+                }
+            }
+        }
+
+        return new FetchedResult(url, result.getFetchedUrl(), result.getFetchTime(), headers, content, result.getContentType(), result.getResponseRate(), result.getPayload(),
+                        result.getNewBaseUrl(), result.getNumRedirects(), result.getHostAddress(), result.getStatusCode(), result.getReasonPhrase());
+    }
+}
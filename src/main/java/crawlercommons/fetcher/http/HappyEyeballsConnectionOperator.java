@@ -0,0 +1,417 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.config.Lookup;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionOperator;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.DefaultHttpClientConnectionOperator;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * Connection operator that races connection attempts to a host's addresses,
+ * in the style of "Happy Eyeballs" (RFC 8305), rather than trying them one at
+ * a time with the full connect timeout for each.
+ *
+ * Addresses are interleaved by family (IPv6 and IPv4). The first attempt
+ * starts right away, and each following one starts when the previous attempt
+ * fails, or after the connection attempt delay, whichever comes first. The
+ * first connection to succeed (including the TLS handshake, for https) is
+ * used, and the others are closed.
+ *
+ * The family that won is remembered for each host, and tried first the next
+ * time, so a host with a broken IPv6 (or IPv4) address only costs the delay
+ * once. Otherwise the order from the resolver is kept for the first family,
+ * which respects the <code>java.net.preferIPv6Addresses</code> setting.
+ *
+ * If a {@link LocalAddressPool} is set, each connection attempt is bound to
+ * a local address from the pool that matches the family of the address
+ * being connected to.
+ *
+ * Operators should be closed when no longer needed, so that the threads
+ * used for connection attempts are stopped.
+ */
+public class HappyEyeballsConnectionOperator implements HttpClientConnectionOperator, Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(HappyEyeballsConnectionOperator.class);
+
+    public static final long DEFAULT_CONNECTION_ATTEMPT_DELAY = 250L;
+    public static final int DEFAULT_MAX_HOSTS = 10000;
+
+    /**
+     * Context attribute set to the time in milliseconds (a Long) it took to
+     * connect, including resolving the host and any TLS handshake, each time
+     * a new connection is opened.
+     */
+    public static final String CONNECT_TIME_CONTEXT_KEY = "crawlercommons.connect-time";
+
+    private static final String SOCKET_FACTORY_REGISTRY = "http.socket-factory-registry";
+
+    private static class MyAttempt {
+        private final InetAddress _address;
+        private final InetSocketAddress _localAddress;
+        private final Socket _socket;
+        private final CompletableFuture<Socket> _result = new CompletableFuture<>();
+
+        public MyAttempt(InetAddress address, InetSocketAddress localAddress, Socket socket) {
+            _address = address;
+            _localAddress = localAddress;
+            _socket = socket;
+        }
+    }
+
+    private final Lookup<ConnectionSocketFactory> _socketFactoryRegistry;
+    private final SchemePortResolver _schemePortResolver;
+    private final DnsResolver _dnsResolver;
+    private final DefaultHttpClientConnectionOperator _defaultOperator;
+    private final ExecutorService _executor;
+
+    // Host name => whether IPv6 won the last race
+    private final Map<String, Boolean> _preferIPv6;
+
+    private volatile long _connectionAttemptDelay = DEFAULT_CONNECTION_ATTEMPT_DELAY;
+    private volatile LocalAddressPool _localAddressPool = null;
+
+    /**
+     * @param socketFactoryRegistry socket factories for each scheme
+     * @param dnsResolver resolver for host names, or null for the system
+     *        resolver
+     */
+    @SuppressWarnings("serial")
+    public HappyEyeballsConnectionOperator(Lookup<ConnectionSocketFactory> socketFactoryRegistry, DnsResolver dnsResolver) {
+        _socketFactoryRegistry = socketFactoryRegistry;
+        _schemePortResolver = DefaultSchemePortResolver.INSTANCE;
+        _dnsResolver = (dnsResolver != null) ? dnsResolver : SystemDefaultDnsResolver.INSTANCE;
+        _defaultOperator = new DefaultHttpClientConnectionOperator(socketFactoryRegistry, _schemePortResolver, _dnsResolver);
+        _executor = Executors.newCachedThreadPool(new DaemonThreadFactory("happy-eyeballs"));
+        _preferIPv6 = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > DEFAULT_MAX_HOSTS;
+            }
+        };
+    }
+
+    /**
+     * @param connectionAttemptDelay time in milliseconds to wait for an
+     *        attempt before starting the next one
+     */
+    public void setConnectionAttemptDelay(long connectionAttemptDelay) {
+        _connectionAttemptDelay = connectionAttemptDelay;
+    }
+
+    public long getConnectionAttemptDelay() {
+        return _connectionAttemptDelay;
+    }
+
+    /**
+     * @param localAddressPool local addresses to bind connections to, for
+     *        routes that don't have a local address of their own, or null to
+     *        let the system pick
+     */
+    public void setLocalAddressPool(LocalAddressPool localAddressPool) {
+        _localAddressPool = localAddressPool;
+    }
+
+    public LocalAddressPool getLocalAddressPool() {
+        return _localAddressPool;
+    }
+
+    /**
+     * @param hostName name of a host
+     * @return true if IPv6 won the last race for the host, false if IPv4 won,
+     *         or null if there hasn't been a race
+     */
+    public Boolean getPreferIPv6(String hostName) {
+        synchronized (_preferIPv6) {
+            return _preferIPv6.get(hostName.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public void connect(ManagedHttpClientConnection conn, HttpHost host, InetSocketAddress localAddress, int connectTimeout, SocketConfig socketConfig, HttpContext context) throws IOException {
+        long startTime = System.currentTimeMillis();
+        doConnect(conn, host, localAddress, connectTimeout, socketConfig, context);
+        context.setAttribute(CONNECT_TIME_CONTEXT_KEY, System.currentTimeMillis() - startTime);
+    }
+
+    private void doConnect(ManagedHttpClientConnection conn, HttpHost host, InetSocketAddress localAddress, int connectTimeout, SocketConfig socketConfig, HttpContext context) throws IOException {
+        ConnectionSocketFactory sf = getSocketFactoryRegistry(context).lookup(host.getSchemeName());
+        if (sf == null) {
+            throw new UnsupportedSchemeException(host.getSchemeName() + " protocol is not supported");
+        }
+
+        InetAddress[] addresses = (host.getAddress() != null) ? new InetAddress[] { host.getAddress() } : _dnsResolver.resolve(host.getHostName());
+        if (addresses.length == 1) {
+            // Nothing to race (and no need to resolve the host again).
+            HttpHost resolvedHost = new HttpHost(addresses[0], host.getHostName(), host.getPort(), host.getSchemeName());
+            InetSocketAddress boundAddress = selectLocalAddress(host, addresses[0], localAddress);
+            _defaultOperator.connect(conn, resolvedHost, boundAddress, connectTimeout, socketConfig, context);
+            recordConnection(boundAddress, conn.getSocket());
+            return;
+        }
+
+        int port = _schemePortResolver.resolve(host);
+        List<InetAddress> ordered = orderAddresses(host.getHostName(), addresses);
+        LinkedBlockingQueue<MyAttempt> completed = new LinkedBlockingQueue<>();
+        List<MyAttempt> attempts = new ArrayList<>(ordered.size());
+        MyAttempt winner = null;
+        IOException lastException = null;
+
+        try {
+            int numDone = 0;
+            while ((winner == null) && (numDone < ordered.size())) {
+                if (attempts.size() < ordered.size()) {
+                    MyAttempt attempt = startAttempt(sf, conn, host, ordered.get(attempts.size()), port, localAddress, connectTimeout, socketConfig, context, attempts.isEmpty());
+                    attempts.add(attempt);
+                    attempt._result.whenComplete((socket, t) -> completed.add(attempt));
+                }
+
+                // Wait for an attempt to finish, but not longer than the
+                // delay, so that the next address is tried and aborts are
+                // noticed.
+                MyAttempt done = completed.poll(_connectionAttemptDelay, TimeUnit.MILLISECONDS);
+
+                // Aborting the request shuts down the connection, which only
+                // closes the socket it's bound to, so close all the others
+                // (via the finally block) rather than wait for them.
+                if (!conn.isOpen()) {
+                    throw new InterruptedIOException("Connection to " + host + " was aborted");
+                }
+
+                while (done != null) {
+                    numDone += 1;
+                    try {
+                        done._result.get();
+                        winner = done;
+                        break;
+                    } catch (ExecutionException e) {
+                        lastException = toIOException(e.getCause(), host, addresses);
+                        LOGGER.debug("Connection attempt to {} failed: {}", done._address, e.getCause().getMessage());
+                    }
+
+                    done = completed.poll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + host);
+        } finally {
+            // Close all the sockets that didn't win, including attempts that
+            // are still in progress.
+            for (MyAttempt attempt : attempts) {
+                if (attempt != winner) {
+                    closeQuietly(attempt._socket);
+                    attempt._result.thenAccept(socket -> closeQuietly(socket));
+                }
+            }
+        }
+
+        if (winner == null) {
+            throw lastException;
+        }
+
+        synchronized (_preferIPv6) {
+            _preferIPv6.put(host.getHostName().toLowerCase(Locale.ROOT), winner._address instanceof Inet6Address);
+        }
+
+        Socket socket = winner._result.join();
+        conn.bind(socket);
+        recordConnection(winner._localAddress, socket);
+    }
+
+    /**
+     * @return the route's local address if it has one, otherwise one from
+     *         the local address pool (if any)
+     */
+    private InetSocketAddress selectLocalAddress(HttpHost host, InetAddress remoteAddress, InetSocketAddress localAddress) {
+        LocalAddressPool localAddressPool = _localAddressPool;
+        if ((localAddress != null) || (localAddressPool == null)) {
+            return localAddress;
+        }
+
+        InetAddress address = localAddressPool.select(host.getHostName().toLowerCase(Locale.ROOT), remoteAddress);
+        return (address == null) ? null : new InetSocketAddress(address, 0);
+    }
+
+    private void recordConnection(InetSocketAddress localAddress, Socket socket) {
+        LocalAddressPool localAddressPool = _localAddressPool;
+        if ((localAddressPool != null) && (localAddress != null) && (socket != null)) {
+            localAddressPool.onConnected(localAddress.getAddress(), socket);
+        }
+    }
+
+    /**
+     * Stop the threads used for connection attempts. Connections to hosts
+     * with more than one address can't be opened afterwards.
+     */
+    @Override
+    public void close() {
+        _executor.shutdownNow();
+    }
+
+    @Override
+    public void upgrade(ManagedHttpClientConnection conn, HttpHost host, HttpContext context) throws IOException {
+        _defaultOperator.upgrade(conn, host, context);
+    }
+
+    /**
+     * Interleave the addresses by family, starting with the family that won
+     * the last race for <code>hostName</code>, or else the family of the
+     * first address.
+     */
+    List<InetAddress> orderAddresses(String hostName, InetAddress[] addresses) {
+        List<InetAddress> ipv6 = new ArrayList<>();
+        List<InetAddress> ipv4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                ipv6.add(address);
+            } else {
+                ipv4.add(address);
+            }
+        }
+
+        Boolean preferIPv6 = getPreferIPv6(hostName);
+        if (preferIPv6 == null) {
+            preferIPv6 = addresses[0] instanceof Inet6Address;
+        }
+
+        List<InetAddress> first = preferIPv6 ? ipv6 : ipv4;
+        List<InetAddress> second = preferIPv6 ? ipv4 : ipv6;
+        List<InetAddress> result = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                result.add(first.get(i));
+            }
+
+            if (i < second.size()) {
+                result.add(second.get(i));
+            }
+        }
+
+        return result;
+    }
+
+    private MyAttempt startAttempt(ConnectionSocketFactory sf, ManagedHttpClientConnection conn, HttpHost host, InetAddress address, int port, InetSocketAddress localAddress, int connectTimeout,
+                    SocketConfig socketConfig, HttpContext context, boolean first) throws IOException {
+        Socket socket = sf.createSocket(context);
+        configureSocket(socket, socketConfig);
+
+        // Like the default operator, bind the connection to the (first)
+        // socket while connecting, so that aborting the request closes it.
+        if (first) {
+            conn.bind(socket);
+        }
+
+        MyAttempt attempt = new MyAttempt(address, selectLocalAddress(host, address, localAddress), socket);
+        try {
+            _executor.execute(() -> {
+                try {
+                    attempt._result.complete(sf.connectSocket(connectTimeout, socket, host, new InetSocketAddress(address, port), attempt._localAddress, context));
+                } catch (Throwable t) {
+                    attempt._result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(socket);
+            throw new IOException("Connection operator has been closed");
+        }
+
+        return attempt;
+    }
+
+    private static void configureSocket(Socket socket, SocketConfig socketConfig) throws IOException {
+        socket.setSoTimeout(socketConfig.getSoTimeout());
+        socket.setReuseAddress(socketConfig.isSoReuseAddress());
+        socket.setTcpNoDelay(socketConfig.isTcpNoDelay());
+        socket.setKeepAlive(socketConfig.isSoKeepAlive());
+        if (socketConfig.getRcvBufSize() > 0) {
+            socket.setReceiveBufferSize(socketConfig.getRcvBufSize());
+        }
+
+        if (socketConfig.getSndBufSize() > 0) {
+            socket.setSendBufferSize(socketConfig.getSndBufSize());
+        }
+
+        if (socketConfig.getSoLinger() >= 0) {
+            socket.setSoLinger(true, socketConfig.getSoLinger());
+        }
+    }
+
+    private static IOException toIOException(Throwable t, HttpHost host, InetAddress[] addresses) {
+        if (t instanceof SocketTimeoutException) {
+            return new ConnectTimeoutException((SocketTimeoutException) t, host, addresses);
+        } else if (t instanceof ConnectException) {
+            return new HttpHostConnectException((ConnectException) t, host, addresses);
+        } else if (t instanceof IOException) {
+            return (IOException) t;
+        } else {
+            return new IOException(t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Lookup<ConnectionSocketFactory> getSocketFactoryRegistry(HttpContext context) {
+        Lookup<ConnectionSocketFactory> registry = (Lookup<ConnectionSocketFactory>) context.getAttribute(SOCKET_FACTORY_REGISTRY);
+        return (registry != null) ? registry : _socketFactoryRegistry;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore any errors
+            }
+        }
+    }
+}
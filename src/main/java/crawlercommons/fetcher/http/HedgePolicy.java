@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a GET request is hedged, i.e. when a second, identical request
+ * is sent because the first one hasn't got its response headers yet. The
+ * request that gets its headers first is used, and the other one is aborted.
+ * This cuts the tail latency caused by a stalled connection or a slow server
+ * instance, at the cost of some extra requests.
+ *
+ * A request is hedged after the fixed delay or, if the fetcher has an
+ * {@link AdaptiveTimeoutPolicy} with enough samples for the host, after the
+ * host's time to first byte at the configured percentile (but never sooner
+ * than the min delay).
+ *
+ * Hedges are capped by a budget of tokens: every request adds
+ * <code>ratio</code> tokens (up to <code>maxTokens</code>), and every hedge
+ * takes one. So in the long run hedges are at most <code>ratio</code> times
+ * the requests, even when a host is slow for every request.
+ *
+ * One policy can be shared by several fetchers.
+ */
+public class HedgePolicy {
+
+    public static final long DEFAULT_DELAY = 500L;
+    public static final long DEFAULT_MIN_DELAY = 50L;
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+    public static final int DEFAULT_BUDGET_MAX_TOKENS = 10;
+
+    private volatile long _delay = DEFAULT_DELAY;
+    private volatile long _minDelay = DEFAULT_MIN_DELAY;
+    private volatile double _percentile = DEFAULT_PERCENTILE;
+    private volatile double _budgetRatio = DEFAULT_BUDGET_RATIO;
+    private volatile int _budgetMaxTokens = DEFAULT_BUDGET_MAX_TOKENS;
+
+    private double _tokens = DEFAULT_BUDGET_MAX_TOKENS;
+
+    private final AtomicLong _numHedges = new AtomicLong();
+    private final AtomicLong _numHedgeWins = new AtomicLong();
+    private final AtomicLong _numOverBudget = new AtomicLong();
+
+    /**
+     * @param delay time in milliseconds to wait for response headers before
+     *        hedging, when there's no percentile for the host
+     * @param minDelay min time in milliseconds to wait for response headers
+     *        before hedging
+     */
+    public void setDelay(long delay, long minDelay) {
+        if ((minDelay < 0) || (delay < minDelay)) {
+            throw new IllegalArgumentException("Invalid delay: " + delay + " with min delay " + minDelay);
+        }
+
+        _delay = delay;
+        _minDelay = minDelay;
+    }
+
+    public long getDelay() {
+        return _delay;
+    }
+
+    public long getMinDelay() {
+        return _minDelay;
+    }
+
+    /**
+     * @param percentile fraction (0 to 1) of the host's times to first byte
+     *        that the hedge delay is based on, or 0 to always use the fixed
+     *        delay
+     */
+    public void setPercentile(double percentile) {
+        if ((percentile < 0.0) || (percentile > 1.0)) {
+            throw new IllegalArgumentException("Percentile must be >= 0 and <= 1: " + percentile);
+        }
+
+        _percentile = percentile;
+    }
+
+    public double getPercentile() {
+        return _percentile;
+    }
+
+    /**
+     * @param ratio hedges allowed per request
+     * @param maxTokens max number of hedges that can be saved up
+     */
+    public synchronized void setBudget(double ratio, int maxTokens) {
+        _budgetRatio = ratio;
+        _budgetMaxTokens = maxTokens;
+        _tokens = Math.min(_tokens, maxTokens);
+    }
+
+    /**
+     * Add to the hedge budget, for a request that might be hedged.
+     */
+    public synchronized void onRequest() {
+        _tokens = Math.min(_budgetMaxTokens, _tokens + _budgetRatio);
+    }
+
+    /**
+     * @param host host that's about to be fetched from
+     * @param timeoutPolicy the fetcher's timeout policy, or null
+     * @return time in milliseconds to wait for response headers before hedging
+     */
+    public long getHedgeDelay(String host, AdaptiveTimeoutPolicy timeoutPolicy) {
+        if ((_percentile > 0.0) && (timeoutPolicy != null) && (host != null)) {
+            long firstByteTime = timeoutPolicy.getFirstByteTime(host, _percentile);
+            if (firstByteTime >= 0) {
+                return Math.max(_minDelay, firstByteTime);
+            }
+        }
+
+        return _delay;
+    }
+
+    /**
+     * Take a hedge from the budget.
+     *
+     * @return true if the request should be hedged, false if the budget is
+     *         used up
+     */
+    public boolean tryHedge() {
+        synchronized (this) {
+            if (_tokens < 1.0) {
+                _numOverBudget.incrementAndGet();
+                return false;
+            }
+
+            _tokens -= 1.0;
+        }
+
+        _numHedges.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * A hedge got its response headers before the request it was hedging.
+     */
+    public void onHedgeWin() {
+        _numHedgeWins.incrementAndGet();
+    }
+
+    /**
+     * @return number of hedges that were sent
+     */
+    public long getNumHedges() {
+        return _numHedges.get();
+    }
+
+    /**
+     * @return number of hedges that got their response headers first
+     */
+    public long getNumHedgeWins() {
+        return _numHedgeWins.get();
+    }
+
+    /**
+     * @return number of hedges that weren't sent because the budget was used
+     *         up
+     */
+    public long getNumOverBudget() {
+        return _numOverBudget.get();
+    }
+}
@@ -0,0 +1,829 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.fetcher.AbortedFetchException;
+import crawlercommons.fetcher.AbortedFetchReason;
+import crawlercommons.fetcher.BaseFetchException;
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.fetcher.IOFetchException;
+import crawlercommons.fetcher.Payload;
+import crawlercommons.fetcher.RedirectFetchException;
+import crawlercommons.fetcher.RedirectFetchException.RedirectExceptionReason;
+import crawlercommons.fetcher.UrlFetchException;
+import crawlercommons.util.DaemonThreadFactory;
+import crawlercommons.util.Headers;
+
+/**
+ * Fetcher built on the JDK's {@link HttpClient}, which negotiates HTTP/2 (via
+ * ALPN for https, or an h2c upgrade for http) and falls back to HTTP/1.1 for
+ * servers that don't support it. With HTTP/2, concurrent fetches for the same
+ * origin are multiplexed as streams over a single connection, rather than
+ * each needing its own TCP/TLS connection.
+ *
+ * Results and exceptions follow the same contract as
+ * {@link SimpleHttpFetcher}, and redirects are followed by this fetcher (not
+ * the HttpClient), so the redirect mode and max redirects settings work the
+ * same way. The <code>maxThreads</code> value sizes the pool of threads that
+ * process responses; the number of concurrent fetches isn't limited, as
+ * fetches don't tie up a thread. The HttpClient doesn't expose the remote
+ * address of the connection, so the host address is only set when the url's
+ * host is an IP address, or when it's already cached by the
+ * {@link CachingDnsResolver} set via
+ * {@link #setDnsResolver(CachingDnsResolver)}; it's never looked up just for
+ * the result. Otherwise (and when fetching via a proxy) it's empty.
+ *
+ * Fetchers should be closed when no longer needed, so that the response
+ * processing threads are stopped.
+ */
+@SuppressWarnings("serial")
+public class Http2Fetcher extends BaseHttpFetcher implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(Http2Fetcher.class);
+
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    private int _socketTimeout;
+    private int _connectionTimeout;
+    private HttpClient.Version _httpVersion = HttpClient.Version.HTTP_2;
+
+    transient private CookieHandler _cookieHandler;
+    transient private CachingDnsResolver _dnsResolver;
+
+    transient private volatile HttpClient _httpClient;
+    transient private ExecutorService _executor;
+    // Enforces the fetch duration. Cancelled timeouts are removed from its
+    // queue right away, so they don't keep finished fetches reachable.
+    transient private ScheduledThreadPoolExecutor _timer;
+    // Fetches currently being processed, mapped to the url being fetched, so
+    // that they can be aborted.
+    transient private Map<MyFetch, String> _inFlight;
+
+    /**
+     * State for one fetch, which can span several requests when following
+     * redirects.
+     */
+    private class MyFetch {
+
+        private final String _url;
+        private final Payload _payload;
+        private final CompletableFuture<FetchedResult> _result = new CompletableFuture<>();
+        private final long _startTime = System.currentTimeMillis();
+
+        private URI _uri;
+        private int _numRedirects = 0;
+        private String _newBaseUrl = null;
+
+        private volatile CompletableFuture<HttpResponse<byte[]>> _response;
+        private volatile MyBodySubscriber _body;
+
+        public MyFetch(String url, Payload payload) {
+            _url = url;
+            _payload = payload;
+        }
+
+        public void send(URI uri) {
+            _uri = uri;
+
+            HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(uri) //
+                            .GET() //
+                            .timeout(Duration.ofMillis(_socketTimeout)) //
+                            .header(HttpHeaders.USER_AGENT, _userAgent.getUserAgentString()) //
+                            .header(HttpHeaders.ACCEPT_LANGUAGE, getAcceptLanguage()) //
+                            .header(HttpHeaders.ACCEPT_CHARSET, DEFAULT_ACCEPT_CHARSET) //
+                            .header(HttpHeaders.ACCEPT_ENCODING, DEFAULT_ACCEPT_ENCODING) //
+                            .header(HttpHeaders.ACCEPT, DEFAULT_ACCEPT);
+
+            CompletableFuture<HttpResponse<byte[]>> response = _httpClient.sendAsync(requestBuilder.build(), this::getBodySubscriber);
+            _response = response;
+            response.whenCompleteAsync((r, t) -> {
+                if (t != null) {
+                    fail(mapException(_url, t));
+                } else {
+                    try {
+                        handleResponse(r);
+                    } catch (BaseFetchException e) {
+                        fail(e);
+                    }
+                }
+            }, _executor);
+        }
+
+        private BodySubscriber<byte[]> getBodySubscriber(ResponseInfo info) {
+            if (isFollowedRedirect(info.statusCode())) {
+                _body = null;
+                return BodySubscribers.replacing(new byte[0]);
+            }
+
+            String contentType = info.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElse("");
+            String mimeType = getMimeTypeFromContentType(contentType);
+            long contentLength = info.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1);
+
+            MyBodySubscriber body = new MyBodySubscriber(this, info, mimeType, contentLength);
+            try {
+                checkMimeType(_url, mimeType);
+            } catch (AbortedFetchException e) {
+                body.setAbortException(e);
+            }
+
+            _body = body;
+            return body;
+        }
+
+        private void handleResponse(HttpResponse<byte[]> response) throws BaseFetchException {
+            int statusCode = response.statusCode();
+            if (isFollowedRedirect(statusCode)) {
+                String location = response.headers().firstValue(HttpHeaders.LOCATION).orElse(null);
+                if (location != null) {
+                    redirect(statusCode, location);
+                    return;
+                }
+            }
+
+            complete(statusCode, response.headers(), response.body(), _body);
+        }
+
+        /**
+         * Build the result from the final response, and complete the fetch.
+         */
+        public void complete(int statusCode, java.net.http.HttpHeaders headers, byte[] body, MyBodySubscriber bodySubscriber) throws BaseFetchException {
+            Headers headerMap = new Headers();
+            for (Map.Entry<String, List<String>> header : headers.map().entrySet()) {
+                if (header.getKey().startsWith(":")) {
+                    continue;
+                }
+
+                String name = getHeaderName(header.getKey());
+                for (String value : header.getValue()) {
+                    headerMap.add(name, value);
+                }
+            }
+
+            String contentType = headers.firstValue(HttpHeaders.CONTENT_TYPE).orElse("");
+            String mimeType = getMimeTypeFromContentType(contentType);
+            String hostAddress = getHostAddress(_uri);
+
+            boolean truncated = (bodySubscriber != null) && bodySubscriber.isTruncated();
+            long readRate = (bodySubscriber == null) ? 0 : bodySubscriber.getReadRate();
+
+            // Toss truncated image content, and uncompress the content if
+            // needed.
+            String contentEncoding = headers.firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null);
+            byte[] content = processContent(_url, body, mimeType, contentEncoding, getMaxContentSize(mimeType), truncated, _decodeContent);
+
+            String redirectedUrl = _uri.toString();
+            String reasonPhrase = EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ROOT);
+            _result.complete(new FetchedResult(_url, redirectedUrl, System.currentTimeMillis(), headerMap, content, contentType, (int) readRate, _payload, _newBaseUrl, _numRedirects,
+                            hostAddress, statusCode, reasonPhrase));
+        }
+
+        private void redirect(int statusCode, String location) throws BaseFetchException {
+            URI redirectUri;
+            try {
+                redirectUri = _uri.resolve(new URI(location));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new UrlFetchException(_url, "Invalid redirect location: " + location);
+            }
+
+            // Same hack as SimpleHttpFetcher.MyRedirectStrategy, to avoid
+            // circular redirects when the redirect uses an explicit (default)
+            // port number.
+            if (redirectUri.getScheme().equalsIgnoreCase("http") && (redirectUri.getPort() == 80)) {
+                try {
+                    redirectUri = new URI(redirectUri.getScheme(), redirectUri.getUserInfo(), redirectUri.getHost(), -1, redirectUri.getPath(), redirectUri.getQuery(), redirectUri.getFragment());
+                } catch (URISyntaxException e) {
+                    LOGGER.warn("Unexpected exception removing port from URI", e);
+                }
+            }
+
+            String redirectUrl = redirectUri.toString();
+            _numRedirects += 1;
+
+            // Record the last permanent redirect
+            if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY) {
+                _newBaseUrl = redirectUrl;
+            }
+
+            RedirectExceptionReason reason = getDisallowedReason(statusCode);
+            if (reason != null) {
+                throw new RedirectFetchException(_url, redirectUrl, reason);
+            }
+
+            if (_numRedirects > getMaxRedirects()) {
+                throw new RedirectFetchException(_url, redirectUrl, RedirectExceptionReason.TOO_MANY_REDIRECTS);
+            }
+
+            if (!_result.isDone()) {
+                send(redirectUri);
+            }
+        }
+
+        public void fail(BaseFetchException e) {
+            if (_result.completeExceptionally(e)) {
+                if ((e instanceof AbortedFetchException) && (((AbortedFetchException) e).getAbortReason() == AbortedFetchReason.INVALID_MIMETYPE)) {
+                    // Don't bother reporting that we bailed because the
+                    // mime-type wasn't one that we wanted.
+                } else {
+                    LOGGER.debug("Exception fetching {} {}", _url, e.getMessage());
+                }
+
+                cancel();
+            }
+        }
+
+        public void abort() {
+            fail(new AbortedFetchException(_url, AbortedFetchReason.INTERRUPTED));
+        }
+
+        private void cancel() {
+            MyBodySubscriber body = _body;
+            if (body != null) {
+                body.cancel();
+            }
+
+            CompletableFuture<HttpResponse<byte[]>> response = _response;
+            if (response != null) {
+                response.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Reads the response body, applying the same content size and response
+     * rate checks as {@link SimpleHttpFetcher}. Once we have as much content as
+     * we want, the body completes and the rest of the response is cancelled;
+     * with HTTP/2 this just resets the stream, leaving the connection usable
+     * for other fetches.
+     */
+    private class MyBodySubscriber implements BodySubscriber<byte[]> {
+
+        private final MyFetch _fetch;
+        private final ResponseInfo _info;
+        private final CompletableFuture<byte[]> _content = new CompletableFuture<>();
+
+        private final int _targetLength;
+        private final boolean _truncated;
+        private final boolean _lengthKnown;
+        private final ByteArrayOutputStream _out;
+
+        private volatile Flow.Subscription _subscription;
+        private AbortedFetchException _abortException;
+        private int _totalRead = 0;
+        private int _readRequests = 0;
+        private volatile long _readRate = 0;
+
+        public MyBodySubscriber(MyFetch fetch, ResponseInfo info, String mimeType, long contentLength) {
+            _fetch = fetch;
+            _info = info;
+
+            // Figure out how much data we want to try to fetch.
+            int targetLength = getMaxContentSize(mimeType);
+            boolean truncated = false;
+            if (contentLength > targetLength) {
+                truncated = true;
+            } else if (contentLength >= 0) {
+                targetLength = (int) contentLength;
+            }
+
+            _targetLength = targetLength;
+            _truncated = truncated;
+            _lengthKnown = (contentLength >= 0) && !truncated;
+            _out = new ByteArrayOutputStream(Math.min(_targetLength, DEFAULT_BYTEARRAY_SIZE));
+        }
+
+        public boolean isTruncated() {
+            return _truncated;
+        }
+
+        public long getReadRate() {
+            return _readRate;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return _content;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            _subscription = subscription;
+            if (_abortException != null) {
+                abortFetch(_abortException);
+            } else {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (_content.isDone()) {
+                return;
+            }
+
+            int minResponseRate = getMinResponseRate();
+            for (ByteBuffer buffer : buffers) {
+                int bytesToKeep = Math.min(buffer.remaining(), _targetLength - _totalRead);
+                if (buffer.hasArray()) {
+                    _out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), bytesToKeep);
+                } else {
+                    byte[] bytes = new byte[bytesToKeep];
+                    buffer.get(bytes);
+                    _out.write(bytes, 0, bytesToKeep);
+                }
+
+                _totalRead += bytesToKeep;
+            }
+
+            _readRequests += 1;
+
+            // Assume read time is at least one millisecond, to avoid DBZ
+            // exception.
+            long totalReadTime = Math.max(1, System.currentTimeMillis() - _fetch._startTime);
+            _readRate = (_totalRead * 1000L) / totalReadTime;
+
+            if ((_totalRead >= _targetLength) && !_lengthKnown) {
+                // We've got all we want, so complete the fetch now and reset
+                // the stream rather than draining the rest of the response.
+                // The HttpClient fails the response once the stream is reset,
+                // so the result has to be built here.
+                byte[] content = _out.toByteArray();
+                try {
+                    _fetch.complete(_info.statusCode(), _info.headers(), content, this);
+                } catch (BaseFetchException e) {
+                    _fetch.fail(e);
+                }
+
+                _content.complete(content);
+                _subscription.cancel();
+                return;
+            }
+
+            // Don't bail on the first read cycle, as we can get a hiccup
+            // starting out.
+            // Also don't bail if we've read everything we need.
+            if ((_readRequests > 1) && (_totalRead < _targetLength) && (_readRate < minResponseRate)) {
+                abortFetch(new AbortedFetchException(_fetch._url, "Slow response rate of " + _readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE));
+                return;
+            }
+
+            _subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            _content.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            _content.complete(_out.toByteArray());
+        }
+
+        /**
+         * Abort the fetch as soon as we're subscribed, without reading any
+         * of the body.
+         */
+        public void setAbortException(AbortedFetchException e) {
+            _abortException = e;
+        }
+
+        private void abortFetch(AbortedFetchException e) {
+            _fetch.fail(e);
+            cancel();
+        }
+
+        public void cancel() {
+            Flow.Subscription subscription = _subscription;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+
+            _content.completeExceptionally(new IOException("Fetch aborted"));
+        }
+    }
+
+    public Http2Fetcher(int maxThreads, UserAgent userAgent) {
+        super(maxThreads, userAgent);
+
+        _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+
+        // Just to be explicit, we rely on lazy initialization of this so that
+        // we don't have to worry about serializing it.
+        _httpClient = null;
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    /**
+     * Set the max time to wait for the response headers, once the request
+     * has been sent.
+     *
+     * @param socketTimeoutInMs timeout in milliseconds
+     */
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        _socketTimeout = socketTimeoutInMs;
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_httpClient == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after HttpClient has been initialized");
+        }
+    }
+
+    public HttpClient.Version getHttpVersion() {
+        return _httpVersion;
+    }
+
+    /**
+     * Set the preferred HTTP version. Defaults to HTTP/2, which falls back to
+     * HTTP/1.1 if the server doesn't support it.
+     *
+     * @param httpVersion preferred HTTP version
+     */
+    public void setHttpVersion(HttpClient.Version httpVersion) {
+        if (_httpClient == null) {
+            _httpVersion = httpVersion;
+        } else {
+            throw new IllegalStateException("Can't change HTTP version after HttpClient has been initialized");
+        }
+    }
+
+    /**
+     * Set the cookie handler used for all fetches. Defaults to a
+     * {@link CookieManager} with an in-memory cookie store that's shared by all
+     * fetches.
+     *
+     * @param cookieHandler cookie handler, or null to ignore cookies
+     */
+    public void setCookieHandler(CookieHandler cookieHandler) {
+        if (_httpClient == null) {
+            _cookieHandler = cookieHandler;
+        } else {
+            throw new IllegalStateException("Can't change cookie handler after HttpClient has been initialized");
+        }
+    }
+
+    public CookieHandler getCookieHandler() {
+        return _cookieHandler;
+    }
+
+    /**
+     * Set the resolver whose cached lookups are used for the host address of
+     * results. The HttpClient still does its own lookups when connecting, as
+     * it can't be given a resolver.
+     * 
+     * @param dnsResolver resolver for host addresses, or null to only set the
+     *        host address for urls with an IP address
+     */
+    public void setDnsResolver(CachingDnsResolver dnsResolver) {
+        _dnsResolver = dnsResolver;
+    }
+
+    public CachingDnsResolver getDnsResolver() {
+        return _dnsResolver;
+    }
+
+    @Override
+    public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+        try {
+            return fetchAsync(url, payload).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BaseFetchException) {
+                throw (BaseFetchException) e.getCause();
+            }
+
+            throw new IOFetchException(url, new IOException(e.getCause()));
+        }
+    }
+
+    /**
+     * Start fetching the content stored in the resource referenced by the
+     * 'url' parameter, without blocking the calling thread.
+     *
+     * The returned future completes with the
+     * {@link crawlercommons.fetcher.FetchedResult}, or exceptionally with a
+     * {@link crawlercommons.fetcher.BaseFetchException}. Cancelling the future
+     * aborts the request.
+     *
+     * @param url a string url for which to get content
+     * @param payload a populated {@link crawlercommons.fetcher.Payload}
+     * @return future for the result of the fetch
+     */
+    public CompletableFuture<FetchedResult> fetchAsync(String url, Payload payload) {
+        final MyFetch fetch = new MyFetch(url, payload);
+
+        URI uri;
+        try {
+            checkUrl(url);
+            uri = new URI(url);
+            init();
+        } catch (BaseFetchException e) {
+            fetch._result.completeExceptionally(e);
+            return fetch._result;
+        } catch (URISyntaxException e) {
+            fetch._result.completeExceptionally(new UrlFetchException(url, e.getMessage()));
+            return fetch._result;
+        }
+
+        LOGGER.trace("Fetching " + url);
+
+        // Enforce the fetch duration, even if the server stops sending data.
+        long fetchDurationTimeout = getFetchDurationTimeoutInSeconds();
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = _timer.schedule(() -> {
+                fetch.fail(new AbortedFetchException(url, "Fetch duration of " + fetchDurationTimeout + " sec exceeded", AbortedFetchReason.FETCH_DURATION_EXCEEDED));
+            }, fetchDurationTimeout, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // The fetcher is being closed.
+            fetch._result.completeExceptionally(new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED));
+            return fetch._result;
+        }
+
+        _inFlight.put(fetch, url);
+        fetch._result.whenComplete((r, t) -> {
+            timeout.cancel(false);
+            _inFlight.remove(fetch);
+            if (fetch._result.isCancelled()) {
+                fetch.cancel();
+            }
+        });
+
+        try {
+            fetch.send(uri);
+        } catch (IllegalArgumentException e) {
+            fetch.fail(new UrlFetchException(url, e.getMessage()));
+        }
+
+        return fetch._result;
+    }
+
+    private boolean isFollowedRedirect(int statusCode) {
+        if (getMaxRedirects() == 0) {
+            return false;
+        }
+
+        switch (statusCode) {
+            case HttpStatus.SC_MOVED_PERMANENTLY:
+            case HttpStatus.SC_MOVED_TEMPORARILY:
+            case HttpStatus.SC_SEE_OTHER:
+            case HttpStatus.SC_TEMPORARY_REDIRECT:
+            case 308:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private RedirectExceptionReason getDisallowedReason(int statusCode) {
+        if (getRedirectMode() == RedirectMode.FOLLOW_NONE) {
+            switch (statusCode) {
+                case HttpStatus.SC_MOVED_TEMPORARILY:
+                case HttpStatus.SC_TEMPORARY_REDIRECT:
+                    return RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+                case HttpStatus.SC_MOVED_PERMANENTLY:
+                case 308:
+                    return RedirectExceptionReason.PERM_REDIRECT_DISALLOWED;
+                case HttpStatus.SC_SEE_OTHER:
+                    return RedirectExceptionReason.SEE_OTHER_DISALLOWED;
+                default:
+            }
+        } else if (getRedirectMode() == RedirectMode.FOLLOW_TEMP) {
+            switch (statusCode) {
+                case HttpStatus.SC_MOVED_PERMANENTLY:
+                case 308:
+                    return RedirectExceptionReason.PERM_REDIRECT_DISALLOWED;
+                case HttpStatus.SC_SEE_OTHER:
+                    return RedirectExceptionReason.SEE_OTHER_DISALLOWED;
+                default:
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the address of the url's host without blocking, as the HttpClient
+     * doesn't expose the remote address of the connection.
+     * 
+     * @return the host's address, or an empty string if it isn't known
+     */
+    private String getHostAddress(URI uri) {
+        String host = uri.getHost();
+        if ((host == null) || (_proxy != null)) {
+            return "";
+        }
+
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+
+        if (InetAddressUtils.isIPv4Address(host) || InetAddressUtils.isIPv6Address(host)) {
+            return host;
+        }
+
+        CachingDnsResolver dnsResolver = _dnsResolver;
+        if (dnsResolver == null) {
+            return "";
+        }
+
+        CompletableFuture<InetAddress[]> addresses = dnsResolver.resolveAsync(host);
+        if (!addresses.isDone() || addresses.isCompletedExceptionally()) {
+            return "";
+        }
+
+        InetAddress[] result = addresses.join();
+        return (result.length == 0) ? "" : result[0].getHostAddress();
+    }
+
+    /**
+     * HTTP/2 header names are always lower-case, so convert them to the usual
+     * form (e.g. "content-type" to "Content-Type"), so that they can be looked
+     * up in the same way as for HTTP/1.1 responses.
+     */
+    private static String getHeaderName(String name) {
+        if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+            return name;
+        }
+
+        StringBuilder result = new StringBuilder(name.length());
+        boolean upper = true;
+        for (char c : name.toCharArray()) {
+            result.append(upper ? Character.toUpperCase(c) : c);
+            upper = (c == '-');
+        }
+
+        return result.toString();
+    }
+
+    private static BaseFetchException mapException(String url, Throwable t) {
+        while (((t instanceof CompletionException) || (t instanceof ExecutionException)) && (t.getCause() != null)) {
+            t = t.getCause();
+        }
+
+        if (t instanceof BaseFetchException) {
+            return (BaseFetchException) t;
+        } else if (t instanceof IOException) {
+            return new IOFetchException(url, (IOException) t);
+        } else {
+            // Map anything else to a generic IOFetchException
+            return new IOFetchException(url, new IOException(t));
+        }
+    }
+
+    private void init() {
+        if (_httpClient == null) {
+            synchronized (this) {
+                if (_httpClient != null)
+                    return;
+
+                _inFlight = new ConcurrentHashMap<>();
+                _executor = Executors.newFixedThreadPool(Math.max(1, _maxThreads), new DaemonThreadFactory("http2-fetcher"));
+                _timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("http2-fetcher-timer"));
+                _timer.setRemoveOnCancelPolicy(true);
+
+                if (_cookieHandler == null) {
+                    _cookieHandler = new CookieManager();
+                }
+
+                // We follow redirects ourselves, so that we can apply the
+                // redirect mode and record redirect details.
+                HttpClient.Builder httpClientBuilder = HttpClient.newBuilder() //
+                                .version(_httpVersion) //
+                                .followRedirects(HttpClient.Redirect.NEVER) //
+                                .connectTimeout(Duration.ofMillis(_connectionTimeout)) //
+                                .cookieHandler(_cookieHandler) //
+                                .executor(_executor);
+
+                SharedTlsContext tlsContext = getTlsContext();
+                if (tlsContext != null) {
+                    httpClientBuilder.sslContext(tlsContext.getSSLContext());
+                } else {
+                    LOGGER.warn("No valid SSLContext found for https");
+                }
+
+                if (_proxy != null) {
+                    LOGGER.info("Configuring fetcher to use _proxy: " + _proxy.toURI());
+                    httpClientBuilder.proxy(ProxySelector.of(new InetSocketAddress(_proxy.getHostName(), _proxy.getPort())));
+                }
+
+                _httpClient = httpClientBuilder.build();
+            }
+        }
+    }
+
+    /**
+     * Abort all fetches that are currently in progress. Each one completes
+     * with an {@link AbortedFetchException} (reason
+     * {@link AbortedFetchReason#INTERRUPTED}).
+     */
+    @Override
+    public void abort() {
+        Map<MyFetch, String> inFlight = _inFlight;
+        if (inFlight != null) {
+            for (MyFetch fetch : inFlight.keySet()) {
+                fetch.abort();
+            }
+        }
+    }
+
+    @Override
+    public boolean abort(String url) {
+        boolean aborted = false;
+        Map<MyFetch, String> inFlight = _inFlight;
+        if (inFlight != null) {
+            for (Map.Entry<MyFetch, String> entry : inFlight.entrySet()) {
+                if (entry.getValue().equals(url)) {
+                    entry.getKey().abort();
+                    aborted = true;
+                }
+            }
+        }
+
+        return aborted;
+    }
+
+    /**
+     * Abort any in-progress fetches, and stop the response processing
+     * threads. The HttpClient's connections are closed once it is garbage
+     * collected.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (_httpClient != null) {
+                abort();
+                _executor.shutdownNow();
+                _timer.shutdownNow();
+                _httpClient = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crawlercommons.util.DaemonThreadFactory;
+
+/**
+ * Periodically closes expired and idle connections for any number of
+ * connection managers, using a single background thread. Fetchers register
+ * their connection manager when they're initialized, and unregister it when
+ * they're closed.
+ *
+ * Connection managers are only weakly referenced, so a fetcher that's never
+ * closed doesn't stay reachable because of its registration.
+ *
+ * By default fetchers share the evictor returned by {@link #getDefault()}.
+ */
+public class IdleConnectionEvictor implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(IdleConnectionEvictor.class);
+
+    public static final long DEFAULT_CHECK_INTERVAL = 5 * 1000L;
+
+    private static IdleConnectionEvictor DEFAULT_EVICTOR = null;
+
+    private final ScheduledExecutorService _executor;
+    private final long _checkInterval;
+
+    // Connection manager => max idle time in milliseconds.
+    private final Map<Object, Long> _managers = Collections.synchronizedMap(new WeakHashMap<Object, Long>());
+
+    /**
+     * @return the evictor shared by all fetchers that haven't been given
+     *         their own
+     */
+    public static synchronized IdleConnectionEvictor getDefault() {
+        if (DEFAULT_EVICTOR == null) {
+            DEFAULT_EVICTOR = new IdleConnectionEvictor(DEFAULT_CHECK_INTERVAL);
+        }
+
+        return DEFAULT_EVICTOR;
+    }
+
+    /**
+     * @param checkInterval time in milliseconds between checks for idle
+     *        connections
+     */
+    public IdleConnectionEvictor(long checkInterval) {
+        _checkInterval = checkInterval;
+        _executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("idle-connection-evictor"));
+        _executor.scheduleWithFixedDelay(() -> evict(), checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public long getCheckInterval() {
+        return _checkInterval;
+    }
+
+    /**
+     * Start closing connections of <code>connectionManager</code> that have
+     * been idle for longer than <code>maxIdleTime</code>.
+     *
+     * @param connectionManager connection manager to check
+     * @param maxIdleTime max idle time in milliseconds
+     */
+    public void register(HttpClientConnectionManager connectionManager, long maxIdleTime) {
+        _managers.put(connectionManager, maxIdleTime);
+    }
+
+    /**
+     * Start closing connections of <code>connectionManager</code> that have
+     * been idle for longer than <code>maxIdleTime</code>.
+     *
+     * @param connectionManager connection manager to check
+     * @param maxIdleTime max idle time in milliseconds
+     */
+    public void register(NHttpClientConnectionManager connectionManager, long maxIdleTime) {
+        _managers.put(connectionManager, maxIdleTime);
+    }
+
+    /**
+     * @param connectionManager connection manager that's no longer checked
+     */
+    public void unregister(Object connectionManager) {
+        _managers.remove(connectionManager);
+    }
+
+    /**
+     * @return number of connection managers being checked
+     */
+    public int getNumRegistered() {
+        return _managers.size();
+    }
+
+    /**
+     * Stop checking for idle connections. Connection managers are left as is.
+     */
+    @Override
+    public void close() {
+        _executor.shutdownNow();
+        _managers.clear();
+    }
+
+    private void evict() {
+        List<Map.Entry<Object, Long>> managers;
+        synchronized (_managers) {
+            managers = new ArrayList<>(_managers.entrySet());
+        }
+
+        for (Map.Entry<Object, Long> entry : managers) {
+            Object manager = entry.getKey();
+            long maxIdleTime = entry.getValue();
+
+            try {
+                if (manager instanceof HttpClientConnectionManager) {
+                    ((HttpClientConnectionManager) manager).closeExpiredConnections();
+                    ((HttpClientConnectionManager) manager).closeIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS);
+                } else if (manager instanceof NHttpClientConnectionManager) {
+                    ((NHttpClientConnectionManager) manager).closeExpiredConnections();
+                    ((NHttpClientConnectionManager) manager).closeIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS);
+                }
+            } catch (RuntimeException e) {
+                // Don't let one bad connection manager stop eviction for all of
+                // them.
+                LOGGER.warn("Exception closing idle connections", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of local (source) addresses that outgoing connections are bound to,
+ * so that one machine can use all of the IP addresses assigned to it. This
+ * raises the number of connections that can be open at the same time (as
+ * each address has its own range of ephemeral ports), and spreads requests
+ * over the addresses for sites that rate-limit per client IP.
+ *
+ * Only addresses of the same family (IPv4 or IPv6) as the remote address are
+ * used for a connection; if there are none, the connection isn't bound.
+ *
+ * Connections are counted per local address, both in total and those that
+ * are still open.
+ */
+public class LocalAddressPool {
+
+    // Closed sockets are dropped from the open connection counts when the
+    // number of sockets for an address has doubled since the last time,
+    // but at most this often.
+    private static final int MIN_PRUNE_SIZE = 16;
+
+    /**
+     * How the local address for a connection is chosen.
+     */
+    public enum Strategy {
+        // Each address in turn.
+        ROUND_ROBIN,
+
+        // The same address for every connection to a given host, so the
+        // host always sees the same client IP.
+        HASHED_BY_HOST
+    }
+
+    private static class MyAddress {
+        private final InetAddress _address;
+        private final Set<Socket> _sockets = new HashSet<>();
+        private int _pruneSize = MIN_PRUNE_SIZE;
+        private long _numConnections = 0;
+
+        public MyAddress(InetAddress address) {
+            _address = address;
+        }
+
+        public void prune() {
+            Iterator<Socket> iter = _sockets.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().isClosed()) {
+                    iter.remove();
+                }
+            }
+
+            _pruneSize = Math.max(MIN_PRUNE_SIZE, 2 * _sockets.size());
+        }
+    }
+
+    private final Strategy _strategy;
+    private final List<MyAddress> _addresses = new ArrayList<>();
+    private int _nextIndex = 0;
+
+    /**
+     * @param strategy how local addresses are chosen for connections
+     */
+    public LocalAddressPool(Strategy strategy) {
+        _strategy = strategy;
+    }
+
+    public Strategy getStrategy() {
+        return _strategy;
+    }
+
+    /**
+     * @param address local address to bind connections to
+     */
+    public synchronized void addAddress(InetAddress address) {
+        if (findAddress(address) != null) {
+            throw new IllegalArgumentException("Address already in pool: " + address);
+        }
+
+        _addresses.add(new MyAddress(address));
+    }
+
+    public synchronized int getNumAddresses() {
+        return _addresses.size();
+    }
+
+    /**
+     * @param host name of the host being connected to
+     * @param remoteAddress address being connected to
+     * @return local address to bind the connection to, or null if there's
+     *         none of the right family
+     */
+    public synchronized InetAddress select(String host, InetAddress remoteAddress) {
+        boolean ipv6 = remoteAddress instanceof Inet6Address;
+        List<MyAddress> candidates = new ArrayList<>(_addresses.size());
+        for (MyAddress address : _addresses) {
+            if ((address._address instanceof Inet6Address) == ipv6) {
+                candidates.add(address);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        int index;
+        if (_strategy == Strategy.HASHED_BY_HOST) {
+            index = Math.floorMod(host.hashCode(), candidates.size());
+        } else {
+            index = Math.floorMod(_nextIndex++, candidates.size());
+        }
+
+        return candidates.get(index)._address;
+    }
+
+    /**
+     * Count a connection that was opened from <code>localAddress</code>.
+     *
+     * @param localAddress address the connection is bound to
+     * @param socket the connection's socket
+     */
+    public synchronized void onConnected(InetAddress localAddress, Socket socket) {
+        MyAddress address = findAddress(localAddress);
+        if (address == null) {
+            return;
+        }
+
+        address._numConnections += 1;
+        address._sockets.add(socket);
+        if (address._sockets.size() >= address._pruneSize) {
+            address.prune();
+        }
+    }
+
+    /**
+     * @param localAddress address in the pool
+     * @return number of connections from the address that are still open
+     */
+    public synchronized int getNumOpenConnections(InetAddress localAddress) {
+        MyAddress address = getAddress(localAddress);
+        address.prune();
+        return address._sockets.size();
+    }
+
+    /**
+     * @param localAddress address in the pool
+     * @return total number of connections that were opened from the address
+     */
+    public synchronized long getNumConnections(InetAddress localAddress) {
+        return getAddress(localAddress)._numConnections;
+    }
+
+    private MyAddress getAddress(InetAddress localAddress) {
+        MyAddress address = findAddress(localAddress);
+        if (address == null) {
+            throw new IllegalArgumentException("Address not in pool: " + localAddress);
+        }
+
+        return address;
+    }
+
+    private MyAddress findAddress(InetAddress localAddress) {
+        for (MyAddress address : _addresses) {
+            if (address._address.equals(localAddress)) {
+                return address;
+            }
+        }
+
+        return null;
+    }
+}
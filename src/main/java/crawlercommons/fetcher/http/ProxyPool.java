@@ -0,0 +1,391 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of forward proxies that requests are spread over, so throughput
+ * isn't limited by a single proxy. Each request gets a proxy via
+ * {@link #acquire(String)}, chosen by the pool's {@link Strategy}, and
+ * reports back via {@link #onSuccess(HttpHost, long)},
+ * {@link #onFailure(HttpHost)} or {@link #release(HttpHost)}.
+ *
+ * Every proxy has a health score between 0 and 1, based on the (smoothed)
+ * error rate and response latency seen through it. After
+ * <code>maxConsecutiveFailures</code> failures in a row a proxy is taken out
+ * of rotation for the retry interval; after that it gets requests again, and
+ * is taken out again on its next failure unless a request succeeds first. If
+ * all proxies are out of rotation, all of them are used.
+ *
+ * One pool can be shared by several fetchers.
+ */
+public class ProxyPool {
+    private static Logger LOGGER = LoggerFactory.getLogger(ProxyPool.class);
+
+    public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 3;
+    public static final long DEFAULT_RETRY_INTERVAL = 60 * 1000L;
+
+    // Weight of the newest sample in the error rate and latency moving
+    // averages.
+    private static final double SAMPLE_WEIGHT = 0.1;
+
+    // Latency (in milliseconds) at which a proxy's score is halved.
+    private static final double REFERENCE_LATENCY = 1000.0;
+
+    /**
+     * How the proxy for a request is chosen, from the proxies that are in
+     * rotation.
+     */
+    public enum Strategy {
+        // Each proxy in turn.
+        ROUND_ROBIN,
+
+        // The proxy with the fewest requests in flight, relative to its
+        // weight and health score.
+        LEAST_IN_FLIGHT,
+
+        // A random proxy, with odds based on its weight and health score.
+        WEIGHTED,
+
+        // The same proxy for every request to a given host, as long as it's
+        // in rotation.
+        STICKY_PER_HOST
+    }
+
+    private static class MyProxy {
+        private final HttpHost _proxy;
+        private final int _weight;
+
+        private int _inFlight = 0;
+        private double _errorRate = 0.0;
+        private double _latency = -1;
+        private int _consecutiveFailures = 0;
+        private long _disabledUntil = 0;
+
+        public MyProxy(HttpHost proxy, int weight) {
+            _proxy = proxy;
+            _weight = weight;
+        }
+
+        public double getScore() {
+            double latencyScore = (_latency < 0) ? 1.0 : REFERENCE_LATENCY / (REFERENCE_LATENCY + _latency);
+            return (1.0 - _errorRate) * latencyScore;
+        }
+
+        public boolean isInRotation(long now) {
+            return _disabledUntil <= now;
+        }
+    }
+
+    private final Strategy _strategy;
+    private final List<MyProxy> _proxies = new ArrayList<>();
+    private final Map<HttpHost, MyProxy> _proxyMap = new HashMap<>();
+    private int _nextIndex = 0;
+
+    private volatile int _maxConsecutiveFailures = DEFAULT_MAX_CONSECUTIVE_FAILURES;
+    private volatile long _retryInterval = DEFAULT_RETRY_INTERVAL;
+
+    /**
+     * @param strategy how proxies are chosen for requests
+     */
+    public ProxyPool(Strategy strategy) {
+        _strategy = strategy;
+    }
+
+    public Strategy getStrategy() {
+        return _strategy;
+    }
+
+    /**
+     * Add a proxy with a weight of 1.
+     *
+     * @param proxy proxy to add
+     */
+    public void addProxy(HttpHost proxy) {
+        addProxy(proxy, 1);
+    }
+
+    /**
+     * @param proxy proxy to add
+     * @param weight relative capacity of the proxy, used by the
+     *        {@link Strategy#LEAST_IN_FLIGHT} and {@link Strategy#WEIGHTED}
+     *        strategies
+     */
+    public synchronized void addProxy(HttpHost proxy, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+
+        if (_proxyMap.containsKey(proxy)) {
+            throw new IllegalArgumentException("Proxy already in pool: " + proxy);
+        }
+
+        MyProxy state = new MyProxy(proxy, weight);
+        _proxies.add(state);
+        _proxyMap.put(proxy, state);
+    }
+
+    /**
+     * @param maxConsecutiveFailures number of failures in a row that takes a
+     *        proxy out of rotation
+     */
+    public void setMaxConsecutiveFailures(int maxConsecutiveFailures) {
+        _maxConsecutiveFailures = maxConsecutiveFailures;
+    }
+
+    /**
+     * @param retryInterval time in milliseconds that a failing proxy is kept
+     *        out of rotation for
+     */
+    public void setRetryInterval(long retryInterval) {
+        _retryInterval = retryInterval;
+    }
+
+    /**
+     * Choose the proxy for a request to <code>host</code>. The caller must
+     * report the outcome of the request (or release the proxy) once it's
+     * done.
+     *
+     * @param host target host of the request
+     * @return the proxy to use
+     */
+    public synchronized HttpHost acquire(String host) {
+        if (_proxies.isEmpty()) {
+            throw new IllegalStateException("No proxies in pool");
+        }
+
+        long now = System.currentTimeMillis();
+        List<MyProxy> candidates = new ArrayList<>(_proxies.size());
+        for (MyProxy proxy : _proxies) {
+            if (proxy.isInRotation(now)) {
+                candidates.add(proxy);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            LOGGER.debug("All proxies are out of rotation, using all of them");
+            candidates = _proxies;
+        }
+
+        MyProxy chosen;
+        switch (_strategy) {
+            case ROUND_ROBIN:
+                chosen = candidates.get(Math.floorMod(_nextIndex++, candidates.size()));
+                break;
+
+            case LEAST_IN_FLIGHT:
+                chosen = selectLeastInFlight(candidates);
+                break;
+
+            case WEIGHTED:
+                chosen = selectWeighted(candidates);
+                break;
+
+            case STICKY_PER_HOST:
+                chosen = selectSticky(candidates, host);
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown strategy: " + _strategy);
+        }
+
+        chosen._inFlight += 1;
+        return chosen._proxy;
+    }
+
+    /**
+     * A request through <code>proxy</code> got a response.
+     *
+     * @param proxy proxy returned by {@link #acquire(String)}
+     * @param latency time in milliseconds until the response was received
+     */
+    public synchronized void onSuccess(HttpHost proxy, long latency) {
+        MyProxy state = release(proxy, 0.0);
+        if (state == null) {
+            return;
+        }
+
+        state._consecutiveFailures = 0;
+        state._disabledUntil = 0;
+        state._latency = (state._latency < 0) ? latency : (SAMPLE_WEIGHT * latency) + ((1.0 - SAMPLE_WEIGHT) * state._latency);
+    }
+
+    /**
+     * A request through <code>proxy</code> failed, e.g. because the proxy
+     * couldn't be reached or refused the request.
+     *
+     * @param proxy proxy returned by {@link #acquire(String)}
+     */
+    public synchronized void onFailure(HttpHost proxy) {
+        MyProxy state = release(proxy, 1.0);
+        if (state == null) {
+            return;
+        }
+
+        state._consecutiveFailures += 1;
+        if (state._consecutiveFailures >= _maxConsecutiveFailures) {
+            if (state.isInRotation(System.currentTimeMillis())) {
+                LOGGER.info("Taking proxy {} out of rotation after {} consecutive failures", proxy, state._consecutiveFailures);
+            }
+
+            state._disabledUntil = System.currentTimeMillis() + _retryInterval;
+        }
+    }
+
+    /**
+     * A request through <code>proxy</code> is done, without an outcome
+     * that says anything about the proxy (e.g. it was aborted).
+     *
+     * @param proxy proxy returned by {@link #acquire(String)}
+     */
+    public synchronized void release(HttpHost proxy) {
+        MyProxy state = _proxyMap.get(proxy);
+        if (state != null) {
+            state._inFlight = Math.max(0, state._inFlight - 1);
+        }
+    }
+
+    public synchronized int getNumProxies() {
+        return _proxies.size();
+    }
+
+    /**
+     * @return number of proxies that are in rotation
+     */
+    public synchronized int getNumInRotation() {
+        long now = System.currentTimeMillis();
+        int result = 0;
+        for (MyProxy proxy : _proxies) {
+            if (proxy.isInRotation(now)) {
+                result += 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param proxy proxy in the pool
+     * @return true if requests are currently sent to the proxy
+     */
+    public synchronized boolean isInRotation(HttpHost proxy) {
+        return getProxy(proxy).isInRotation(System.currentTimeMillis());
+    }
+
+    /**
+     * @param proxy proxy in the pool
+     * @return health score between 0 (bad) and 1 (good)
+     */
+    public synchronized double getScore(HttpHost proxy) {
+        return getProxy(proxy).getScore();
+    }
+
+    /**
+     * @param proxy proxy in the pool
+     * @return number of requests currently using the proxy
+     */
+    public synchronized int getInFlight(HttpHost proxy) {
+        return getProxy(proxy)._inFlight;
+    }
+
+    private MyProxy getProxy(HttpHost proxy) {
+        MyProxy state = _proxyMap.get(proxy);
+        if (state == null) {
+            throw new IllegalArgumentException("Proxy not in pool: " + proxy);
+        }
+
+        return state;
+    }
+
+    private MyProxy release(HttpHost proxy, double error) {
+        MyProxy state = _proxyMap.get(proxy);
+        if (state == null) {
+            return null;
+        }
+
+        state._inFlight = Math.max(0, state._inFlight - 1);
+        state._errorRate = (SAMPLE_WEIGHT * error) + ((1.0 - SAMPLE_WEIGHT) * state._errorRate);
+        return state;
+    }
+
+    private static MyProxy selectLeastInFlight(List<MyProxy> candidates) {
+        MyProxy result = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (MyProxy proxy : candidates) {
+            double load = (proxy._inFlight + 1) / (proxy._weight * Math.max(0.01, proxy.getScore()));
+            if (load < bestLoad) {
+                bestLoad = load;
+                result = proxy;
+            }
+        }
+
+        return result;
+    }
+
+    private static MyProxy selectWeighted(List<MyProxy> candidates) {
+        double total = 0.0;
+        for (MyProxy proxy : candidates) {
+            total += proxy._weight * Math.max(0.01, proxy.getScore());
+        }
+
+        double target = ThreadLocalRandom.current().nextDouble() * total;
+        for (MyProxy proxy : candidates) {
+            target -= proxy._weight * Math.max(0.01, proxy.getScore());
+            if (target < 0.0) {
+                return proxy;
+            }
+        }
+
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Rendezvous hashing, so a host only moves to another proxy when its
+     * own proxy goes out of rotation.
+     */
+    private static MyProxy selectSticky(List<MyProxy> candidates, String host) {
+        MyProxy result = null;
+        long bestHash = Long.MIN_VALUE;
+        for (MyProxy proxy : candidates) {
+            long hash = mix(((long) host.hashCode() << 32) | (proxy._proxy.hashCode() & 0xffffffffL));
+            if ((result == null) || (hash > bestHash)) {
+                bestHash = hash;
+                result = proxy;
+            }
+        }
+
+        return result;
+    }
+
+    private static long mix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+}
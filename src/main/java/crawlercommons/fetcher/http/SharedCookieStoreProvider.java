@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.impl.client.BasicCookieStore;
+
+/**
+ * {@link CookieStoreProvider} that hands out one thread-safe cookie store to
+ * every caller. Use this when requests aren't tied to a small, fixed set of
+ * threads (e.g. when they're executed by I/O dispatch threads, or by a
+ * thread-per-task executor), where a {@link ThreadLocal} store would either be
+ * shared by unrelated requests or created once per task.
+ */
+public class SharedCookieStoreProvider implements CookieStoreProvider {
+
+    private final CookieStore _cookieStore;
+
+    public SharedCookieStoreProvider() {
+        this(new BasicCookieStore());
+    }
+
+    /**
+     * @param cookieStore a cookie store that is safe for concurrent use
+     */
+    public SharedCookieStoreProvider(CookieStore cookieStore) {
+        _cookieStore = cookieStore;
+    }
+
+    @Override
+    public CookieStore get() {
+        return _cookieStore;
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.Closeable;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Creates {@link SimpleHttpFetcher}s that all share one connection pool and
+ * DNS resolver, for running many crawls (tenants) in one JVM. Keep-alive
+ * connections to a host are reused by every fetcher, rather than each one
+ * opening its own.
+ *
+ * Each fetcher has its own settings (user agent, redirect mode, max content
+ * sizes, etc.), and a cap on how many connections it can use at once, so one
+ * tenant can't starve the others. The max connections per host applies to
+ * the shared pool, i.e. across all tenants.
+ *
+ * Closing a fetcher only releases its own resources; the pool is shut down
+ * when the factory is closed.
+ */
+public class SharedFetcherFactory implements Closeable {
+
+    private final HappyEyeballsConnectionOperator _connectionOperator;
+    private final PoolingHttpClientConnectionManager _connectionManager;
+    private final DnsResolver _dnsResolver;
+    private final boolean _ownsResolver;
+    private final IdleConnectionEvictor _idleConnectionEvictor;
+
+    /**
+     * Create a factory that uses its own {@link CachingDnsResolver}.
+     *
+     * @param maxTotal max number of connections, across all fetchers
+     * @param maxPerHost max number of connections to any one host, across all
+     *        fetchers
+     */
+    public SharedFetcherFactory(int maxTotal, int maxPerHost) {
+        this(maxTotal, maxPerHost, new CachingDnsResolver(), true);
+    }
+
+    /**
+     * @param maxTotal max number of connections, across all fetchers
+     * @param maxPerHost max number of connections to any one host, across all
+     *        fetchers
+     * @param dnsResolver resolver for host names; this isn't closed when the
+     *        factory is closed
+     */
+    public SharedFetcherFactory(int maxTotal, int maxPerHost, DnsResolver dnsResolver) {
+        this(maxTotal, maxPerHost, dnsResolver, false);
+    }
+
+    private SharedFetcherFactory(int maxTotal, int maxPerHost, DnsResolver dnsResolver, boolean ownsResolver) {
+        _dnsResolver = dnsResolver;
+        _ownsResolver = ownsResolver;
+
+        _connectionOperator = SimpleHttpFetcher.createConnectionOperator(dnsResolver, SharedTlsContext.getDefault(), null);
+        _connectionManager = SimpleHttpFetcher.createConnectionManager(_connectionOperator);
+        _connectionManager.setMaxTotal(maxTotal);
+        _connectionManager.setDefaultMaxPerRoute(maxPerHost);
+
+        _idleConnectionEvictor = IdleConnectionEvictor.getDefault();
+        _idleConnectionEvictor.register(_connectionManager, BaseHttpFetcher.DEFAULT_MAX_IDLE_TIME);
+    }
+
+    /**
+     * Create a fetcher that uses the shared pool and resolver. The fetcher
+     * can be configured as usual before it's first used, except for the
+     * connection pool settings (max connections per host, DNS resolver,
+     * idle time).
+     *
+     * @param maxConnections max number of connections this fetcher can use
+     *        at the same time
+     * @param userAgent user agent for the fetcher
+     * @return the new fetcher
+     */
+    public SimpleHttpFetcher newFetcher(int maxConnections, UserAgent userAgent) {
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(maxConnections, userAgent);
+        fetcher.setSharedConnectionManager(_connectionManager);
+        fetcher.setDnsResolver(_dnsResolver);
+        return fetcher;
+    }
+
+    public DnsResolver getDnsResolver() {
+        return _dnsResolver;
+    }
+
+    /**
+     * @return current usage of the shared pool
+     */
+    public PoolStats getTotalStats() {
+        return _connectionManager.getTotalStats();
+    }
+
+    /**
+     * Shut down the shared pool. Fetchers created by this factory can't be
+     * used after this.
+     */
+    @Override
+    public void close() {
+        _idleConnectionEvictor.unregister(_connectionManager);
+        _connectionManager.shutdown();
+        _connectionOperator.close();
+        if (_ownsResolver) {
+            ((CachingDnsResolver) _dnsResolver).close();
+        }
+    }
+}
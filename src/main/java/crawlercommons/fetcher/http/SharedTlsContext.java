@@ -0,0 +1,199 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+
+/**
+ * One {@link SSLContext} (and so one TLS session cache) shared by fetchers,
+ * so that connections to a host that was fetched from before can resume the
+ * earlier TLS session, rather than doing a full handshake. The JDK resumes
+ * sessions using session IDs (TLS 1.2) or session tickets (TLS 1.3, and TLS
+ * 1.2 if enabled via the <code>jdk.tls.client.enableSessionTicketExtension</code>
+ * system property), keyed by host and port.
+ *
+ * Handshakes done via {@link #getSocketFactory()} and
+ * {@link #getIOSessionStrategy()} are counted, so the resumption rate can be
+ * monitored.
+ *
+ * By default fetchers use the context returned by {@link #getDefault()},
+ * which trusts all certificates and doesn't verify host names.
+ */
+public class SharedTlsContext {
+
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+    public static final int DEFAULT_SESSION_TIMEOUT_IN_SECONDS = 24 * 60 * 60;
+
+    private static final String HANDSHAKE_START_TIME_KEY = "crawlercommons.tls.handshake-start-time";
+
+    private static SharedTlsContext DEFAULT_CONTEXT = null;
+
+    private class MySSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+
+        public MySSLConnectionSocketFactory() {
+            super(_sslContext, NoopHostnameVerifier.INSTANCE);
+        }
+
+        @Override
+        protected void prepareSocket(SSLSocket socket) throws IOException {
+            final long startTime = System.currentTimeMillis();
+            socket.addHandshakeCompletedListener(event -> recordHandshake(event.getSession(), startTime));
+        }
+    }
+
+    private class MySSLIOSessionStrategy extends SSLIOSessionStrategy {
+
+        public MySSLIOSessionStrategy() {
+            super(_sslContext, NoopHostnameVerifier.INSTANCE);
+        }
+
+        @Override
+        public SSLIOSession upgrade(HttpHost host, IOSession iosession) throws IOException {
+            iosession.setAttribute(HANDSHAKE_START_TIME_KEY, System.currentTimeMillis());
+            return super.upgrade(host, iosession);
+        }
+
+        @Override
+        protected void verifySession(HttpHost host, IOSession iosession, SSLSession sslsession) throws SSLException {
+            super.verifySession(host, iosession, sslsession);
+            Long startTime = (Long) iosession.getAttribute(HANDSHAKE_START_TIME_KEY);
+            if (startTime != null) {
+                recordHandshake(sslsession, startTime);
+            }
+        }
+    }
+
+    private final SSLContext _sslContext;
+    private final SSLConnectionSocketFactory _socketFactory;
+    private final SSLIOSessionStrategy _ioSessionStrategy;
+
+    private final AtomicLong _numFullHandshakes = new AtomicLong();
+    private final AtomicLong _numResumedHandshakes = new AtomicLong();
+
+    /**
+     * @return the context shared by all fetchers that haven't been given
+     *         their own, or null if no SSLContext could be created
+     */
+    public static synchronized SharedTlsContext getDefault() {
+        if (DEFAULT_CONTEXT == null) {
+            SSLContext sslContext = SimpleHttpFetcher.createSSLContext();
+            if (sslContext != null) {
+                DEFAULT_CONTEXT = new SharedTlsContext(sslContext);
+            }
+        }
+
+        return DEFAULT_CONTEXT;
+    }
+
+    /**
+     * @param sslContext context to share, e.g. one with a real trust store;
+     *        its session cache is set to the default size and timeout
+     */
+    public SharedTlsContext(SSLContext sslContext) {
+        _sslContext = sslContext;
+        setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        setSessionTimeout(DEFAULT_SESSION_TIMEOUT_IN_SECONDS);
+
+        _socketFactory = new MySSLConnectionSocketFactory();
+        _ioSessionStrategy = new MySSLIOSessionStrategy();
+    }
+
+    public SSLContext getSSLContext() {
+        return _sslContext;
+    }
+
+    /**
+     * @return socket factory for blocking (HttpClient) connections
+     */
+    public SSLConnectionSocketFactory getSocketFactory() {
+        return _socketFactory;
+    }
+
+    /**
+     * @return session strategy for non-blocking (HttpAsyncClient)
+     *         connections
+     */
+    public SSLIOSessionStrategy getIOSessionStrategy() {
+        return _ioSessionStrategy;
+    }
+
+    /**
+     * @param sessionCacheSize max number of TLS sessions (roughly, hosts) to
+     *        keep for resumption, or 0 for no limit
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        getSessionContext().setSessionCacheSize(sessionCacheSize);
+    }
+
+    public int getSessionCacheSize() {
+        return getSessionContext().getSessionCacheSize();
+    }
+
+    /**
+     * @param sessionTimeout how long a TLS session can be resumed for, in
+     *        seconds (servers may limit this further)
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        getSessionContext().setSessionTimeout(sessionTimeout);
+    }
+
+    public int getSessionTimeout() {
+        return getSessionContext().getSessionTimeout();
+    }
+
+    /**
+     * @return number of handshakes that created a new session
+     */
+    public long getNumFullHandshakes() {
+        return _numFullHandshakes.get();
+    }
+
+    /**
+     * @return number of handshakes that resumed an earlier session
+     */
+    public long getNumResumedHandshakes() {
+        return _numResumedHandshakes.get();
+    }
+
+    private SSLSessionContext getSessionContext() {
+        return _sslContext.getClientSessionContext();
+    }
+
+    private void recordHandshake(SSLSession session, long startTime) {
+        // A resumed session keeps the creation time of the session it
+        // resumed.
+        if (session.getCreationTime() < startTime) {
+            _numResumedHandshakes.incrementAndGet();
+        } else {
+            _numFullHandshakes.incrementAndGet();
+        }
+    }
+}
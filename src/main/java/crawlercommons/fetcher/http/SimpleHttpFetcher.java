@@ -16,24 +16,48 @@
 
 package crawlercommons.fetcher.http;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.TrustManager;
@@ -51,6 +75,7 @@ import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -66,17 +91,26 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.RouteInfo;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.protocol.BasicHttpContext;
@@ -89,86 +123,235 @@ import org.slf4j.LoggerFactory;
 
 import crawlercommons.fetcher.AbortedFetchException;
 import crawlercommons.fetcher.AbortedFetchReason;
-import crawlercommons.fetcher.BadProtocolFetchException;
 import crawlercommons.fetcher.BaseFetchException;
+import crawlercommons.fetcher.BodyConsumer;
+import crawlercommons.fetcher.CircuitOpenFetchException;
+import crawlercommons.fetcher.ConsumerFetchException;
 import crawlercommons.fetcher.FetchedResult;
 import crawlercommons.fetcher.IOFetchException;
 import crawlercommons.fetcher.Payload;
 import crawlercommons.fetcher.RedirectFetchException;
 import crawlercommons.fetcher.RedirectFetchException.RedirectExceptionReason;
 import crawlercommons.fetcher.UrlFetchException;
-import crawlercommons.util.EncodingUtils;
-import crawlercommons.util.EncodingUtils.ExpandedResult;
+import crawlercommons.util.BufferPool;
+import crawlercommons.util.BufferPool.BodyBuffer;
+import crawlercommons.util.DaemonThreadFactory;
+import crawlercommons.util.DirectBufferPool;
 import crawlercommons.util.Headers;
 
 /**
  */
 @SuppressWarnings("serial")
-public class SimpleHttpFetcher extends BaseHttpFetcher {
+public class SimpleHttpFetcher extends BaseHttpFetcher implements Closeable {
     private static Logger LOGGER = LoggerFactory.getLogger(SimpleHttpFetcher.class);
 
-    // We tried 10 seconds for all of these, but got a number of connection/read
-    // timeouts for
-    // sites that would have eventually worked, so bumping it up to 30 seconds.
-    private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
-
-    // As of HttpComponents v.4.2.1, this will also include timeout needed to
-    // get Connection from Pool.
-    // From initial comment of the deprecated 'CONNECTION_POOL_TIMEOUT' static
-    // element:
-    // "This normally doesn't ever hit this timeout, since we manage the number
-    // of
-    // fetcher threads to be <= the maxThreads value used to configure a
-    // HttpFetcher. However the limit of connections/host can cause a timeout,
-    // when redirects cause multiple threads to hit the same domain.
-    // We therefore jack this right up."
-    private static final int DEFAULT_CONNECTION_TIMEOUT = 100 * 1000;
-
     private static final int DEFAULT_MAX_THREADS = 1;
 
-    private static final int BUFFER_SIZE = 8 * 1024;
     private static final int DEFAULT_MAX_RETRY_COUNT = 10;
 
-    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+    // Spill threshold meaning bodies are always kept in memory.
+    public static final int NO_SPILL = -1;
 
-    // Use the same values as Firefox (except that we don't accept deflate,
-    // which we're not sure is implemented correctly - see the notes in
-    // EncodingUtils/EncodingUtilsTest for more details).
-    private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
-    private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
-    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+    private static final String SPILL_FILE_PREFIX = "fetched-";
+    private static final String SPILL_FILE_SUFFIX = ".body";
 
     // Keys used to access data in the Http execution context.
-    private static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
-    private static final String REDIRECT_COUNT_CONTEXT_KEY = "redirect-count";
-    private static final String HOST_ADDRESS = "host-address";
+    static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
+    static final String REDIRECT_COUNT_CONTEXT_KEY = "redirect-count";
+    static final String HOST_ADDRESS = "host-address";
+    static final String CONNECTION_REUSED = "connection-reused";
+    static final String PROXY_CONTEXT_KEY = "proxy";
 
     // To be polite, set it small; if we use it, we will use less than a second
     // delay between subsequent fetches
     private static final int DEFAULT_KEEP_ALIVE_DURATION = 5000;
 
-    private IdleConnectionMonitorThread monitor;
-
     private CookieStoreProvider cookieStoreProvider = new ThreadLocalCookieStoreProvider();
 
     private static final String SSL_CONTEXT_NAMES[] = { "TLS", "Default", "SSL", };
 
-    private static final String TEXT_MIME_TYPES[] = { "text/html", "application/x-asp", "application/xhtml+xml", "application/vnd.wap.xhtml+xml", };
-
     private HttpVersion _httpVersion;
     private int _socketTimeout;
     private int _connectionTimeout;
     private int _connectionRequestTimeout;
     private int _maxRetryCount;
+    private boolean _deferredRetries;
+    private int _spillThreshold = NO_SPILL;
+    private File _spillDirectory;
+
+    transient private DnsResolver _dnsResolver;
+    private int _minAdaptiveConnectionsPerHost;
+    private int _maxAdaptiveConnectionsPerHost;
 
-    transient private CloseableHttpClient _httpClient;
+    transient private volatile CloseableHttpClient _httpClient;
     transient private PoolingHttpClientConnectionManager _connectionManager;
+    transient private HappyEyeballsConnectionOperator _connectionOperator;
+    transient private PoolingHttpClientConnectionManager _sharedConnectionManager;
+    transient private Semaphore _tenantPermits;
+    transient private ExecutorService _warmUpExecutor;
+    transient private AdaptivePoolSizer _poolSizer;
+    transient private volatile CircuitBreaker _circuitBreaker;
+    transient private volatile AdaptiveTimeoutPolicy _timeoutPolicy;
+    transient private ProxyPool _proxyPool;
+    transient private LocalAddressPool _localAddressPool;
+    transient private HedgePolicy _hedgePolicy;
+    transient private volatile DirectBufferPool _directBufferPool;
+    transient private volatile ScheduledExecutorService _hedgeTimer;
+    transient private volatile ExecutorService _hedgeExecutor;
+    transient private RequestConfig _defaultRequestConfig;
+
+    // Requests currently being processed, mapped to the url being fetched, so
+    // that they can be aborted.
+    transient private Map<HttpRequestBase, String> _inFlight;
+
+    /**
+     * The two requests of a hedged GET. Whichever gets its response headers
+     * first wins, and the other one is aborted.
+     */
+    private static class MyHedge {
+        private final HedgePolicy _policy;
+        private final AtomicReference<MyHedgedGet> _winner = new AtomicReference<>();
+        private final MyHedgedGet _primary = new MyHedgedGet(this);
+        private volatile MyHedgedGet _secondary;
+
+        // Result of the secondary request, or null if it wasn't sent.
+        private final CompletableFuture<FetchedResult> _secondaryResult = new CompletableFuture<>();
+
+        public MyHedge(HedgePolicy policy) {
+            _policy = policy;
+        }
+    }
+
+    private static class MyHedgedGet extends HttpGet {
+        private final MyHedge _hedge;
+
+        public MyHedgedGet(MyHedge hedge) {
+            _hedge = hedge;
+        }
+
+        /**
+         * @return true if this request got its response headers first, and
+         *         so should be used
+         */
+        public boolean onHeaders() {
+            if (!_hedge._winner.compareAndSet(null, this)) {
+                return _hedge._winner.get() == this;
+            }
+
+            MyHedgedGet other;
+            if (this == _hedge._primary) {
+                other = _hedge._secondary;
+            } else {
+                other = _hedge._primary;
+                _hedge._policy.onHedgeWin();
+            }
+
+            safeAbort(true, other);
+            return true;
+        }
+    }
+
+    /**
+     * Keeps a body in memory until it's bigger than the spill threshold, and
+     * then writes it (and the rest of the body) to a temp file.
+     */
+    private static class MySpillConsumer implements BodyConsumer {
+        private final int _threshold;
+        private final File _directory;
+        private final BufferPool _bufferPool = BufferPool.get();
+        private BodyBuffer _buffer;
+        private Path _file;
+        private FileChannel _channel;
+
+        public MySpillConsumer(int threshold, File directory) {
+            _threshold = threshold;
+            _directory = directory;
+            _buffer = _bufferPool.acquireBodyBuffer(threshold);
+        }
+
+        @Override
+        public void consume(ByteBuffer chunk) throws IOException {
+            if (_channel == null) {
+                if (_buffer.size() + chunk.remaining() <= _threshold) {
+                    _buffer.write(chunk);
+                    return;
+                }
+
+                if (_directory == null) {
+                    _file = Files.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+                } else {
+                    _file = Files.createTempFile(_directory.toPath(), SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+                }
+
+                _channel = FileChannel.open(_file, StandardOpenOption.WRITE);
+                writeFully(_buffer.asByteBuffer());
+                _bufferPool.releaseBodyBuffer(_buffer);
+                _buffer = null;
+            }
+
+            writeFully(chunk);
+        }
+
+        private void writeFully(ByteBuffer chunk) throws IOException {
+            while (chunk.hasRemaining()) {
+                _channel.write(chunk);
+            }
+        }
+
+        /**
+         * @return the body, or null if it was written to a file
+         */
+        public byte[] getContent() {
+            return (_buffer == null) ? null : _buffer.toByteArray();
+        }
+
+        /**
+         * @return the file the body was written to, or null if it's in memory
+         */
+        public Path finish() throws IOException {
+            if (_channel != null) {
+                _channel.close();
+            }
+
+            return _file;
+        }
+
+        /**
+         * @param delete true to delete the file (if any), because the fetch
+         *        failed
+         */
+        public void close(boolean delete) {
+            if (_buffer != null) {
+                _bufferPool.releaseBodyBuffer(_buffer);
+                _buffer = null;
+            }
+
+            safeClose(_channel);
+            if (delete) {
+                deleteSpillFile(_file);
+            }
+        }
+    }
+
+    private static void deleteSpillFile(Path file) {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Can't delete spill file " + file, e);
+        }
+    }
 
     private static class MyRequestRetryHandler implements HttpRequestRetryHandler {
         private int _maxRetryCount;
+        private boolean _deferredRetries;
 
-        public MyRequestRetryHandler(int maxRetryCount) {
+        public MyRequestRetryHandler(int maxRetryCount, boolean deferredRetries) {
             _maxRetryCount = maxRetryCount;
+            _deferredRetries = deferredRetries;
         }
 
         @Override
@@ -181,11 +364,17 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                 // Do not retry if over max retry count
                 return false;
             } else if (exception instanceof NoHttpResponseException) {
-                // Retry if the server dropped connection on us
-                return true;
+                // Retry if the server dropped connection on us. With deferred
+                // retries, only do this once, and only if the connection was
+                // a reused (and so possibly stale) one; otherwise the server
+                // itself is failing.
+                return !_deferredRetries || ((executionCount < 2) && Boolean.TRUE.equals(context.getAttribute(CONNECTION_REUSED)));
             } else if (exception instanceof SSLHandshakeException) {
                 // Do not retry on SSL handshake exception
                 return false;
+            } else if (_deferredRetries) {
+                // Leave it to the caller to retry later
+                return false;
             }
 
             HttpRequest request = (HttpRequest) context.getAttribute(HttpCoreContext.HTTP_REQUEST);
@@ -195,7 +384,7 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         }
     }
 
-    private static class MyRedirectException extends RedirectException {
+    static class MyRedirectException extends RedirectException {
 
         private URI _uri;
         private RedirectExceptionReason _reason;
@@ -219,7 +408,7 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
      * Handler to record last permanent redirect (if any) in context.
      * 
      */
-    private static class MyRedirectStrategy extends DefaultRedirectStrategy {
+    static class MyRedirectStrategy extends DefaultRedirectStrategy {
 
         private RedirectMode _redirectMode;
 
@@ -310,19 +499,76 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
     }
 
     /**
-     * HttpExecutor to record host address in context.
+     * Route planner that gets the proxy for each request (and each redirect)
+     * from a {@link ProxyPool}, and saves it in the context so the outcome
+     * can be reported.
+     */
+    private static class MyProxyRoutePlanner extends DefaultRoutePlanner {
+        private final ProxyPool _proxyPool;
+
+        public MyProxyRoutePlanner(ProxyPool proxyPool) {
+            super(null);
+
+            _proxyPool = proxyPool;
+        }
+
+        @Override
+        protected HttpHost determineProxy(HttpHost target, HttpRequest request, HttpContext context) throws HttpException {
+            // The proxy used for the previous hop of a redirect is done.
+            HttpHost previousProxy = (HttpHost) context.removeAttribute(PROXY_CONTEXT_KEY);
+            if (previousProxy != null) {
+                _proxyPool.release(previousProxy);
+            }
+
+            HttpHost proxy = _proxyPool.acquire(target.getHostName().toLowerCase(Locale.ROOT));
+            context.setAttribute(PROXY_CONTEXT_KEY, proxy);
+            return proxy;
+        }
+    }
+
+    /**
+     * HttpExecutor to record host address (and whether the connection had
+     * been used before) in context, and the connect time and time to first
+     * byte of each hop (e.g. each redirect) for the hop's host.
      */
-    static class MyHttpRequestExecutor extends HttpRequestExecutor {
+    class MyHttpRequestExecutor extends HttpRequestExecutor {
         @Override
         public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
             HttpInetConnection connection = (HttpInetConnection) conn;
             context.setAttribute(HOST_ADDRESS, connection.getRemoteAddress().getHostAddress());
-            return super.execute(request, conn, context);
+            context.setAttribute(CONNECTION_REUSED, conn.getMetrics().getRequestCount() > 0);
+            long startTime = System.currentTimeMillis();
+            HttpResponse response = super.execute(request, conn, context);
+            recordTimings(request, context, System.currentTimeMillis() - startTime);
+            return response;
         }
 
     }
 
-    private static class DummyX509TrustManager implements X509TrustManager {
+    /**
+     * Interceptor to set the timeouts of each hop (e.g. each redirect) from
+     * the timeout policy (if any), for the hop's host. It runs before the
+     * connection for the hop is opened.
+     */
+    class MyTimeoutInterceptor implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            AdaptiveTimeoutPolicy timeoutPolicy = _timeoutPolicy;
+            HttpClientContext clientContext = HttpClientContext.adapt(context);
+            HttpHost target = clientContext.getTargetHost();
+            if ((timeoutPolicy == null) || (target == null)) {
+                return;
+            }
+
+            String host = target.getHostName().toLowerCase(Locale.ROOT);
+            RequestConfig.Builder configBuilder = RequestConfig.copy(clientContext.getRequestConfig());
+            configBuilder.setConnectTimeout(timeoutPolicy.getConnectTimeout(host, _connectionTimeout));
+            configBuilder.setSocketTimeout(timeoutPolicy.getSocketTimeout(host, _socketTimeout));
+            clientContext.setRequestConfig(configBuilder.build());
+        }
+    }
+
+    static class DummyX509TrustManager implements X509TrustManager {
 
         /**
          * Constructor for DummyX509TrustManager.
@@ -387,6 +633,10 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         }
     }
 
+    /**
+     * @deprecated Fetchers now use a shared {@link IdleConnectionEvictor}.
+     */
+    @Deprecated
     public static class IdleConnectionMonitorThread extends Thread {
 
         private final HttpClientConnectionManager connMgr;
@@ -491,6 +741,92 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         _maxRetryCount = maxRetryCount;
     }
 
+    /**
+     * Don't retry failed requests right away, from the calling thread, except
+     * (once) when a reused keep-alive connection turns out to have been closed
+     * by the server. Other failures are thrown, so they can be retried later
+     * with a backoff delay, e.g. by a
+     * {@link crawlercommons.fetcher.FetchScheduler} with a
+     * {@link crawlercommons.fetcher.RetryPolicy}.
+     * 
+     * @param deferredRetries true to leave retries to the caller
+     */
+    public void setDeferredRetries(boolean deferredRetries) {
+        if (_httpClient != null) {
+            throw new IllegalStateException("Can't change retry mode after HttpClient has been initialized");
+        }
+
+        _deferredRetries = deferredRetries;
+    }
+
+    public boolean isDeferredRetries() {
+        return _deferredRetries;
+    }
+
+    /**
+     * Write bodies bigger than <code>threshold</code> bytes to temp files,
+     * instead of keeping them in memory, so that a high max content size
+     * (e.g. for PDFs) doesn't mean each fetch can use that much heap. The
+     * body of such a result is available via
+     * {@link FetchedResult#getContentStream()} or
+     * {@link FetchedResult#mapContent()}, and the caller must delete its
+     * file (see {@link FetchedResult#close()}). As with bodies kept in
+     * memory, compressed bodies are expanded (into a new file) unless
+     * decoding is turned off via {@link #setDecodeContent(boolean)}.
+     * 
+     * @param threshold max body size in bytes to keep in memory, or
+     *        {@link #NO_SPILL} (the default) to always keep bodies in memory
+     * @param directory where to create the files, or null for the default
+     *        temp directory
+     */
+    public void setSpillToDisk(int threshold, File directory) {
+        if ((threshold < 0) && (threshold != NO_SPILL)) {
+            throw new IllegalArgumentException("Invalid spill threshold: " + threshold);
+        }
+
+        _spillThreshold = threshold;
+        _spillDirectory = directory;
+    }
+
+    public int getSpillThreshold() {
+        return _spillThreshold;
+    }
+
+    public File getSpillDirectory() {
+        return _spillDirectory;
+    }
+
+    /**
+     * Keep bodies that are held in memory in direct (off-heap) buffers from
+     * <code>directBufferPool</code>, instead of byte arrays, so that results
+     * waiting in queues don't fill up the Java heap's old generation. Such
+     * results should be closed once they've been processed, to give their
+     * buffers back to the pool. Their bodies can be read without copying via
+     * {@link FetchedResult#getContentStream()} or
+     * {@link FetchedResult#mapContentUnsafe()};
+     * {@link FetchedResult#getContent()} and
+     * {@link FetchedResult#mapContent()} still work, but copy the body onto
+     * the heap. The pool can be shared with other fetchers.
+     * 
+     * @param directBufferPool pool to use, or null (the default) to keep
+     *        bodies in byte arrays
+     */
+    public void setDirectBufferPool(DirectBufferPool directBufferPool) {
+        _directBufferPool = directBufferPool;
+    }
+
+    public DirectBufferPool getDirectBufferPool() {
+        return _directBufferPool;
+    }
+
+    /**
+     * Set the provider of the cookie store used for each request. By default
+     * every fetch thread gets its own store; use a
+     * {@link SharedCookieStoreProvider} when fetches are run by short-lived
+     * (e.g. thread-per-task) threads.
+     * 
+     * @param cookieStoreProvider provider of cookie stores
+     */
     public void setCookieStoreProvider(CookieStoreProvider cookieStoreProvider) {
         this.cookieStoreProvider = cookieStoreProvider;
     }
@@ -499,26 +835,342 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         return cookieStoreProvider;
     }
 
-    @Override
-    public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+    /**
+     * Set the resolver used to look up host names for new connections, e.g.
+     * a {@link CachingDnsResolver}. By default the system resolver is used.
+     * 
+     * @param dnsResolver resolver for host names
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (_httpClient == null) {
+            _dnsResolver = dnsResolver;
+        } else {
+            throw new IllegalStateException("Can't change DNS resolver after HttpClient has been initialized");
+        }
+    }
+
+    public DnsResolver getDnsResolver() {
+        return _dnsResolver;
+    }
+
+    /**
+     * Use <code>connectionManager</code> instead of creating a connection
+     * pool for this fetcher. The pool isn't shut down when this fetcher is
+     * closed.
+     * 
+     * @param connectionManager pool shared with other fetchers
+     */
+    void setSharedConnectionManager(PoolingHttpClientConnectionManager connectionManager) {
+        if (_httpClient != null) {
+            throw new IllegalStateException("Can't change connection pool after HttpClient has been initialized");
+        }
+
+        _sharedConnectionManager = connectionManager;
+    }
+
+    /**
+     * Let the max number of connections to each host vary at runtime between
+     * <code>minPerHost</code> and <code>maxPerHost</code>, depending on the
+     * latency, errors and queued requests for that host (see
+     * {@link AdaptivePoolSizer}). Hosts start at the limit set via
+     * {@link #setMaxConnectionsPerHost(int)}. Note that the total number of
+     * connections is still limited by the number of threads. This isn't
+     * supported for fetchers that share a pool (see
+     * {@link SharedFetcherFactory}).
+     * 
+     * @param minPerHost lowest limit for any host
+     * @param maxPerHost highest limit for any host
+     */
+    public void setAdaptiveConnectionsPerHost(int minPerHost, int maxPerHost) {
+        if (_httpClient != null) {
+            throw new IllegalStateException("Can't change connections per host after HttpClient has been initialized");
+        }
+
+        if (_sharedConnectionManager != null) {
+            throw new IllegalStateException("Connections per host are set by the SharedFetcherFactory");
+        }
+
+        if ((minPerHost < 1) || (maxPerHost < minPerHost)) {
+            throw new IllegalArgumentException("Invalid connections per host range: " + minPerHost + " to " + maxPerHost);
+        }
+
+        _minAdaptiveConnectionsPerHost = minPerHost;
+        _maxAdaptiveConnectionsPerHost = maxPerHost;
+    }
+
+    /**
+     * @return the sizer that adjusts connections per host, or null if
+     *         adaptive sizing isn't enabled or the fetcher hasn't been used
+     *         yet
+     */
+    public AdaptivePoolSizer getPoolSizer() {
+        return _poolSizer;
+    }
+
+    /**
+     * Fail fast on hosts that are down, by rejecting requests to a host with
+     * a {@link CircuitOpenFetchException} after too many consecutive
+     * {@link IOFetchException}s (connection refused, timeouts, etc). See
+     * {@link CircuitBreaker}. The breaker can be shared with other fetchers.
+     * 
+     * @param circuitBreaker breaker to use, or null (the default) to always
+     *        make requests
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        _circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return _circuitBreaker;
+    }
+
+    /**
+     * Use per-host connect and socket timeouts, based on the latencies seen
+     * for each host, instead of the timeouts set via
+     * {@link #setConnectionTimeout(int)} and {@link #setSocketTimeout(int)}.
+     * Those are still used for hosts that haven't been fetched from often
+     * enough yet. See {@link AdaptiveTimeoutPolicy}. The policy can be shared
+     * with other fetchers.
+     * 
+     * @param timeoutPolicy policy to use, or null (the default) for fixed
+     *        timeouts
+     */
+    public void setTimeoutPolicy(AdaptiveTimeoutPolicy timeoutPolicy) {
+        _timeoutPolicy = timeoutPolicy;
+    }
+
+    public AdaptiveTimeoutPolicy getTimeoutPolicy() {
+        return _timeoutPolicy;
+    }
+
+    /**
+     * Spread requests over a pool of proxies, instead of using the single
+     * proxy set via {@link #setProxy(String, String, int)} (which is ignored
+     * if a pool is set). Each proxy's health is tracked, and failing proxies
+     * are taken out of rotation. The pool can be shared with other
+     * fetchers.
+     * 
+     * @param proxyPool proxies to use
+     */
+    public void setProxyPool(ProxyPool proxyPool) {
+        if (_httpClient != null) {
+            throw new IllegalStateException("Can't change proxy pool after HttpClient has been initialized");
+        }
+
+        _proxyPool = proxyPool;
+    }
+
+    public ProxyPool getProxyPool() {
+        return _proxyPool;
+    }
+
+    /**
+     * Bind outgoing connections to local addresses from
+     * <code>localAddressPool</code>, e.g. to use all of the IP addresses of
+     * a machine. This isn't supported for fetchers that share a pool (see
+     * {@link SharedFetcherFactory}).
+     * 
+     * @param localAddressPool local addresses to use, or null (the default)
+     *        to let the system pick
+     */
+    public void setLocalAddressPool(LocalAddressPool localAddressPool) {
+        if (_httpClient != null) {
+            throw new IllegalStateException("Can't change local addresses after HttpClient has been initialized");
+        }
+
+        if (_sharedConnectionManager != null) {
+            throw new IllegalStateException("Local addresses can't be set for fetchers that share a connection pool");
+        }
+
+        _localAddressPool = localAddressPool;
+    }
+
+    public LocalAddressPool getLocalAddressPool() {
+        return _localAddressPool;
+    }
+
+    /**
+     * Hedge GET requests made via {@link #get(String, Payload)}: if a request
+     * hasn't got its response headers after the policy's delay, send a second
+     * identical request (on another connection), use whichever response
+     * comes first and abort the other request. See {@link HedgePolicy}. The
+     * policy can be shared with other fetchers.
+     * 
+     * @param hedgePolicy policy to use, or null (the default) to never hedge
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        if (_httpClient != null) {
+            throw new IllegalStateException("Can't change hedge policy after HttpClient has been initialized");
+        }
+
+        _hedgePolicy = hedgePolicy;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return _hedgePolicy;
+    }
+
+    /**
+     * Resolve all of <code>hosts</code> in parallel, ahead of fetching, so
+     * that fetch threads don't block on name resolution. This requires a
+     * {@link CachingDnsResolver} to have been set via
+     * {@link #setDnsResolver(DnsResolver)}.
+     * 
+     * @param hosts host names that are about to be fetched from
+     * @return the hosts that couldn't be resolved
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Set<String> prefetchHosts(Collection<String> hosts) throws InterruptedException {
+        if (!(_dnsResolver instanceof CachingDnsResolver)) {
+            throw new IllegalStateException("Prefetching hosts requires a CachingDnsResolver");
+        }
+
+        return ((CachingDnsResolver) _dnsResolver).prefetchHosts(hosts);
+    }
+
+    /**
+     * Open up to <code>numConnections</code> connections to the host of
+     * <code>url</code> in the background, including the TLS handshake for
+     * https, and park them in the connection pool. Upcoming fetches from the
+     * host then don't have to wait for connection setup. The number of
+     * connections to the host is still limited by the max connections per
+     * host, and warmed-up connections are closed like any other idle ones.
+     * This isn't supported when using a proxy (or proxy pool).
+     * 
+     * @param url any url on the host (only the scheme, host and port are used)
+     * @param numConnections number of connections to open
+     * @return future for the number of connections that were opened
+     * @throws BaseFetchException if <code>url</code> isn't valid
+     */
+    public CompletableFuture<Integer> warmUp(String url, int numConnections) throws BaseFetchException {
+        checkUrl(url);
+        init();
+
+        if ((_proxy != null) || (_proxyPool != null)) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        HttpRoute route;
         try {
-            URL realUrl = new URL(url);
-            String protocol = realUrl.getProtocol();
-            if (!protocol.equals("http") && !protocol.equals("https")) {
-                throw new BadProtocolFetchException(url);
+            HttpHost target = URIUtils.extractHost(new URI(url));
+            if (target.getPort() <= 0) {
+                target = new HttpHost(target.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(target), target.getSchemeName());
             }
-        } catch (MalformedURLException e) {
+
+            route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+        } catch (URISyntaxException | IOException e) {
             throw new UrlFetchException(url, e.getMessage());
         }
 
-        return request(new HttpGet(), url, payload);
+        // Don't queue up for connections that are in use, or ask for more
+        // than the pool allows.
+        PoolStats stats = _connectionManager.getStats(route);
+        int numToOpen = Math.min(numConnections, stats.getMax() - stats.getLeased() - stats.getAvailable());
+        if (numToOpen <= 0) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        return CompletableFuture.supplyAsync(() -> openConnections(route, numToOpen), _warmUpExecutor);
+    }
+
+    /**
+     * Lease <code>numConnections</code> connections for <code>route</code>
+     * (so we don't get the same one back each time), connect the ones that
+     * aren't already open in parallel, and put them all back in the pool.
+     * 
+     * @return number of connections that were opened
+     */
+    private int openConnections(HttpRoute route, int numConnections) {
+        List<HttpClientConnection> conns = new ArrayList<>(numConnections);
+        try {
+            for (int i = 0; i < numConnections; i++) {
+                ConnectionRequest connRequest = _connectionManager.requestConnection(route, null);
+                conns.add(connRequest.get(_connectionRequestTimeout, TimeUnit.MILLISECONDS));
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Exception leasing connection to " + route.getTargetHost(), e);
+        }
+
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(conns.size());
+        for (HttpClientConnection conn : conns) {
+            futures.add(CompletableFuture.supplyAsync(() -> openConnection(route, conn), _warmUpExecutor));
+        }
+
+        int numOpened = 0;
+        for (CompletableFuture<Boolean> future : futures) {
+            if (future.join()) {
+                numOpened += 1;
+            }
+        }
+
+        return numOpened;
+    }
+
+    /**
+     * Connect <code>conn</code> if it isn't already open, and release it.
+     * 
+     * @return true if a new connection was opened
+     */
+    private boolean openConnection(HttpRoute route, HttpClientConnection conn) {
+        try {
+            if (conn.isOpen()) {
+                return false;
+            }
+
+            HttpClientContext context = HttpClientContext.create();
+            _connectionManager.connect(conn, route, _connectionTimeout, context);
+            _connectionManager.routeComplete(conn, route, context);
+            return true;
+        } catch (IOException e) {
+            LOGGER.debug("Exception warming up connection to " + route.getTargetHost(), e);
+            return false;
+        } finally {
+            _connectionManager.releaseConnection(conn, null, _maxIdleTime, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+        return get(url, payload, null);
+    }
+
+    /**
+     * Fetch <code>url</code>, passing the response body to
+     * <code>consumer</code> as it's read instead of collecting it in the
+     * result's content (which is left empty, with
+     * {@link FetchedResult#getContentLength()} giving the number of bytes
+     * that were passed on). So pages can be written to disk or hashed
+     * without holding them in memory.
+     * 
+     * The min response rate, fetch duration and max content size still
+     * apply. A body that would be tossed for being truncated (e.g. an image
+     * whose Content-Length is over the max content size) is rejected before
+     * any of it is passed on, but if the fetch fails part way through, the
+     * consumer will have seen part of the body. The body is passed on as it
+     * was received, without any content decoding by the fetcher.
+     * 
+     * @param url url to fetch
+     * @param payload payload for the result
+     * @param consumer receives the body, or null to collect it in the result
+     * @return result of the fetch
+     * @throws BaseFetchException if the fetch failed, or the consumer threw
+     *         an IOException (as a {@link ConsumerFetchException})
+     */
+    public FetchedResult get(String url, Payload payload, BodyConsumer consumer) throws BaseFetchException {
+        checkUrl(url);
+
+        return request(new HttpGet(), url, payload, consumer);
     }
 
-    private FetchedResult request(HttpRequestBase request, String url, Payload payload) throws BaseFetchException {
+    private FetchedResult request(HttpRequestBase request, String url, Payload payload, BodyConsumer consumer) throws BaseFetchException {
         init();
 
         try {
-            return doRequest(request, url, payload);
+            if ((_hedgePolicy != null) && (request instanceof HttpGet)) {
+                return doHedgedRequest(url, payload, consumer);
+            }
+
+            return doRequest(request, url, payload, consumer);
         } catch (AbortedFetchException e) {
             // Don't bother reporting that we bailed because the mime-type
             // wasn't one that we wanted.
@@ -540,7 +1192,7 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         init();
 
         try {
-            return doRequest(request, url, payload);
+            return doRequest(request, url, payload, null);
         } catch (BaseFetchException e) {
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Exception fetching {} {}", url, e.getMessage());
@@ -549,7 +1201,168 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         }
     }
 
-    private FetchedResult doRequest(HttpRequestBase request, String url, Payload payload) throws BaseFetchException {
+    /**
+     * Make the request in this thread, and if it hasn't got its response
+     * headers after the hedge delay make a second request from the hedge
+     * executor. The first one to get its headers is used.
+     */
+    private FetchedResult doHedgedRequest(String url, Payload payload, BodyConsumer consumer) throws BaseFetchException {
+        MyHedge hedge = new MyHedge(_hedgePolicy);
+        hedge._policy.onRequest();
+        long delay = hedge._policy.getHedgeDelay(getHost(url), _timeoutPolicy);
+        // The timer is shut down and cleared when we're being closed.
+        ScheduledExecutorService hedgeTimer = _hedgeTimer;
+        if (hedgeTimer == null) {
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        }
+
+        ScheduledFuture<?> timer;
+        try {
+            timer = hedgeTimer.schedule(() -> startHedge(hedge, url, payload, consumer), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // We're being closed.
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        }
+
+        BaseFetchException primaryException;
+        try {
+            FetchedResult result = doRequest(hedge._primary, url, payload, consumer);
+            timer.cancel(false);
+            return result;
+        } catch (BaseFetchException e) {
+            primaryException = e;
+        }
+
+        // If the hedge was never started there's nothing to wait for.
+        // Otherwise it's either the winner (and we were aborted), or still
+        // our best chance of getting a response.
+        if (timer.cancel(false)) {
+            throw primaryException;
+        }
+
+        FetchedResult secondaryResult;
+        try {
+            secondaryResult = hedge._secondaryResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            safeAbort(true, hedge._secondary);
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        } catch (ExecutionException e) {
+            if ((hedge._winner.get() == hedge._secondary) && (e.getCause() instanceof BaseFetchException)) {
+                throw (BaseFetchException) e.getCause();
+            }
+
+            throw primaryException;
+        }
+
+        if (secondaryResult == null) {
+            throw primaryException;
+        }
+
+        return secondaryResult;
+    }
+
+    private void startHedge(MyHedge hedge, String url, Payload payload, BodyConsumer consumer) {
+        // Publish the secondary before checking for a winner. If the primary
+        // wins after the check, it sees (and aborts) the secondary, and if it
+        // won before, the secondary isn't sent.
+        MyHedgedGet secondary = new MyHedgedGet(hedge);
+        hedge._secondary = secondary;
+        if ((hedge._winner.get() != null) || !hedge._policy.tryHedge()) {
+            hedge._secondaryResult.complete(null);
+            return;
+        }
+
+        ExecutorService hedgeExecutor = _hedgeExecutor;
+        if (hedgeExecutor == null) {
+            // We're being closed.
+            hedge._secondaryResult.complete(null);
+            return;
+        }
+
+        LOGGER.debug("Hedging request for {}", url);
+
+        try {
+            hedgeExecutor.execute(() -> {
+                try {
+                    hedge._secondaryResult.complete(doRequest(secondary, url, payload, consumer));
+                } catch (Throwable t) {
+                    hedge._secondaryResult.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            hedge._secondaryResult.complete(null);
+        }
+    }
+
+    private FetchedResult doRequest(HttpRequestBase request, String url, Payload payload, BodyConsumer consumer) throws BaseFetchException {
+        CircuitBreaker circuitBreaker = _circuitBreaker;
+        String host = (circuitBreaker == null) ? null : getHost(url);
+        if (host == null) {
+            return doRequestWithPermit(request, url, payload, consumer);
+        }
+
+        if (!circuitBreaker.allowRequest(host)) {
+            throw new CircuitOpenFetchException(url, "Circuit open for " + host);
+        }
+
+        try {
+            FetchedResult result = doRequestWithPermit(request, url, payload, consumer);
+            circuitBreaker.onSuccess(host);
+            return result;
+        } catch (IOFetchException e) {
+            circuitBreaker.onFailure(host);
+            throw e;
+        } catch (AbortedFetchException e) {
+            // If we were interrupted we don't know how the host would have
+            // done, so don't record anything. A probe that's left hanging
+            // is retried once the open duration has passed.
+            if (e.getAbortReason() != AbortedFetchReason.INTERRUPTED) {
+                circuitBreaker.onSuccess(host);
+            }
+            throw e;
+        } catch (BaseFetchException e) {
+            // Redirect, mime-type and other such errors mean the host is
+            // responding.
+            circuitBreaker.onSuccess(host);
+            throw e;
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return (host == null) ? null : host.toLowerCase(Locale.ROOT);
+        } catch (URISyntaxException e) {
+            // Let the request fail in the usual way.
+            return null;
+        }
+    }
+
+    private FetchedResult doRequestWithPermit(HttpRequestBase request, String url, Payload payload, BodyConsumer consumer) throws BaseFetchException {
+        Semaphore tenantPermits = _tenantPermits;
+        if (tenantPermits != null) {
+            try {
+                tenantPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+            }
+        }
+
+        _inFlight.put(request, url);
+
+        try {
+            return doRequestInFlight(request, url, payload, consumer);
+        } finally {
+            _inFlight.remove(request);
+            if (tenantPermits != null) {
+                tenantPermits.release();
+            }
+        }
+    }
+
+    private FetchedResult doRequestInFlight(HttpRequestBase request, String url, Payload payload, BodyConsumer consumer) throws BaseFetchException {
         LOGGER.trace("Fetching " + url);
 
         HttpResponse response;
@@ -583,6 +1396,10 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
             readStartTime = System.currentTimeMillis();
             response = _httpClient.execute(request, localContext);
 
+            if ((request instanceof MyHedgedGet) && !((MyHedgedGet) request).onHeaders()) {
+                throw new AbortedFetchException(url, "Hedged request lost to its twin", AbortedFetchReason.INTERRUPTED);
+            }
+
             Header[] headers = response.getAllHeaders();
             for (Header header : headers) {
                 headerMap.add(header.getName(), header.getValue());
@@ -590,6 +1407,8 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
 
             statusCode = response.getStatusLine().getStatusCode();
             reasonPhrase = response.getStatusLine().getReasonPhrase();
+            recordOutcome(localContext, statusCode, System.currentTimeMillis() - readStartTime);
+            recordProxyOutcome(localContext, statusCode != HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED, System.currentTimeMillis() - readStartTime);
 
             if (LOGGER.isTraceEnabled()) {
                 fetchTrace.append("; status code: " + statusCode);
@@ -624,24 +1443,9 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                 contentType = cth.getValue();
             }
 
-            // Check if we should abort due to mime-type filtering. Note that
-            // this will fail if the server
-            // doesn't report a mime-type, but that's how we want it as this
-            // configuration is typically
-            // used when only a subset of parsers are installed/enabled, so we
-            // don't want the auto-detect
-            // code in Tika to get triggered & try to process an unsupported
-            // type. If you want unknown
-            // mime-types from the server to be processed, set "" as one of the
-            // valid mime-types in
-            // FetcherPolicy.
+            // Check if we should abort due to mime-type filtering.
             mimeType = getMimeTypeFromContentType(contentType);
-            Set<String> mimeTypes = getValidMimeTypes();
-            if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
-                if (!mimeTypes.contains(mimeType)) {
-                    throw new AbortedFetchException(url, "Invalid mime-type: " + mimeType, AbortedFetchReason.INVALID_MIMETYPE);
-                }
-            }
+            checkMimeType(url, mimeType);
 
             needAbort = false;
         } catch (ClientProtocolException e) {
@@ -668,12 +1472,30 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                 LOGGER.error(e.getMessage());
                 throw new RedirectFetchException(url, extractRedirectedUrl(url, localContext), RedirectExceptionReason.TOO_MANY_REDIRECTS);
             } else {
+                // The proxy refused to open a tunnel. Only a refusal to
+                // authenticate counts against the proxy, as other refusals
+                // (e.g. a 502) are usually due to the host.
+                if ((e.getCause() instanceof TunnelRefusedException)
+                                && (((TunnelRefusedException) e.getCause()).getResponse().getStatusLine().getStatusCode() == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED)) {
+                    recordProxyOutcome(localContext, false, 0);
+                }
+
                 throw new IOFetchException(url, e);
             }
         } catch (IOException e) {
             // Oleg guarantees that no abort is needed in the case of an
             // IOException
             needAbort = false;
+            if (request.isAborted()) {
+                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+            }
+
+            recordOutcome(localContext, HttpStatus.SC_SERVICE_UNAVAILABLE, 0);
+            recordTimeout(localContext, url, e);
+            if (isProxyConnectFailure(localContext, e)) {
+                recordProxyOutcome(localContext, false, 0);
+            }
+
             throw new IOFetchException(url, e);
         } catch (URISyntaxException e) {
             throw new UrlFetchException(url, e.getMessage());
@@ -687,20 +1509,26 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
             throw new IOFetchException(url, new IOException(e));
         } finally {
             safeAbort(needAbort, request);
+
+            // If the outcome wasn't recorded above (e.g. the request was
+            // aborted), just give the proxy back.
+            releaseProxy(localContext);
         }
 
         // Figure out how much data we want to try to fetch.
         int maxContentSize = getMaxContentSize(mimeType);
         int targetLength = maxContentSize;
         boolean truncated = false;
+        boolean exactLength = false;
         String contentLengthStr = headerMap.get(HttpHeaders.CONTENT_LENGTH);
         if (contentLengthStr != null) {
             try {
                 int contentLength = Integer.parseInt(contentLengthStr);
                 if (contentLength > targetLength) {
                     truncated = true;
-                } else {
+                } else if (contentLength >= 0) {
                     targetLength = contentLength;
+                    exactLength = true;
                 }
             } catch (NumberFormatException e) {
                 // Ignore (and log) invalid content length values.
@@ -713,17 +1541,55 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         byte[] content = new byte[0];
         long readRate = 0;
         HttpEntity entity = response.getEntity();
+        int contentLength = 0;
+        Path contentFile = null;
+        DirectBufferPool directPool = _directBufferPool;
+        ByteBuffer directContent = null;
         needAbort = true;
 
+        // Bodies that might be bigger than the spill threshold go through a
+        // consumer that writes them to a file once they are.
+        int spillThreshold = _spillThreshold;
+        MySpillConsumer spillConsumer = null;
+        if ((consumer == null) && (entity != null) && (spillThreshold != NO_SPILL) && (!exactLength || (targetLength > spillThreshold))) {
+            spillConsumer = new MySpillConsumer(spillThreshold, _spillDirectory);
+            consumer = spillConsumer;
+        }
+
+        // If the body is going to a consumer, check up front whether we'd
+        // toss it for being truncated, as we can't take it back later. Same
+        // for a direct buffer, so we don't have to give it back.
+        String contentEncoding = headerMap.get(HttpHeaders.CONTENT_ENCODING);
+        if ((consumer != null) || (directPool != null)) {
+            try {
+                processContent(url, content, mimeType, contentEncoding, maxContentSize, truncated, false);
+            } catch (BaseFetchException e) {
+                safeAbort(needAbort, request);
+                if (spillConsumer != null) {
+                    spillConsumer.close(true);
+                }
+                throw e;
+            }
+        }
+
         if (entity != null) {
             InputStream in = null;
 
+            // If we know the length, read straight into an array of that
+            // size. Otherwise read via this thread's pooled buffers, and
+            // either pass each chunk on to the consumer or copy out what we
+            // got at the end.
+            boolean readExact = exactLength && (consumer == null) && (directPool == null);
+            BufferPool bufferPool = BufferPool.get();
+            byte[] exactContent = readExact ? new byte[targetLength] : null;
+            byte[] buffer = readExact ? null : bufferPool.acquireReadBuffer();
+            BodyBuffer out = (readExact || (consumer != null)) ? null : bufferPool.acquireBodyBuffer(targetLength);
+            boolean bodyRead = false;
+
             try {
                 in = entity.getContent();
-                byte[] buffer = new byte[BUFFER_SIZE];
                 int bytesRead = 0;
                 int totalRead = 0;
-                ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
 
                 int readRequests = 0;
                 int minResponseRate = getMinResponseRate();
@@ -733,10 +1599,21 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                 // metrics support for how to do this. Once we fix this, fix
                 // the test to read a smaller (< 20K)
                 // chuck of data.
-                while ((totalRead < targetLength) && ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
+                while (totalRead < targetLength) {
+                    int readSize = Math.min(BufferPool.READ_BUFFER_SIZE, targetLength - totalRead);
+                    bytesRead = readExact ? in.read(exactContent, totalRead, readSize) : in.read(buffer, 0, readSize);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+
+                    if (consumer != null) {
+                        consume(url, consumer, buffer, bytesRead);
+                    } else if (!readExact) {
+                        out.write(buffer, 0, bytesRead);
+                    }
+
                     readRequests += 1;
                     totalRead += bytesRead;
-                    out.write(buffer, 0, bytesRead);
 
                     // Assume read time is at least one millisecond, to avoid
                     // DBZ exception.
@@ -760,61 +1637,81 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                     }
                 }
 
-                content = out.toByteArray();
+                contentLength = totalRead;
+                if (spillConsumer != null) {
+                    contentFile = spillConsumer.finish();
+                    if (contentFile == null) {
+                        content = spillConsumer.getContent();
+                    }
+                } else if (consumer != null) {
+                    // Leave content empty.
+                } else if (!readExact) {
+                    // Content that doesn't need decoding goes straight from
+                    // the pooled buffer to a direct buffer.
+                    if ((directPool != null) && (contentEncoding == null)) {
+                        directContent = directPool.copyOf(out.asByteBuffer());
+                    } else {
+                        content = out.toByteArray();
+                    }
+                } else if (totalRead < exactContent.length) {
+                    // Server sent less than it said it would.
+                    content = Arrays.copyOf(exactContent, totalRead);
+                } else {
+                    content = exactContent;
+                }
+
                 needAbort = truncated || (in.available() > 0);
+                bodyRead = true;
             } catch (IOException e) {
                 // We don't need to abort if there's an IOException
+                needAbort = false;
+                if (request.isAborted()) {
+                    throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                }
+
+                recordTimeout(localContext, url, e);
                 throw new IOFetchException(url, e);
             } finally {
                 safeAbort(needAbort, request);
                 safeClose(in);
-            }
-        }
+                if (buffer != null) {
+                    bufferPool.releaseReadBuffer(buffer);
+                }
 
-        // Toss truncated image content.
-        if ((truncated) && (!isTextMimeType(mimeType))) {
-            throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
+                if (out != null) {
+                    bufferPool.releaseBodyBuffer(out);
+                }
+
+                // Keep the spill file only if we got the whole body.
+                if (spillConsumer != null) {
+                    spillConsumer.close(!bodyRead);
+                }
+
+                // Or the direct buffer, if it was copied before a failure.
+                if (!bodyRead && (directContent != null)) {
+                    directPool.release(directContent);
+                    directContent = null;
+                }
+            }
         }
 
-        // Now see if we need to uncompress the content.
-        String contentEncoding = headerMap.get(HttpHeaders.CONTENT_ENCODING);
-        if (contentEncoding != null) {
+        // Toss truncated image content, and uncompress the content if needed.
+        boolean inMemory = (contentFile == null) && ((consumer == null) || (spillConsumer != null));
+        if ((contentFile != null) && _decodeContent && (contentEncoding != null)) {
+            contentFile = decodeContentFile(url, contentFile, mimeType, contentEncoding, maxContentSize);
+            contentLength = (int) contentFile.toFile().length();
             if (LOGGER.isTraceEnabled()) {
-                fetchTrace.append("; Content-Encoding: " + contentEncoding);
+                fetchTrace.append("; Content-Encoding: " + contentEncoding + "; decoded to " + contentLength + " bytes in " + contentFile);
+            }
+        } else if (inMemory && (directContent == null)) {
+            content = processContent(url, content, mimeType, contentEncoding, maxContentSize, truncated, _decodeContent);
+            contentLength = content.length;
+            if ((contentEncoding != null) && LOGGER.isTraceEnabled()) {
+                fetchTrace.append("; Content-Encoding: " + contentEncoding + "; decoded to " + content.length + " bytes");
             }
 
-            // TODO KKr We might want to just decompress a truncated gzip
-            // containing text (since we have a max content size to save us
-            // from any gzip corruption). We might want to break the following
-            // out into a separate method, by the way (if not refactor this
-            // entire monolithic method).
-            //
-            try {
-                if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-                    if (truncated) {
-                        throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
-                    } else {
-                        ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, maxContentSize);
-                        truncated = expandedResult.isTruncated();
-                        if ((truncated) && (!isTextMimeType(mimeType))) {
-                            throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
-                        } else {
-                            content = expandedResult.getExpanded();
-                            if (LOGGER.isTraceEnabled()) {
-                                fetchTrace.append("; unzipped to " + content.length + " bytes");
-                            }
-                        }
-                        // } else if ("deflate".equals(contentEncoding)) {
-                        // content =
-                        // EncodingUtils.processDeflateEncoded(content);
-                        // if (LOGGER.isTraceEnabled()) {
-                        // fetchTrace.append("; inflated to " + content.length +
-                        // " bytes");
-                        // }
-                    }
-                }
-            } catch (IOException e) {
-                throw new IOFetchException(url, e);
+            if ((directPool != null) && (content.length > 0)) {
+                directContent = directPool.copyOf(ByteBuffer.wrap(content));
             }
         }
 
@@ -824,20 +1721,214 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         }
 
         // TODO KKr - Save truncated flag in FetchedResult/FetchedDatum.
-        return new FetchedResult(url, redirectedUrl, System.currentTimeMillis(), headerMap, content, contentType, (int) readRate, payload, newBaseUrl, numRedirects, hostAddress, statusCode,
-                        reasonPhrase);
+        if (directContent != null) {
+            return new FetchedResult(url, redirectedUrl, System.currentTimeMillis(), headerMap, directContent, directPool, contentType, (int) readRate, payload, newBaseUrl, numRedirects,
+                            hostAddress, statusCode, reasonPhrase);
+        }
+
+        return new FetchedResult(url, redirectedUrl, System.currentTimeMillis(), headerMap, content, contentLength, contentFile, contentType, (int) readRate, payload, newBaseUrl, numRedirects,
+                        hostAddress, statusCode, reasonPhrase);
     }
 
-    private boolean isTextMimeType(String mimeType) {
-        for (String textContentType : TEXT_MIME_TYPES) {
-            if (textContentType.equals(mimeType)) {
-                return true;
+    /**
+     * Same as {@link #processContent(String, byte[], String, String, int, boolean)},
+     * but for a (complete) body that was written to a file. A gzip encoded
+     * body is expanded into a new file, and the original file is deleted.
+     * 
+     * @return the file with the expanded body
+     */
+    private static Path decodeContentFile(String url, Path contentFile, String mimeType, String contentEncoding, int maxContentSize) throws BaseFetchException {
+        if (!"gzip".equals(contentEncoding) && !"x-gzip".equals(contentEncoding)) {
+            return contentFile;
+        }
+
+        Path decodedFile = null;
+        boolean truncated = false;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(contentFile), BufferPool.READ_BUFFER_SIZE)) {
+            decodedFile = Files.createTempFile(contentFile.toAbsolutePath().getParent(), SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+            BufferPool bufferPool = BufferPool.get();
+            byte[] buffer = bufferPool.acquireReadBuffer();
+            try (OutputStream out = Files.newOutputStream(decodedFile)) {
+                int written = 0;
+                while (true) {
+                    int size;
+                    try {
+                        size = in.read(buffer);
+                    } catch (IOException e) {
+                        // Same as for bodies in memory, keep what we got.
+                        LOGGER.trace("Exception unzipping content", e);
+                        break;
+                    }
+
+                    if (size <= 0) {
+                        break;
+                    }
+
+                    if ((written + size) > maxContentSize) {
+                        truncated = true;
+                        out.write(buffer, 0, maxContentSize - written);
+                        break;
+                    }
+
+                    out.write(buffer, 0, size);
+                    written += size;
+                }
+            } finally {
+                bufferPool.releaseReadBuffer(buffer);
             }
+        } catch (IOException e) {
+            deleteSpillFile(decodedFile);
+            throw new IOFetchException(url, e);
+        } finally {
+            deleteSpillFile(contentFile);
+        }
+
+        if (truncated && !isTextMimeType(mimeType)) {
+            deleteSpillFile(decodedFile);
+            throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
+        }
+
+        return decodedFile;
+    }
+
+    private static void consume(String url, BodyConsumer consumer, byte[] buffer, int length) throws BaseFetchException {
+        try {
+            consumer.consume(ByteBuffer.wrap(buffer, 0, length));
+        } catch (IOException e) {
+            // Not an IOException from reading, so we still need to abort.
+            throw new ConsumerFetchException(url, e);
         }
-        return false;
     }
 
-    private String extractRedirectedUrl(String url, HttpContext localContext) {
+    /**
+     * Let the pool sizer (if any) know how the final route of a request did.
+     * I/O errors are passed in as a 503 status.
+     */
+    private void recordOutcome(HttpContext localContext, int statusCode, long latency) {
+        AdaptivePoolSizer poolSizer = _poolSizer;
+        if (poolSizer == null) {
+            return;
+        }
+
+        RouteInfo route = HttpClientContext.adapt(localContext).getHttpRoute();
+        if (!(route instanceof HttpRoute)) {
+            return;
+        }
+
+        if ((statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE) || (statusCode == 429)) {
+            poolSizer.onFailure((HttpRoute) route);
+        } else {
+            poolSizer.onSuccess((HttpRoute) route, latency);
+        }
+    }
+
+    /**
+     * Let the timeout policy (if any) know the connect time (if a new
+     * connection was opened) and time to first byte for one hop of a request.
+     */
+    private void recordTimings(HttpRequest request, HttpContext context, long firstByteTime) {
+        // The connect time is always taken, so that it can't be recorded
+        // again for a later hop that reuses a connection.
+        Long connectTime = (Long) context.removeAttribute(HappyEyeballsConnectionOperator.CONNECT_TIME_CONTEXT_KEY);
+
+        AdaptiveTimeoutPolicy timeoutPolicy = _timeoutPolicy;
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        HttpHost target = clientContext.getTargetHost();
+        if ((timeoutPolicy == null) || (target == null)) {
+            return;
+        }
+
+        // Via a proxy, the connection (and the response to a CONNECT request
+        // for a tunnel) is to the proxy, not the host.
+        String host = target.getHostName().toLowerCase(Locale.ROOT);
+        RouteInfo route = clientContext.getHttpRoute();
+        if ((connectTime != null) && ((route == null) || (route.getProxyHost() == null))) {
+            timeoutPolicy.recordConnectTime(host, connectTime);
+        }
+
+        if (!"CONNECT".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+            timeoutPolicy.recordFirstByteTime(host, firstByteTime);
+        }
+    }
+
+    /**
+     * Let the proxy pool (if any) know how the proxy used for the final hop
+     * of a request did.
+     */
+    private void recordProxyOutcome(HttpContext localContext, boolean success, long latency) {
+        HttpHost proxy = (HttpHost) localContext.removeAttribute(PROXY_CONTEXT_KEY);
+        if (proxy == null) {
+            return;
+        }
+
+        if (success) {
+            _proxyPool.onSuccess(proxy, latency);
+        } else {
+            _proxyPool.onFailure(proxy);
+        }
+    }
+
+    /**
+     * @return true if <code>e</code> is a failure to connect to the proxy used
+     *         for the current hop of a request, rather than e.g. a timeout
+     *         reading from the host via the proxy
+     */
+    private static boolean isProxyConnectFailure(HttpContext localContext, IOException e) {
+        HttpHost proxy = (HttpHost) localContext.getAttribute(PROXY_CONTEXT_KEY);
+        if (proxy == null) {
+            return false;
+        }
+
+        HttpHost host;
+        if (e instanceof HttpHostConnectException) {
+            host = ((HttpHostConnectException) e).getHost();
+        } else if (e instanceof ConnectTimeoutException) {
+            host = ((ConnectTimeoutException) e).getHost();
+        } else if (e instanceof UnknownHostException) {
+            // Only the proxy's host name is looked up.
+            return true;
+        } else {
+            return false;
+        }
+
+        return (host != null) && host.getHostName().equalsIgnoreCase(proxy.getHostName()) && (host.getPort() == proxy.getPort());
+    }
+
+    private void releaseProxy(HttpContext localContext) {
+        HttpHost proxy = (HttpHost) localContext.removeAttribute(PROXY_CONTEXT_KEY);
+        if (proxy != null) {
+            _proxyPool.release(proxy);
+        }
+    }
+
+    /**
+     * If a request timed out, let the timeout policy (if any) know, by
+     * recording the timeout as a sample. Otherwise a host that's become
+     * slower would never have its timeouts raised, as only requests that
+     * finish in time are recorded.
+     */
+    private void recordTimeout(HttpContext localContext, String url, IOException e) {
+        AdaptiveTimeoutPolicy timeoutPolicy = _timeoutPolicy;
+        HttpClientContext clientContext = HttpClientContext.adapt(localContext);
+        RequestConfig config = clientContext.getRequestConfig();
+        if (timeoutPolicy == null) {
+            return;
+        }
+
+        HttpHost target = clientContext.getTargetHost();
+        String host = (target == null) ? getHost(url) : target.getHostName().toLowerCase(Locale.ROOT);
+        if (host == null) {
+            return;
+        }
+
+        if (e instanceof ConnectTimeoutException) {
+            timeoutPolicy.recordConnectTime(host, config.getConnectTimeout());
+        } else if (e instanceof SocketTimeoutException) {
+            timeoutPolicy.recordFirstByteTime(host, config.getSocketTimeout());
+        }
+    }
+
+    static String extractRedirectedUrl(String url, HttpContext localContext) {
         // This was triggered by HttpClient with the redirect count was
         // exceeded.
         HttpHost host = (HttpHost) localContext.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
@@ -855,7 +1946,7 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
         }
     }
 
-    private static void safeClose(Closeable o) {
+    static void safeClose(Closeable o) {
         if (o != null) {
             try {
                 o.close();
@@ -877,10 +1968,17 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
 
     private void init() {
         if (_httpClient == null) {
-            synchronized (SimpleHttpFetcher.class) {
+            synchronized (this) {
                 if (_httpClient != null)
                     return;
 
+                _inFlight = new ConcurrentHashMap<>();
+                _warmUpExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("warm-up"));
+                if (_hedgePolicy != null) {
+                    _hedgeTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("hedge-timer"));
+                    _hedgeExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("hedge"));
+                }
+
                 final HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
                 final RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
 
@@ -890,7 +1988,10 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                 requestConfigBuilder.setConnectTimeout(_connectionTimeout);
                 requestConfigBuilder.setConnectionRequestTimeout(_connectionRequestTimeout);
 
-                if (_proxy != null){
+                if (_proxyPool != null) {
+                    LOGGER.info("Configuring fetcher to use a pool of " + _proxyPool.getNumProxies() + " proxies");
+                    httpClientBuilder.setRoutePlanner(new MyProxyRoutePlanner(_proxyPool));
+                } else if (_proxy != null){
                     LOGGER.info("Configuring fetcher to use _proxy: " + _proxy.toURI());
                     httpClientBuilder.setProxy(_proxy);
                 }
@@ -957,49 +2058,30 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
                 // CookieSpecParamBean(params);
                 // cookieParams.setSingleHeader(false);
 
-                // Create and initialize connection socket factory registry
-                RegistryBuilder<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create();
-                registry.register("http", PlainConnectionSocketFactory.getSocketFactory());
-                SSLConnectionSocketFactory sf = createSSLConnectionSocketFactory();
-                if (sf != null) {
-                    registry.register("https", sf);
+                if (_sharedConnectionManager != null) {
+                    // The pool (and its limits) belongs to the
+                    // SharedFetcherFactory, so this fetcher's own share of it
+                    // is capped via _tenantPermits.
+                    _connectionManager = _sharedConnectionManager;
+                    _tenantPermits = new Semaphore(_maxThreads);
+                    httpClientBuilder.setConnectionManagerShared(true);
                 } else {
-                    LOGGER.warn("No valid SSLContext found for https");
-                }
-
-                _connectionManager = new PoolingHttpClientConnectionManager(registry.build());
-                _connectionManager.setMaxTotal(_maxThreads);
-                _connectionManager.setDefaultMaxPerRoute(getMaxConnectionsPerHost());
+                    _connectionOperator = createConnectionOperator(_dnsResolver, getTlsContext(), _localAddressPool);
+                    _connectionManager = createConnectionManager(_connectionOperator);
+                    _connectionManager.setMaxTotal(_maxThreads);
+                    _connectionManager.setDefaultMaxPerRoute(getMaxConnectionsPerHost());
+                    if (_maxAdaptiveConnectionsPerHost > 0) {
+                        _poolSizer = new AdaptivePoolSizer(_connectionManager, getMaxConnectionsPerHost(), _minAdaptiveConnectionsPerHost, _maxAdaptiveConnectionsPerHost);
+                    }
 
-                /*
-                 * CoreConnectionPNames.STALE_CONNECTION_CHECK=
-                 * 'http.connection.stalecheck': determines whether stale
-                 * connection check is to be used. Disabling stale connection
-                 * check may result in a noticeable performance improvement (the
-                 * check can cause up to 30 millisecond overhead per request) at
-                 * the risk of getting an I/O error when executing a request
-                 * over a connection that has been closed at the server side.
-                 * This parameter expects a value of type java.lang.Boolean. For
-                 * performance critical operations the check should be disabled.
-                 * If this parameter is not set, the stale connection check will
-                 * be performed before each request execution.
-                 * 
-                 * We don't need I/O exceptions in case if Server doesn't
-                 * support Kee-Alive option; our client by default always tries
-                 * keep-alive.
-                 */
-                // Even with stale checking enabled, a connection can "go stale"
-                // between the check and the next request. So we still need to
-                // handle the case of a closed socket (from the server side),
-                // and disabling this check improves performance.
-                // Stale connections will be checked in a separate monitor
-                // thread
-                _connectionManager.setValidateAfterInactivity(-1);
+                    getIdleConnectionEvictor().register(_connectionManager, _maxIdleTime);
+                }
 
                 httpClientBuilder.setConnectionManager(_connectionManager);
-                httpClientBuilder.setRetryHandler(new MyRequestRetryHandler(_maxRetryCount));
+                httpClientBuilder.setRetryHandler(new MyRequestRetryHandler(_maxRetryCount, _deferredRetries));
                 httpClientBuilder.setRedirectStrategy(new MyRedirectStrategy(getRedirectMode()));
                 httpClientBuilder.setRequestExecutor(new MyHttpRequestExecutor());
+                httpClientBuilder.addInterceptorLast(new MyTimeoutInterceptor());
 
                 // FUTURE KKr - support authentication
                 // FIXME Could not find this parameter in http-client version
@@ -1027,44 +2109,160 @@ public class SimpleHttpFetcher extends BaseHttpFetcher {
 
                 httpClientBuilder.setKeepAliveStrategy(new MyConnectionKeepAliveStrategy());
 
-                monitor = new IdleConnectionMonitorThread(_connectionManager);
-                monitor.start();
-
-                httpClientBuilder.setDefaultRequestConfig(requestConfigBuilder.build());
+                _defaultRequestConfig = requestConfigBuilder.build();
+                httpClientBuilder.setDefaultRequestConfig(_defaultRequestConfig);
                 _httpClient = httpClientBuilder.build();
             }
         }
 
     }
 
-    private SSLConnectionSocketFactory createSSLConnectionSocketFactory() {
-        SSLConnectionSocketFactory sf = null;
+    /**
+     * Create a connection operator for http and https.
+     * 
+     * @param dnsResolver resolver for host names, or null for the system
+     *        resolver
+     * @param tlsContext context for https connections, or null if https
+     *        isn't supported
+     * @param localAddressPool local addresses to bind connections to, or
+     *        null to let the system pick
+     * @return the new connection operator, which must be closed once the
+     *         connection pool using it has been shut down
+     */
+    static HappyEyeballsConnectionOperator createConnectionOperator(DnsResolver dnsResolver, SharedTlsContext tlsContext, LocalAddressPool localAddressPool) {
+        // Create and initialize connection socket factory registry
+        RegistryBuilder<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create();
+        registry.register("http", PlainConnectionSocketFactory.getSocketFactory());
+        if (tlsContext != null) {
+            registry.register("https", tlsContext.getSocketFactory());
+        } else {
+            LOGGER.warn("No valid SSLContext found for https");
+        }
+
+        // Race connections to hosts with multiple (e.g. IPv6 and IPv4)
+        // addresses, instead of trying them one by one.
+        HappyEyeballsConnectionOperator connectionOperator = new HappyEyeballsConnectionOperator(registry.build(), dnsResolver);
+        connectionOperator.setLocalAddressPool(localAddressPool);
+        return connectionOperator;
+    }
+
+    /**
+     * Create a connection pool with no limits set.
+     * 
+     * @param connectionOperator operator for opening connections
+     * @return the new connection pool
+     */
+    static PoolingHttpClientConnectionManager createConnectionManager(HappyEyeballsConnectionOperator connectionOperator) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(connectionOperator, null, -1, TimeUnit.MILLISECONDS);
+
+        /*
+         * CoreConnectionPNames.STALE_CONNECTION_CHECK=
+         * 'http.connection.stalecheck': determines whether stale
+         * connection check is to be used. Disabling stale connection
+         * check may result in a noticeable performance improvement (the
+         * check can cause up to 30 millisecond overhead per request) at
+         * the risk of getting an I/O error when executing a request
+         * over a connection that has been closed at the server side.
+         * This parameter expects a value of type java.lang.Boolean. For
+         * performance critical operations the check should be disabled.
+         * If this parameter is not set, the stale connection check will
+         * be performed before each request execution.
+         * 
+         * We don't need I/O exceptions in case if Server doesn't
+         * support Kee-Alive option; our client by default always tries
+         * keep-alive.
+         */
+        // Even with stale checking enabled, a connection can "go stale"
+        // between the check and the next request. So we still need to
+        // handle the case of a closed socket (from the server side),
+        // and disabling this check improves performance.
+        // Stale connections will be closed by the IdleConnectionEvictor.
+        connectionManager.setValidateAfterInactivity(-1);
+        return connectionManager;
+    }
+
+    /**
+     * Create an SSLContext that trusts all certificates, trying each of the
+     * supported context names in turn.
+     * 
+     * @return the SSLContext, or null if none could be initialized
+     */
+    static SSLContext createSSLContext() {
         for (String contextName : SSL_CONTEXT_NAMES) {
             try {
                 SSLContext sslContext = SSLContext.getInstance(contextName);
                 sslContext.init(null, new TrustManager[] { new DummyX509TrustManager(null) }, null);
-                HostnameVerifier hostnameVerifier = NoopHostnameVerifier.INSTANCE;
-                sf = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
-                break;
+                return sslContext;
             } catch (NoSuchAlgorithmException e) {
                 LOGGER.debug("SSLContext algorithm not available: " + contextName);
             } catch (Exception e) {
                 LOGGER.debug("SSLContext can't be initialized: " + contextName, e);
             }
         }
-        return sf;
+        return null;
     }
 
+    /**
+     * Abort all requests currently being processed, including any that are
+     * blocked waiting for a connection or reading the response. Each one fails
+     * with an {@link AbortedFetchException} (reason
+     * {@link AbortedFetchReason#INTERRUPTED}).
+     */
     @Override
     public void abort() {
-        // TODO Actually try to abort
+        Map<HttpRequestBase, String> inFlight = _inFlight;
+        if (inFlight != null) {
+            for (HttpRequestBase request : inFlight.keySet()) {
+                safeAbort(true, request);
+            }
+        }
     }
 
     @Override
-    protected void finalize() {
-        monitor.interrupt();
-        _connectionManager.shutdown();
-        IOUtils.closeQuietly(_httpClient);
-        _httpClient = null;
+    public boolean abort(String url) {
+        boolean aborted = false;
+        Map<HttpRequestBase, String> inFlight = _inFlight;
+        if (inFlight != null) {
+            for (Map.Entry<HttpRequestBase, String> entry : inFlight.entrySet()) {
+                if (entry.getValue().equals(url)) {
+                    safeAbort(true, entry.getKey());
+                    aborted = true;
+                }
+            }
+        }
+
+        return aborted;
+    }
+
+    /**
+     * Abort any in-progress fetches, and close all pooled connections. The
+     * fetcher can still be used afterwards, in which case it creates a new
+     * connection pool.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (_httpClient != null) {
+                abort();
+                _warmUpExecutor.shutdownNow();
+                if (_hedgeTimer != null) {
+                    _hedgeTimer.shutdownNow();
+                    _hedgeExecutor.shutdownNow();
+                    _hedgeTimer = null;
+                    _hedgeExecutor = null;
+                }
+
+                IOUtils.closeQuietly(_httpClient);
+                if (_sharedConnectionManager == null) {
+                    getIdleConnectionEvictor().unregister(_connectionManager);
+                    _connectionManager.shutdown();
+                    _connectionOperator.close();
+                    _connectionOperator = null;
+                }
+
+                _httpClient = null;
+                _poolSizer = null;
+            }
+        }
     }
 }
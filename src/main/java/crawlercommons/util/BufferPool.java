@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-thread read buffers and growable body buffers, so that fetching a page
+ * doesn't allocate (and then throw away) a new set of buffers each time.
+ *
+ * Each thread has one read buffer and one body buffer, which are handed out
+ * by the acquire methods and must be given back via the matching release
+ * method. If a thread's buffer is already in use (e.g. while decoding a body
+ * that's still being read) a new one is allocated, and simply dropped when
+ * it's released. Body buffers that have grown beyond
+ * {@link #MAX_POOLED_BODY_SIZE} aren't kept either, so one large page
+ * doesn't tie up memory for the life of the thread.
+ */
+public class BufferPool {
+
+    public static final int READ_BUFFER_SIZE = 8 * 1024;
+    public static final int INITIAL_BODY_SIZE = 32 * 1024;
+    public static final int MAX_POOLED_BODY_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial(BufferPool::new);
+
+    /**
+     * A byte array that grows as data is written to it. Unlike
+     * <code>ByteArrayOutputStream</code> it isn't synchronized, and can be
+     * reset and reused.
+     */
+    public static class BodyBuffer {
+        private byte[] _data;
+        private int _size = 0;
+
+        public BodyBuffer(int initialSize) {
+            _data = new byte[initialSize];
+        }
+
+        public void write(byte[] buffer, int offset, int length) {
+            ensureCapacity(_size + length);
+            System.arraycopy(buffer, offset, _data, _size, length);
+            _size += length;
+        }
+
+        public void write(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            ensureCapacity(_size + length);
+            buffer.get(_data, _size, length);
+            _size += length;
+        }
+
+        public int size() {
+            return _size;
+        }
+
+        public int capacity() {
+            return _data.length;
+        }
+
+        public void reset() {
+            _size = 0;
+        }
+
+        /**
+         * @return a view of the data, which is only valid until the next
+         *         write or reset
+         */
+        public ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(_data, 0, _size);
+        }
+
+        /**
+         * @return a copy of the data, exactly <code>size()</code> bytes long
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(_data, _size);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity < 0) {
+                throw new OutOfMemoryError("Body buffer too large");
+            }
+
+            if (capacity > _data.length) {
+                // If doubling overflows, just grow to what's needed.
+                _data = Arrays.copyOf(_data, Math.max(capacity, _data.length * 2));
+            }
+        }
+    }
+
+    private final byte[] _readBuffer = new byte[READ_BUFFER_SIZE];
+    private boolean _readBufferInUse = false;
+
+    private BodyBuffer _bodyBuffer = null;
+    private boolean _bodyBufferInUse = false;
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return the buffer pool for the calling thread
+     */
+    public static BufferPool get() {
+        return POOLS.get();
+    }
+
+    /**
+     * @return a buffer of {@link #READ_BUFFER_SIZE} bytes
+     */
+    public byte[] acquireReadBuffer() {
+        if (_readBufferInUse) {
+            return new byte[READ_BUFFER_SIZE];
+        }
+
+        _readBufferInUse = true;
+        return _readBuffer;
+    }
+
+    /**
+     * @param buffer buffer returned by {@link #acquireReadBuffer()}
+     */
+    public void releaseReadBuffer(byte[] buffer) {
+        if (buffer == _readBuffer) {
+            _readBufferInUse = false;
+        }
+    }
+
+    /**
+     * @param expectedSize number of bytes that will probably be written
+     * @return an empty body buffer
+     */
+    public BodyBuffer acquireBodyBuffer(int expectedSize) {
+        int initialSize = Math.max(0, Math.min(expectedSize, INITIAL_BODY_SIZE));
+        if (_bodyBufferInUse) {
+            return new BodyBuffer(initialSize);
+        }
+
+        if (_bodyBuffer == null) {
+            _bodyBuffer = new BodyBuffer(INITIAL_BODY_SIZE);
+        }
+
+        _bodyBufferInUse = true;
+        _bodyBuffer.reset();
+        return _bodyBuffer;
+    }
+
+    /**
+     * @param buffer buffer returned by {@link #acquireBodyBuffer(int)}
+     */
+    public void releaseBodyBuffer(BodyBuffer buffer) {
+        if (buffer == _bodyBuffer) {
+            _bodyBufferInUse = false;
+            if (buffer.capacity() > MAX_POOLED_BODY_SIZE) {
+                _bodyBuffer = null;
+            }
+        }
+    }
+}
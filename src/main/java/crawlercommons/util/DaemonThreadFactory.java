@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory for background threads that shouldn't keep the JVM alive.
+ * Threads are named "&lt;name&gt;-&lt;pool #&gt;-thread-&lt;thread #&gt;".
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+    private final String _namePrefix;
+    private final AtomicInteger _threadNumber = new AtomicInteger(1);
+
+    public DaemonThreadFactory(String name) {
+        _namePrefix = name + "-" + POOL_NUMBER.getAndIncrement() + "-thread-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, _namePrefix + _threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct (off-heap) byte buffers, so that page bodies which are
+ * held for a while (e.g. in a queue between fetching and parsing) don't end
+ * up in the old generation of the Java heap.
+ *
+ * Buffers are allocated in power-of-two sizes (from {@link #MIN_BUFFER_SIZE}
+ * up to {@link #MAX_BUFFER_SIZE}), and released buffers are kept for reuse as
+ * long as the pool holds at most <code>maxPooledBytes</code>. Bigger requests
+ * get a buffer of exactly the requested size, which isn't pooled. Unlike
+ * {@link BufferPool}, buffers can be acquired and released from any thread.
+ */
+public class DirectBufferPool {
+
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024L;
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1 << 30;
+
+    private static final int MIN_SIZE_CLASS = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int MAX_SIZE_CLASS = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE);
+
+    private final long _maxPooledBytes;
+    private final Queue<ByteBuffer>[] _pools;
+    private final AtomicLong _pooledBytes = new AtomicLong();
+    private final AtomicLong _numAllocated = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param maxPooledBytes max total size of the buffers kept for reuse
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public DirectBufferPool(long maxPooledBytes) {
+        _maxPooledBytes = maxPooledBytes;
+        _pools = new Queue[MAX_SIZE_CLASS + 1];
+        for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++) {
+            _pools[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * @param size number of bytes needed
+     * @return a direct buffer with position 0 and limit <code>size</code>
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + size);
+        }
+
+        ByteBuffer buffer;
+        if (size > MAX_BUFFER_SIZE) {
+            buffer = ByteBuffer.allocateDirect(size);
+            _numAllocated.incrementAndGet();
+        } else {
+            int sizeClass = getSizeClass(size);
+            buffer = _pools[sizeClass].poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+                _numAllocated.incrementAndGet();
+            } else {
+                _pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * @param data bytes to copy, from its position to its limit
+     * @return a direct buffer with a copy of <code>data</code>, ready to be
+     *         read
+     */
+    public ByteBuffer copyOf(ByteBuffer data) {
+        ByteBuffer buffer = acquire(data.remaining());
+        buffer.put(data.duplicate());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer returned by {@link #acquire(int)} (or
+     * {@link #copyOf(ByteBuffer)}). It must not be used afterwards, and it
+     * must be released only once: the pool doesn't check, and a buffer that
+     * was released twice would be handed out to two callers at once.
+     *
+     * @param buffer buffer to give back
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || (capacity < MIN_BUFFER_SIZE) || (capacity > MAX_BUFFER_SIZE) || (Integer.bitCount(capacity) != 1)) {
+            return;
+        }
+
+        if (_pooledBytes.addAndGet(capacity) > _maxPooledBytes) {
+            // Let the GC free it.
+            _pooledBytes.addAndGet(-capacity);
+            return;
+        }
+
+        _pools[Integer.numberOfTrailingZeros(capacity)].offer(buffer);
+    }
+
+    /**
+     * @return total size of the buffers kept for reuse
+     */
+    public long getPooledBytes() {
+        return _pooledBytes.get();
+    }
+
+    /**
+     * @return number of buffers that had to be allocated
+     */
+    public long getNumAllocated() {
+        return _numAllocated.get();
+    }
+
+    private static int getSizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_SIZE_CLASS;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -17,9 +17,8 @@
 package crawlercommons.util;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -27,6 +26,8 @@ import java.util.zip.InflaterInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import crawlercommons.util.BufferPool.BodyBuffer;
+
 /**
  */
 public class EncodingUtils {
@@ -34,7 +35,6 @@ public class EncodingUtils {
 
     private static final int EXPECTED_GZIP_COMPRESSION_RATIO = 5;
     private static final int EXPECTED_DEFLATE_COMPRESSION_RATIO = 5;
-    private static final int BUF_SIZE = 4096;
 
     public static class ExpandedResult {
         private byte[] _expanded;
@@ -68,36 +68,43 @@ public class EncodingUtils {
     }
 
     public static ExpandedResult processGzipEncoded(byte[] compressed, int sizeLimit) throws IOException {
-
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream(EXPECTED_GZIP_COMPRESSION_RATIO * compressed.length);
+        // Check the header first, so that content which isn't really gzip
+        // doesn't leave the pooled buffers in use.
         GZIPInputStream inStream = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        BufferPool bufferPool = BufferPool.get();
+        BodyBuffer outBuffer = bufferPool.acquireBodyBuffer(getExpectedSize(compressed, EXPECTED_GZIP_COMPRESSION_RATIO, sizeLimit));
+        byte[] buf = bufferPool.acquireReadBuffer();
 
-        boolean isTruncated = false;
-        byte[] buf = new byte[BUF_SIZE];
-        int written = 0;
-        while (true) {
-            try {
-                int size = inStream.read(buf);
-                if (size <= 0) {
-                    break;
-                }
-
-                if ((written + size) > sizeLimit) {
-                    isTruncated = true;
-                    outStream.write(buf, 0, sizeLimit - written);
+        try {
+            boolean isTruncated = false;
+            int written = 0;
+            while (true) {
+                try {
+                    int size = inStream.read(buf);
+                    if (size <= 0) {
+                        break;
+                    }
+
+                    if ((written + size) > sizeLimit) {
+                        isTruncated = true;
+                        outBuffer.write(buf, 0, sizeLimit - written);
+                        break;
+                    }
+
+                    outBuffer.write(buf, 0, size);
+                    written += size;
+                } catch (Exception e) {
+                    LOGGER.trace("Exception unzipping content", e);
                     break;
                 }
-
-                outStream.write(buf, 0, size);
-                written += size;
-            } catch (Exception e) {
-                LOGGER.trace("Exception unzipping content", e);
-                break;
             }
-        }
 
-        safeClose(outStream);
-        return new ExpandedResult(outStream.toByteArray(), isTruncated);
+            return new ExpandedResult(outBuffer.toByteArray(), isTruncated);
+        } finally {
+            safeClose(inStream);
+            bufferPool.releaseReadBuffer(buf);
+            bufferPool.releaseBodyBuffer(outBuffer);
+        }
     }
 
     // TODO KKr The following routines are designed to support the deflate
@@ -110,45 +117,56 @@ public class EncodingUtils {
     }
 
     public static byte[] processDeflateEncoded(byte[] compressed, int sizeLimit) throws IOException {
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream(EXPECTED_DEFLATE_COMPRESSION_RATIO * compressed.length);
+        BufferPool bufferPool = BufferPool.get();
+        BodyBuffer outBuffer = bufferPool.acquireBodyBuffer(getExpectedSize(compressed, EXPECTED_DEFLATE_COMPRESSION_RATIO, sizeLimit));
+        byte[] buf = bufferPool.acquireReadBuffer();
 
         // "true" because HTTP does not provide zlib headers
         Inflater inflater = new Inflater(true);
         InflaterInputStream inStream = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater);
 
-        byte[] buf = new byte[BUF_SIZE];
-        int written = 0;
-        while (true) {
-            try {
-                int size = inStream.read(buf);
-                if (size <= 0) {
-                    break;
-                }
-
-                if ((written + size) > sizeLimit) {
-                    outStream.write(buf, 0, sizeLimit - written);
+        try {
+            int written = 0;
+            while (true) {
+                try {
+                    int size = inStream.read(buf);
+                    if (size <= 0) {
+                        break;
+                    }
+
+                    if ((written + size) > sizeLimit) {
+                        outBuffer.write(buf, 0, sizeLimit - written);
+                        break;
+                    }
+
+                    outBuffer.write(buf, 0, size);
+                    written += size;
+                } catch (Exception e) {
+                    LOGGER.trace("Exception inflating content", e);
                     break;
                 }
-
-                outStream.write(buf, 0, size);
-                written += size;
-            } catch (Exception e) {
-                LOGGER.trace("Exception inflating content", e);
-                break;
             }
+
+            return outBuffer.toByteArray();
+        } finally {
+            safeClose(inStream);
+            inflater.end();
+            bufferPool.releaseReadBuffer(buf);
+            bufferPool.releaseBodyBuffer(outBuffer);
         }
+    }
 
-        safeClose(outStream);
-        return outStream.toByteArray();
+    private static int getExpectedSize(byte[] compressed, int compressionRatio, int sizeLimit) {
+        return (int) Math.min(sizeLimit, (long) compressionRatio * compressed.length);
     }
 
-    private static void safeClose(OutputStream os) {
-        if (os == null) {
+    private static void safeClose(InputStream is) {
+        if (is == null) {
             return;
         }
 
         try {
-            os.close();
+            is.close();
         } catch (IOException e) {
             LOGGER.warn("IOException closing input stream", e);
         }
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.util.Headers;
+
+public class FetchExecutorTest {
+
+    /**
+     * Fetcher that "fetches" urls after a short delay, failing for any url
+     * that contains "fail", and tracks the max number of concurrent fetches.
+     */
+    @SuppressWarnings("serial")
+    private static class DelayFetcher extends BaseFetcher {
+
+        private final AtomicInteger _active = new AtomicInteger();
+        private final AtomicInteger _maxActive = new AtomicInteger();
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            int active = _active.incrementAndGet();
+            _maxActive.accumulateAndGet(active, Math::max);
+
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+            } finally {
+                _active.decrementAndGet();
+            }
+
+            if (url.contains("fail")) {
+                throw new UrlFetchException(url, "failed");
+            } else if (url.contains("bug")) {
+                throw new IllegalStateException("Fetcher bug");
+            }
+
+            return new FetchedResult(url, url, System.currentTimeMillis(), new Headers(), new byte[0], "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        public int getMaxActive() {
+            return _maxActive.get();
+        }
+    }
+
+    private static List<String> makeUrls(int numUrls) {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < numUrls; i++) {
+            urls.add("http://domain.com/page-" + i + ((i % 10 == 0) ? "-fail" : ""));
+        }
+        return urls;
+    }
+
+    @Test
+    void testIterator() throws Exception {
+        DelayFetcher fetcher = new DelayFetcher();
+        try (FetchExecutor executor = new FetchExecutor(fetcher, 5)) {
+            Set<String> fetched = ConcurrentHashMap.newKeySet();
+            int numFailed = 0;
+
+            Iterator<Future<FetchedResult>> iter = executor.fetchAll(makeUrls(50), new Payload());
+            while (iter.hasNext()) {
+                try {
+                    fetched.add(iter.next().get().getBaseUrl());
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof UrlFetchException);
+                    numFailed += 1;
+                }
+            }
+
+            assertEquals(45, fetched.size());
+            assertEquals(5, numFailed);
+            assertTrue(fetcher.getMaxActive() <= 5);
+        }
+    }
+
+    @Test
+    void testCallback() throws Exception {
+        DelayFetcher fetcher = new DelayFetcher();
+        try (FetchExecutor executor = new FetchExecutor(fetcher, 8)) {
+            final AtomicInteger numResults = new AtomicInteger();
+            final AtomicInteger numFailed = new AtomicInteger();
+
+            executor.fetchAll(makeUrls(100), new Payload(), new FetchCallback() {
+
+                @Override
+                public void onResult(FetchedResult result) {
+                    numResults.incrementAndGet();
+                }
+
+                @Override
+                public void onException(BaseFetchException e) {
+                    numFailed.incrementAndGet();
+                }
+            });
+
+            assertEquals(90, numResults.get());
+            assertEquals(10, numFailed.get());
+            assertTrue(fetcher.getMaxActive() <= 8);
+        }
+    }
+
+    @Test
+    void testCallbackUnexpectedException() throws Exception {
+        DelayFetcher fetcher = new DelayFetcher();
+        try (FetchExecutor executor = new FetchExecutor(fetcher, 2)) {
+            final List<BaseFetchException> exceptions = new ArrayList<>();
+
+            executor.fetchAll(Arrays.asList("http://domain.com/page", "http://domain.com/bug"), new Payload(), new FetchCallback() {
+
+                @Override
+                public void onResult(FetchedResult result) {
+                }
+
+                @Override
+                public void onException(BaseFetchException e) {
+                    synchronized (exceptions) {
+                        exceptions.add(e);
+                    }
+                }
+            });
+
+            // The caller still hears about the url.
+            assertEquals(1, exceptions.size());
+            assertTrue(exceptions.get(0) instanceof IOFetchException);
+            assertEquals("http://domain.com/bug", exceptions.get(0).getUrl());
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import crawlercommons.fetcher.http.DecodeStage;
+import crawlercommons.fetcher.http.SimpleHttpFetcher;
+import crawlercommons.test.TestUtils;
+import crawlercommons.util.DirectBufferPool;
+import crawlercommons.util.Headers;
+
+public class FetchPipelineTest {
+
+    private static final String CONTENT = "<html><body>Hello world</body></html>";
+
+    /**
+     * Fetcher that returns gzipped content for every url, failing for any url
+     * that contains "fail".
+     */
+    @SuppressWarnings("serial")
+    private static class GzipFetcher extends BaseFetcher {
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            if (url.contains("fail")) {
+                throw new UrlFetchException(url, "failed");
+            }
+
+            Headers headers = new Headers();
+            headers.add("Content-Encoding", "gzip");
+            return new FetchedResult(url, url, System.currentTimeMillis(), headers, gzip(CONTENT), "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        private static byte[] gzip(String content) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(content.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Fetcher that returns content in a direct buffer for every url, and
+     * keeps track of its results.
+     */
+    @SuppressWarnings("serial")
+    private static class DirectFetcher extends BaseFetcher {
+        private final DirectBufferPool _directPool = new DirectBufferPool();
+        private final Queue<FetchedResult> _results = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            ByteBuffer content = _directPool.copyOf(ByteBuffer.wrap(CONTENT.getBytes(StandardCharsets.UTF_8)));
+            FetchedResult result = new FetchedResult(url, url, System.currentTimeMillis(), new Headers(), content, _directPool, "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+            _results.add(result);
+            return result;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    private static class RecordingCallback implements FetchCallback {
+        private final Map<String, FetchedResult> _results = new ConcurrentHashMap<>();
+        private final AtomicInteger _numFailed = new AtomicInteger();
+
+        @Override
+        public void onResult(FetchedResult result) {
+            _results.put(result.getBaseUrl(), result);
+        }
+
+        @Override
+        public void onException(BaseFetchException e) {
+            _numFailed.incrementAndGet();
+        }
+    }
+
+    @Test
+    void testStages() throws Exception {
+        GzipFetcher fetcher = new GzipFetcher();
+        RecordingCallback callback = new RecordingCallback();
+
+        try (FetchPipeline pipeline = new FetchPipeline(fetcher, 4, 10, callback)) {
+            pipeline.addStage("decode", new DecodeStage(fetcher), 2, 10);
+            pipeline.addStage("length", result -> {
+                result.getPayload().put("length", result.getContentLength());
+                return result;
+            }, 1, 10);
+
+            assertEquals(Arrays.asList(FetchPipeline.FETCH_STAGE_NAME, "decode", "length"), pipeline.getStageNames());
+
+            for (int i = 0; i < 100; i++) {
+                pipeline.submit("http://domain.com/page-" + i + ((i % 10 == 0) ? "-fail" : ""), new Payload());
+            }
+
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(90, callback._results.size());
+            assertEquals(10, callback._numFailed.get());
+
+            FetchedResult result = callback._results.get("http://domain.com/page-1");
+            assertEquals(CONTENT, new String(result.getContent(), StandardCharsets.UTF_8));
+            assertEquals(CONTENT.length(), result.getPayload().get("length"));
+
+            // So that it isn't decoded again.
+            assertNull(result.getHeaders().get("Content-Encoding"));
+            assertSame(result, new DecodeStage(fetcher).process(result));
+        }
+    }
+
+    @Test
+    void testDecodeContentFile(@TempDir Path tempDir) throws Exception {
+        GzipFetcher fetcher = new GzipFetcher();
+        Path contentFile = tempDir.resolve("page.body");
+        Files.write(contentFile, GzipFetcher.gzip(CONTENT));
+
+        Headers headers = new Headers();
+        headers.add("Content-Encoding", "gzip");
+        String url = "http://domain.com/page";
+        FetchedResult spilled = new FetchedResult(url, url, System.currentTimeMillis(), headers, new byte[0], (int) Files.size(contentFile), contentFile, "text/html", 0,
+                        new Payload(), null, 0, "127.0.0.1", 200, "OK");
+
+        // The expanded content replaces the file, which is deleted.
+        FetchedResult result = new DecodeStage(fetcher).process(spilled);
+        assertEquals(CONTENT, new String(result.getContent(), StandardCharsets.UTF_8));
+        assertNull(result.getContentFile());
+        assertFalse(Files.exists(contentFile));
+    }
+
+    @Test
+    void testDecodedByFetcher() throws Exception {
+        Headers headers = new Headers();
+        headers.add("Content-Encoding", "gzip");
+        String url = "http://domain.com/page";
+        byte[] content = CONTENT.getBytes(StandardCharsets.UTF_8);
+        FetchedResult decoded = new FetchedResult(url, url, System.currentTimeMillis(), headers, content, "text/html", 0, new Payload(), null, 0, "127.0.0.1", 200, "OK");
+
+        // By default the fetcher has already decoded the content, even though
+        // the header is still there.
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        try {
+            assertSame(decoded, new DecodeStage(fetcher).process(decoded));
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    @Test
+    void testDroppedResultsClosed() throws Exception {
+        DirectFetcher fetcher = new DirectFetcher();
+        RecordingCallback callback = new RecordingCallback();
+
+        // The input of a stage that fails is closed.
+        try (FetchPipeline pipeline = new FetchPipeline(fetcher, 2, 10, callback)) {
+            pipeline.addStage("fail", result -> {
+                throw new IllegalStateException("Broken stage");
+            }, 1, 10);
+
+            for (int i = 0; i < 5; i++) {
+                pipeline.submit("http://domain.com/page-" + i, new Payload());
+            }
+
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(5, callback._numFailed.get());
+        }
+
+        assertEquals(5, fetcher._results.size());
+        for (FetchedResult result : fetcher._results) {
+            assertFalse(result.hasDirectContent());
+        }
+
+        // So are results that are still in the pipeline when it's closed.
+        fetcher._results.clear();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        FetchPipeline pipeline = new FetchPipeline(fetcher, 2, 10, callback);
+        pipeline.addStage("slow", result -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return result;
+        }, 1, 3);
+
+        for (int i = 0; i < 5; i++) {
+            pipeline.submit("http://domain.com/page-" + i, new Payload());
+        }
+
+        long endTime = System.currentTimeMillis() + 5000;
+        while ((pipeline.getQueueDepth("slow") < 3) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+
+        pipeline.close();
+
+        // Only the result that was being processed makes it to the callback.
+        assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+        assertEquals(1, callback._results.size());
+        for (FetchedResult result : fetcher._results) {
+            assertEquals(callback._results.containsValue(result), result.hasDirectContent());
+        }
+    }
+
+    @Test
+    void testQueueDepth() throws Exception {
+        GzipFetcher fetcher = new GzipFetcher();
+        RecordingCallback callback = new RecordingCallback();
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        try (FetchPipeline pipeline = new FetchPipeline(fetcher, 2, 10, callback)) {
+            pipeline.addStage("slow", result -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return result;
+            }, 1, 3);
+
+            for (int i = 0; i < 5; i++) {
+                pipeline.submit("http://domain.com/page-" + i, new Payload());
+            }
+
+            // One result is being processed by the slow stage, three are
+            // waiting in its queue, and the last one has been taken by a fetch
+            // worker that's waiting for room in that queue.
+            long endTime = System.currentTimeMillis() + 5000;
+            while (((pipeline.getQueueDepth("slow") < 3) || (pipeline.getQueueDepth(FetchPipeline.FETCH_STAGE_NAME) > 0)) && (System.currentTimeMillis() < endTime)) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, pipeline.getNumActive("slow"));
+            assertEquals(3, pipeline.getQueueDepth("slow"));
+            assertEquals(0, pipeline.getQueueDepth(FetchPipeline.FETCH_STAGE_NAME));
+
+            blocked.countDown();
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(5, callback._results.size());
+            assertEquals(0, pipeline.getNumInPipeline());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.util.Headers;
+
+public class FetchProcessorTest {
+
+    /**
+     * Fetcher that "fetches" urls after a short delay, failing for any url
+     * that contains "fail", and tracks the max number of concurrent fetches.
+     */
+    @SuppressWarnings("serial")
+    private static class DelayFetcher extends BaseFetcher {
+
+        private final AtomicInteger _active = new AtomicInteger();
+        private final AtomicInteger _maxActive = new AtomicInteger();
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            int active = _active.incrementAndGet();
+            _maxActive.accumulateAndGet(active, Math::max);
+
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+            } finally {
+                _active.decrementAndGet();
+            }
+
+            if (url.contains("fail")) {
+                throw new UrlFetchException(url, "failed");
+            }
+
+            return new FetchedResult(url, url, System.currentTimeMillis(), new Headers(), new byte[0], "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    /**
+     * Publisher of <code>numUrls</code> urls, that only emits as many as have
+     * been requested.
+     */
+    private static class UrlPublisher implements Flow.Publisher<String> {
+        private final int _numUrls;
+
+        public UrlPublisher(int numUrls) {
+            _numUrls = numUrls;
+        }
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super String> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private int _next = 0;
+
+                @Override
+                public synchronized void request(long n) {
+                    for (long i = 0; (i < n) && (_next < _numUrls); i++, _next++) {
+                        subscriber.onNext("http://domain.com/page-" + _next + ((_next % 10 == 9) ? "-fail" : ""));
+                    }
+
+                    if (_next == _numUrls) {
+                        _next += 1;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+        }
+    }
+
+    @Test
+    void testBackpressure() throws Exception {
+        DelayFetcher fetcher = new DelayFetcher();
+        try (final FetchProcessor processor = new FetchProcessor(fetcher, 4, 3)) {
+            final AtomicInteger numFailed = new AtomicInteger();
+            processor.setExceptionHandler(e -> numFailed.incrementAndGet());
+
+            final AtomicInteger numResults = new AtomicInteger();
+            final AtomicInteger maxBuffered = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(1);
+
+            // Slow subscriber, that only requests one result at a time.
+            processor.subscribe(new Flow.Subscriber<FetchedResult>() {
+                private Flow.Subscription _subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    _subscription = subscription;
+                    _subscription.request(1);
+                }
+
+                @Override
+                public void onNext(FetchedResult item) {
+                    numResults.incrementAndGet();
+                    maxBuffered.accumulateAndGet(processor.getNumBuffered(), Math::max);
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    _subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    fail("Unexpected error: " + throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+
+            new UrlPublisher(100).subscribe(processor);
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(90, numResults.get());
+            assertEquals(10, numFailed.get());
+            assertTrue(fetcher._maxActive.get() <= 4);
+            assertTrue(maxBuffered.get() <= 3, "Max buffered was " + maxBuffered.get());
+        }
+    }
+
+    @Test
+    void testNoDemand() throws Exception {
+        DelayFetcher fetcher = new DelayFetcher();
+        try (FetchProcessor processor = new FetchProcessor(fetcher, 4, 2)) {
+            final AtomicInteger numResults = new AtomicInteger();
+            processor.subscribe(new Flow.Subscriber<FetchedResult>() {
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                }
+
+                @Override
+                public void onNext(FetchedResult item) {
+                    numResults.incrementAndGet();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+
+            new UrlPublisher(100).subscribe(processor);
+            Thread.sleep(200);
+
+            // With no downstream demand we only fetch enough to fill the buffer.
+            assertEquals(0, numResults.get());
+            assertEquals(2, processor.getNumBuffered());
+            assertEquals(0, processor.getNumActive());
+        }
+    }
+}
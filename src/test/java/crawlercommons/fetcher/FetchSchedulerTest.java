@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.util.Headers;
+
+public class FetchSchedulerTest {
+
+    /**
+     * Fetcher that records the start time of every request, by host.
+     */
+    @SuppressWarnings("serial")
+    private static class RecordingFetcher extends BaseFetcher {
+
+        private final Map<String, List<Long>> _startTimes = new ConcurrentHashMap<>();
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            try {
+                String host = new URL(url).getHost();
+                List<Long> startTimes = _startTimes.computeIfAbsent(host, k -> new ArrayList<>());
+                synchronized (startTimes) {
+                    startTimes.add(System.currentTimeMillis());
+                }
+
+                Thread.sleep(10);
+            } catch (Exception e) {
+                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+            }
+
+            return new FetchedResult(url, url, System.currentTimeMillis(), new Headers(), new byte[0], "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        public Map<String, List<Long>> getStartTimes() {
+            return _startTimes;
+        }
+    }
+
+    /**
+     * Fetcher that fails the first few requests for every URL, and always
+     * fails for URLs that contain "dead".
+     */
+    @SuppressWarnings("serial")
+    private static class FailingFetcher extends BaseFetcher {
+
+        private final int _numFailures;
+        private final Map<String, AtomicInteger> _numRequests = new ConcurrentHashMap<>();
+
+        public FailingFetcher(int numFailures) {
+            _numFailures = numFailures;
+        }
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            int numRequests = _numRequests.computeIfAbsent(url, k -> new AtomicInteger()).incrementAndGet();
+            if (url.contains("dead") || (numRequests <= _numFailures)) {
+                throw new IOFetchException(url, new IOException("Connection refused"));
+            }
+
+            return new FetchedResult(url, url, System.currentTimeMillis(), new Headers(), new byte[0], "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        public int getNumRequests(String url) {
+            return _numRequests.get(url).get();
+        }
+    }
+
+    /**
+     * Fetcher that blocks every request until it's released.
+     */
+    @SuppressWarnings("serial")
+    private static class BlockingFetcher extends BaseFetcher {
+
+        private final CountDownLatch _released = new CountDownLatch(1);
+
+        @Override
+        public FetchedResult get(String url, Payload payload) throws BaseFetchException {
+            try {
+                _released.await();
+            } catch (InterruptedException e) {
+                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+            }
+
+            return new FetchedResult(url, url, System.currentTimeMillis(), new Headers(), new byte[0], "text/html", 0, payload, null, 0, "127.0.0.1", 200, "OK");
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+    private static class CountingCallback implements FetchCallback {
+        private final AtomicInteger _numResults = new AtomicInteger();
+
+        @Override
+        public void onResult(FetchedResult result) {
+            _numResults.incrementAndGet();
+        }
+
+        @Override
+        public void onException(BaseFetchException e) {
+            fail("Unexpected exception: " + e);
+        }
+    }
+
+    @Test
+    void testCrawlDelay() throws Exception {
+        RecordingFetcher fetcher = new RecordingFetcher();
+        CountingCallback callback = new CountingCallback();
+
+        try (FetchScheduler scheduler = new FetchScheduler(fetcher, 10, callback)) {
+            scheduler.setDefaultCrawlDelay(100);
+            scheduler.setCrawlDelay("slow.com", 200);
+
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < 4; i++) {
+                for (String host : new String[] { "a.com", "b.com", "c.com", "slow.com" }) {
+                    scheduler.submit("http://" + host + "/page-" + i, new Payload());
+                }
+            }
+
+            assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(16, callback._numResults.get());
+
+            // All hosts are fetched in parallel, so the total time is driven
+            // by the slowest host (3 delays of 200ms), not the sum.
+            long elapsed = System.currentTimeMillis() - startTime;
+            assertTrue(elapsed < 1500, "Elapsed time was " + elapsed);
+
+            for (Map.Entry<String, List<Long>> entry : fetcher.getStartTimes().entrySet()) {
+                long minDelay = entry.getKey().equals("slow.com") ? 200 : 100;
+                List<Long> startTimes = entry.getValue();
+                assertEquals(4, startTimes.size());
+                for (int i = 1; i < startTimes.size(); i++) {
+                    long delay = startTimes.get(i) - startTimes.get(i - 1);
+                    assertTrue(delay >= minDelay, "Delay for " + entry.getKey() + " was " + delay);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRetries() throws Exception {
+        FailingFetcher fetcher = new FailingFetcher(2);
+        AtomicInteger numResults = new AtomicInteger();
+        List<BaseFetchException> exceptions = new ArrayList<>();
+        FetchCallback callback = new FetchCallback() {
+
+            @Override
+            public void onResult(FetchedResult result) {
+                numResults.incrementAndGet();
+            }
+
+            @Override
+            public void onException(BaseFetchException e) {
+                synchronized (exceptions) {
+                    exceptions.add(e);
+                }
+            }
+        };
+
+        try (FetchScheduler scheduler = new FetchScheduler(fetcher, 2, callback)) {
+            scheduler.setDefaultCrawlDelay(0);
+            RetryPolicy retryPolicy = new RetryPolicy();
+            retryPolicy.setBackoff(10, 50);
+            retryPolicy.setMaxRetries(3);
+            retryPolicy.setHostBudget(1.0, 10);
+            scheduler.setRetryPolicy(retryPolicy);
+
+            for (int i = 0; i < 3; i++) {
+                scheduler.submit("http://a.com/page-" + i, new Payload());
+            }
+
+            scheduler.submit("http://dead.com/page", new Payload());
+
+            assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(0, scheduler.getNumWaitingForRetry());
+
+            // Pages on a.com succeed on the third try.
+            assertEquals(3, numResults.get());
+            assertEquals(3, fetcher.getNumRequests("http://a.com/page-0"));
+
+            // The page on dead.com gives up after the max retries.
+            assertEquals(1, exceptions.size());
+            assertEquals(4, fetcher.getNumRequests("http://dead.com/page"));
+        }
+    }
+
+    @Test
+    void testRetryBudget() throws Exception {
+        FailingFetcher fetcher = new FailingFetcher(0);
+        AtomicInteger numExceptions = new AtomicInteger();
+        FetchCallback callback = new FetchCallback() {
+
+            @Override
+            public void onResult(FetchedResult result) {
+                fail("Unexpected result: " + result);
+            }
+
+            @Override
+            public void onException(BaseFetchException e) {
+                numExceptions.incrementAndGet();
+            }
+        };
+
+        try (FetchScheduler scheduler = new FetchScheduler(fetcher, 2, callback)) {
+            scheduler.setDefaultCrawlDelay(0);
+            RetryPolicy retryPolicy = new RetryPolicy();
+            retryPolicy.setBackoff(1, 5);
+            retryPolicy.setHostBudget(0.0, 5);
+            scheduler.setRetryPolicy(retryPolicy);
+
+            for (int i = 0; i < 10; i++) {
+                scheduler.submit("http://dead.com/page-" + i, new Payload());
+            }
+
+            // Only 5 retries in total for the host, rather than 3 per page.
+            assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(10, numExceptions.get());
+            assertEquals(5, retryPolicy.getNumRetries());
+        }
+    }
+
+    @Test
+    void testMaxConcurrentPerHost() throws Exception {
+        RecordingFetcher fetcher = new RecordingFetcher();
+        CountingCallback callback = new CountingCallback();
+
+        try (FetchScheduler scheduler = new FetchScheduler(fetcher, 4, callback)) {
+            scheduler.setDefaultCrawlDelay(0);
+            scheduler.setMaxConcurrentPerHost(2);
+
+            for (int i = 0; i < 20; i++) {
+                scheduler.submit("http://a.com/page-" + i, new Payload());
+            }
+
+            assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(20, callback._numResults.get());
+            assertEquals(0, scheduler.getNumPending());
+            assertEquals(0, scheduler.getNumActive());
+
+            // Each fetch takes at least 10ms, so with two at a time and 20
+            // urls we can't have started more than 2 in any 10ms window.
+            List<Long> startTimes = fetcher.getStartTimes().get("a.com");
+            for (int i = 2; i < startTimes.size(); i++) {
+                assertTrue(startTimes.get(i) - startTimes.get(i - 2) >= 10);
+            }
+        }
+    }
+
+    @Test
+    void testRaiseMaxConcurrentPerHost() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        CountingCallback callback = new CountingCallback();
+
+        try (FetchScheduler scheduler = new FetchScheduler(fetcher, 4, callback)) {
+            scheduler.setDefaultCrawlDelay(0);
+            for (int i = 0; i < 3; i++) {
+                scheduler.submit("http://a.com/page-" + i, new Payload());
+            }
+
+            waitForNumActive(scheduler, 1);
+            Thread.sleep(100);
+            assertEquals(1, scheduler.getNumActive());
+
+            // The host's other urls are fetched right away, without waiting
+            // for the active fetch to finish.
+            scheduler.setMaxConcurrentPerHost(3);
+            waitForNumActive(scheduler, 3);
+            assertEquals(3, scheduler.getNumActive());
+
+            fetcher._released.countDown();
+            assertTrue(scheduler.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(3, callback._numResults.get());
+        }
+    }
+
+    private static void waitForNumActive(FetchScheduler scheduler, int numActive) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 5000;
+        while ((scheduler.getNumActive() < numActive) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+    }
+}
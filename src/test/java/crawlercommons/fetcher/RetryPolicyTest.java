@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+public class RetryPolicyTest {
+
+    private static final BaseFetchException IO_EXCEPTION = new IOFetchException("http://domain.com/", new IOException());
+
+    @Test
+    void testBackoff() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(100, 1000);
+        policy.setMaxRetries(10);
+        policy.setHostBudget(1.0, 100);
+
+        for (int i = 0; i < 10; i++) {
+            long maxDelay = Math.min(1000, 100L << i);
+            long delay = policy.getRetryDelay("domain.com", i, IO_EXCEPTION);
+            assertTrue((delay >= maxDelay / 2) && (delay <= maxDelay), "Delay for retry " + i + " was " + delay);
+        }
+
+        assertEquals(-1, policy.getRetryDelay("domain.com", 10, IO_EXCEPTION));
+        assertEquals(10, policy.getNumRetries());
+    }
+
+    @Test
+    void testNotRetriable() {
+        RetryPolicy policy = new RetryPolicy();
+        assertEquals(-1, policy.getRetryDelay("domain.com", 0, new UrlFetchException("bad-url", "Invalid URL")));
+        assertEquals(-1, policy.getRetryDelay("domain.com", 0, new AbortedFetchException("http://domain.com/", AbortedFetchReason.INTERRUPTED)));
+    }
+
+    @Test
+    void testHostBudget() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setHostBudget(0.5, 2);
+
+        // A new host starts with a full budget.
+        assertTrue(policy.getRetryDelay("domain.com", 0, IO_EXCEPTION) >= 0);
+        assertTrue(policy.getRetryDelay("domain.com", 0, IO_EXCEPTION) >= 0);
+        assertEquals(-1, policy.getRetryDelay("domain.com", 0, IO_EXCEPTION));
+        assertEquals(1, policy.getNumOverBudget());
+
+        // Other hosts have their own budget.
+        assertTrue(policy.getRetryDelay("other.com", 0, IO_EXCEPTION) >= 0);
+
+        // Every two first attempts earn one retry.
+        policy.onFirstAttempt("domain.com");
+        assertEquals(-1, policy.getRetryDelay("domain.com", 0, IO_EXCEPTION));
+        policy.onFirstAttempt("domain.com");
+        assertTrue(policy.getRetryDelay("domain.com", 0, IO_EXCEPTION) >= 0);
+    }
+
+    @Test
+    void testTotalBudget() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setTotalBudget(0.1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(policy.getRetryDelay("domain-" + i + ".com", 0, IO_EXCEPTION) >= 0);
+        }
+
+        assertEquals(-1, policy.getRetryDelay("domain-4.com", 0, IO_EXCEPTION));
+    }
+}
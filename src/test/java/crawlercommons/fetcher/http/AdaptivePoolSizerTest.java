@@ -0,0 +1,171 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AdaptivePoolSizerTest {
+
+    /**
+     * Pool that just records per-route limits, with a settable number of
+     * pending requests for every route.
+     */
+    private static class FakePool implements ConnPoolControl<HttpRoute> {
+        private final Map<HttpRoute, Integer> _maxPerRoute = new HashMap<>();
+        private int _pending = 0;
+
+        @Override
+        public void setMaxTotal(int max) {
+        }
+
+        @Override
+        public int getMaxTotal() {
+            return 100;
+        }
+
+        @Override
+        public void setDefaultMaxPerRoute(int max) {
+        }
+
+        @Override
+        public int getDefaultMaxPerRoute() {
+            return 2;
+        }
+
+        @Override
+        public void setMaxPerRoute(HttpRoute route, int max) {
+            if (max > -1) {
+                _maxPerRoute.put(route, max);
+            } else {
+                _maxPerRoute.remove(route);
+            }
+        }
+
+        @Override
+        public int getMaxPerRoute(HttpRoute route) {
+            return _maxPerRoute.getOrDefault(route, getDefaultMaxPerRoute());
+        }
+
+        @Override
+        public PoolStats getTotalStats() {
+            return new PoolStats(0, _pending, 0, getMaxTotal());
+        }
+
+        @Override
+        public PoolStats getStats(HttpRoute route) {
+            return new PoolStats(getMaxPerRoute(route), _pending, 0, getMaxPerRoute(route));
+        }
+    }
+
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("domain.com", 80));
+
+    private FakePool _pool;
+    private AdaptivePoolSizer _sizer;
+
+    @BeforeEach
+    public void setUp() {
+        _pool = new FakePool();
+        _sizer = new AdaptivePoolSizer(_pool, 2, 1, 5);
+        _sizer.setAdjustInterval(0);
+    }
+
+    @Test
+    void testIncreaseWhenQueued() {
+        // No requests waiting, so no reason to increase.
+        _sizer.onSuccess(ROUTE, 50);
+        assertEquals(2, _sizer.getMaxPerRoute(ROUTE));
+
+        _pool._pending = 3;
+        for (int i = 0; i < 10; i++) {
+            _sizer.onSuccess(ROUTE, 50);
+        }
+
+        // Capped at the max.
+        assertEquals(5, _sizer.getMaxPerRoute(ROUTE));
+        assertEquals(5, _pool.getMaxPerRoute(ROUTE));
+        assertEquals(3, _sizer.getNumIncreases());
+    }
+
+    @Test
+    void testDecreaseOnErrors() {
+        _pool._pending = 3;
+        _sizer.onSuccess(ROUTE, 50);
+        _sizer.onSuccess(ROUTE, 50);
+        assertEquals(4, _sizer.getMaxPerRoute(ROUTE));
+
+        _sizer.onFailure(ROUTE);
+        assertEquals(2, _sizer.getMaxPerRoute(ROUTE));
+        _sizer.onFailure(ROUTE);
+        _sizer.onFailure(ROUTE);
+        assertEquals(1, _sizer.getMaxPerRoute(ROUTE));
+        assertEquals(1, _pool.getMaxPerRoute(ROUTE));
+    }
+
+    @Test
+    void testDecreaseOnLatency() {
+        _pool._pending = 3;
+        _sizer.onSuccess(ROUTE, 50);
+        _sizer.onSuccess(ROUTE, 50);
+        assertEquals(4, _sizer.getMaxPerRoute(ROUTE));
+
+        // Latency goes up a lot, and after a few samples the average is high
+        // enough to back off.
+        for (int i = 0; i < 5; i++) {
+            _sizer.onSuccess(ROUTE, 1000);
+        }
+
+        assertTrue(_sizer.getMaxPerRoute(ROUTE) < 4);
+        assertTrue(_sizer.getNumDecreases() > 0);
+    }
+
+    @Test
+    void testAdjustInterval() {
+        _sizer.setAdjustInterval(60 * 1000L);
+        _pool._pending = 3;
+        for (int i = 0; i < 10; i++) {
+            _sizer.onSuccess(ROUTE, 50);
+        }
+
+        assertEquals(2, _sizer.getMaxPerRoute(ROUTE));
+    }
+
+    @Test
+    void testMaxRoutes() {
+        _sizer.setMaxRoutes(10);
+        _pool._pending = 3;
+        for (int i = 0; i < 20; i++) {
+            HttpRoute route = new HttpRoute(new HttpHost("domain-" + i + ".com", 80));
+            _sizer.onSuccess(route, 50);
+            _sizer.onSuccess(route, 50);
+        }
+
+        assertEquals(10, _sizer.getNumRoutes());
+
+        // Dropped routes revert to the pool's default.
+        assertEquals(10, _pool._maxPerRoute.size());
+    }
+}
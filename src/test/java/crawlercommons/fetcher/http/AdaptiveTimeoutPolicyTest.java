@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.http.AdaptiveTimeoutPolicy.MyHistogram;
+
+public class AdaptiveTimeoutPolicyTest {
+
+    private AdaptiveTimeoutPolicy _policy;
+
+    @BeforeEach
+    public void setUp() {
+        _policy = new AdaptiveTimeoutPolicy();
+        _policy.setPercentile(0.9, 2.0);
+        _policy.setSamples(10, 100);
+        _policy.setConnectTimeoutBounds(100, 5000);
+        _policy.setSocketTimeoutBounds(100, 5000);
+    }
+
+    @Test
+    void testHistogram() {
+        MyHistogram histogram = new MyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i * 10, 1000);
+        }
+
+        // Percentiles are rounded up to the end of their bucket, which is
+        // at most ~19% higher.
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue((p50 >= 500) && (p50 <= 500 * 1.19), "p50 was " + p50);
+        long p90 = histogram.getPercentile(0.9);
+        assertTrue((p90 >= 900) && (p90 <= 900 * 1.19), "p90 was " + p90);
+        assertEquals(histogram.getPercentile(1.0), MyHistogram.getUpperBound(MyHistogram.getBucket(1000)));
+    }
+
+    @Test
+    void testHistogramDecay() {
+        MyHistogram histogram = new MyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.add(1000, 100);
+        }
+
+        // Older samples are halved each time the histogram is full, so the
+        // new latency takes over.
+        for (int i = 0; i < 100; i++) {
+            histogram.add(10, 100);
+        }
+
+        assertTrue(histogram.getTotal() <= 100);
+        assertTrue(histogram.getPercentile(0.5) < 20);
+        assertTrue(histogram.getPercentile(0.95) >= 1000);
+    }
+
+    @Test
+    void testMinSamples() {
+        for (int i = 0; i < 9; i++) {
+            _policy.recordConnectTime("domain.com", 50);
+        }
+
+        assertEquals(30000, _policy.getConnectTimeout("domain.com", 30000));
+        _policy.recordConnectTime("domain.com", 50);
+        int timeout = _policy.getConnectTimeout("domain.com", 30000);
+        assertTrue((timeout >= 100) && (timeout <= 120), "Timeout was " + timeout);
+
+        // No samples for the time to first byte yet.
+        assertEquals(30000, _policy.getSocketTimeout("domain.com", 30000));
+        assertEquals(30000, _policy.getSocketTimeout("other.com", 30000));
+    }
+
+    @Test
+    void testBounds() {
+        for (int i = 0; i < 10; i++) {
+            _policy.recordFirstByteTime("fast.com", 1);
+            _policy.recordFirstByteTime("slow.com", 10000);
+        }
+
+        assertEquals(100, _policy.getSocketTimeout("fast.com", 30000));
+        assertEquals(5000, _policy.getSocketTimeout("slow.com", 30000));
+    }
+
+    @Test
+    void testMaxHosts() {
+        _policy.setMaxHosts(10);
+        for (int i = 0; i < 20; i++) {
+            _policy.recordConnectTime("domain-" + i + ".com", 50);
+        }
+
+        assertEquals(10, _policy.getNumHosts());
+    }
+}
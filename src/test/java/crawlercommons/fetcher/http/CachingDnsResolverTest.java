@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.jupiter.api.Test;
+
+public class CachingDnsResolverTest {
+
+    /**
+     * Resolver that maps every host to 127.0.0.1, except for hosts starting
+     * with "dead" (unknown) or "slow" (which take 500ms).
+     */
+    private static class CountingResolver implements DnsResolver {
+        private final AtomicInteger _numLookups = new AtomicInteger();
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            _numLookups.incrementAndGet();
+            if (host.startsWith("dead")) {
+                throw new UnknownHostException(host);
+            }
+
+            if (host.startsWith("slow")) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException(host);
+                }
+            }
+
+            return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 1 }) };
+        }
+    }
+
+    @Test
+    void testCaching() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        try (CachingDnsResolver resolver = new CachingDnsResolver(countingResolver, 2)) {
+            resolver.setTtl(200);
+            resolver.setRefreshAhead(0);
+
+            assertEquals("127.0.0.1", resolver.resolve("domain.com")[0].getHostAddress());
+            assertEquals("127.0.0.1", resolver.resolve("DOMAIN.com")[0].getHostAddress());
+            assertEquals(1, countingResolver._numLookups.get());
+            assertEquals(1, resolver.getNumMisses());
+            assertEquals(1, resolver.getNumHits());
+
+            Thread.sleep(300);
+            resolver.resolve("domain.com");
+            assertEquals(2, countingResolver._numLookups.get());
+        }
+    }
+
+    @Test
+    void testNegativeCaching() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        try (CachingDnsResolver resolver = new CachingDnsResolver(countingResolver, 2)) {
+            resolver.setNegativeTtl(200);
+
+            for (int i = 0; i < 3; i++) {
+                assertThrows(UnknownHostException.class, () -> resolver.resolve("dead.com"));
+            }
+
+            assertEquals(1, countingResolver._numLookups.get());
+            assertEquals(2, resolver.getNumNegativeHits());
+
+            Thread.sleep(300);
+            assertThrows(UnknownHostException.class, () -> resolver.resolve("dead.com"));
+            assertEquals(2, countingResolver._numLookups.get());
+        }
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        try (CachingDnsResolver resolver = new CachingDnsResolver(countingResolver, 2)) {
+            resolver.setLookupTimeout(100);
+
+            long startTime = System.currentTimeMillis();
+            assertThrows(UnknownHostException.class, () -> resolver.resolve("slow.com"));
+            assertTrue(System.currentTimeMillis() - startTime < 400);
+            assertEquals(1, resolver.getNumTimeouts());
+
+            // Timeouts are cached like unknown hosts.
+            assertThrows(UnknownHostException.class, () -> resolver.resolve("slow.com"));
+            assertEquals(1, countingResolver._numLookups.get());
+        }
+    }
+
+    @Test
+    void testRefreshAhead() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        try (CachingDnsResolver resolver = new CachingDnsResolver(countingResolver, 2)) {
+            resolver.setTtl(300);
+            resolver.setRefreshAhead(250);
+
+            resolver.resolve("domain.com");
+            Thread.sleep(100);
+
+            // Within the refresh-ahead period, so we get the cached entry, and
+            // trigger a background refresh.
+            resolver.resolve("domain.com");
+            Thread.sleep(100);
+            assertEquals(1, resolver.getNumRefreshes());
+            assertEquals(2, countingResolver._numLookups.get());
+
+            // Original entry would have expired by now, but was replaced.
+            Thread.sleep(150);
+            resolver.setRefreshAhead(0);
+            resolver.resolve("domain.com");
+            assertEquals(2, countingResolver._numLookups.get());
+            assertEquals(1, resolver.getNumMisses());
+        }
+    }
+
+    @Test
+    void testEviction() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        try (CachingDnsResolver resolver = new CachingDnsResolver(countingResolver, 2)) {
+            resolver.setMaxEntries(10);
+
+            for (int i = 0; i < 30; i++) {
+                resolver.resolve("domain-" + i + ".com");
+            }
+
+            assertTrue(resolver.size() <= 10);
+
+            // Most recent entries are kept.
+            resolver.resolve("domain-29.com");
+            assertEquals(30, countingResolver._numLookups.get());
+        }
+    }
+
+    @Test
+    void testPrefetchHosts() throws Exception {
+        CountingResolver countingResolver = new CountingResolver();
+        try (CachingDnsResolver resolver = new CachingDnsResolver(countingResolver, 4)) {
+            resolver.setLookupTimeout(200);
+
+            List<String> hosts = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                hosts.add("domain-" + i + ".com");
+            }
+            hosts.add("dead.com");
+            hosts.add("slow.com");
+            hosts.add("domain-0.com");
+
+            Set<String> unresolved = resolver.prefetchHosts(hosts);
+            assertEquals(new HashSet<>(Arrays.asList("dead.com", "slow.com")), unresolved);
+            assertEquals(22, countingResolver._numLookups.get());
+
+            // Everything is now cached.
+            resolver.resolve("domain-10.com");
+            assertEquals(22, countingResolver._numLookups.get());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.http.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private CircuitBreaker _breaker;
+
+    @BeforeEach
+    public void setUp() {
+        _breaker = new CircuitBreaker();
+        _breaker.setFailureThreshold(3);
+    }
+
+    @Test
+    void testTripsOnConsecutiveFailures() {
+        _breaker.onFailure("domain.com");
+        _breaker.onFailure("domain.com");
+        _breaker.onSuccess("domain.com");
+        _breaker.onFailure("domain.com");
+        _breaker.onFailure("domain.com");
+
+        // A success in between resets the count.
+        assertEquals(State.CLOSED, _breaker.getState("domain.com"));
+        assertTrue(_breaker.allowRequest("domain.com"));
+
+        _breaker.onFailure("domain.com");
+        assertEquals(State.OPEN, _breaker.getState("domain.com"));
+        assertFalse(_breaker.allowRequest("domain.com"));
+        assertEquals(1, _breaker.getNumTrips());
+        assertEquals(1, _breaker.getNumRejected());
+
+        // Other hosts aren't affected.
+        assertTrue(_breaker.allowRequest("other.com"));
+    }
+
+    @Test
+    void testHalfOpenProbe() {
+        for (int i = 0; i < 3; i++) {
+            _breaker.onFailure("domain.com");
+        }
+
+        assertFalse(_breaker.allowRequest("domain.com"));
+
+        // Once the open duration has passed, one probe is allowed at a time.
+        _breaker.setOpenDuration(0);
+        assertTrue(_breaker.allowRequest("domain.com"));
+        assertEquals(State.HALF_OPEN, _breaker.getState("domain.com"));
+        _breaker.setOpenDuration(60 * 1000L);
+        assertFalse(_breaker.allowRequest("domain.com"));
+
+        // Failed probe re-opens the circuit right away.
+        _breaker.onFailure("domain.com");
+        assertEquals(State.OPEN, _breaker.getState("domain.com"));
+        assertEquals(2, _breaker.getNumTrips());
+
+        // Successful probe closes it.
+        _breaker.setOpenDuration(0);
+        assertTrue(_breaker.allowRequest("domain.com"));
+        _breaker.onSuccess("domain.com");
+        assertEquals(State.CLOSED, _breaker.getState("domain.com"));
+        assertEquals(0, _breaker.getNumHosts());
+    }
+
+    @Test
+    void testMaxHosts() {
+        _breaker.setMaxHosts(10);
+        for (int i = 0; i < 20; i++) {
+            _breaker.onFailure("domain-" + i + ".com");
+        }
+
+        assertEquals(10, _breaker.getNumHosts());
+    }
+}
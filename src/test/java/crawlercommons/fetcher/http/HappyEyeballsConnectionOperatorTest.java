@@ -0,0 +1,146 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.fetcher.IOFetchException;
+import crawlercommons.test.ResourcesResponseHandler;
+import crawlercommons.test.SimulationWebServer;
+import crawlercommons.test.TestUtils;
+
+public class HappyEyeballsConnectionOperatorTest {
+
+    private static final String HOST = "dualstack.test";
+
+    // An IPv6 address that's never routed (RFC 6666), so connecting to it
+    // either hangs or fails right away, like a broken AAAA record.
+    private static final byte[] BLACKHOLE_IPV6 = { 0x01, 0x00, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+    private static final byte[] LOCALHOST_IPV4 = { 127, 0, 0, 1 };
+
+    /**
+     * Resolves every host to a broken IPv6 address followed by 127.0.0.1.
+     */
+    private static class DualStackResolver implements DnsResolver {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return new InetAddress[] { InetAddress.getByAddress(host, BLACKHOLE_IPV6), InetAddress.getByAddress(host, LOCALHOST_IPV4) };
+        }
+    }
+
+    private SimulationWebServer _webServer;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _webServer = new SimulationWebServer();
+        _webServer.startServer(new ResourcesResponseHandler(), 8089);
+    }
+
+    @AfterEach
+    public void shutDown() throws Exception {
+        _webServer.stopServer();
+    }
+
+    @Test
+    void testBrokenIPv6() throws Exception {
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setDnsResolver(new DualStackResolver());
+
+        // Without racing, this would take the full connection timeout.
+        long startTime = System.currentTimeMillis();
+        FetchedResult result = fetcher.get("http://" + HOST + ":8089/simple-page.html");
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+        assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+        assertEquals("127.0.0.1", result.getHostAddress());
+        fetcher.close();
+    }
+
+    @Test
+    void testRememberWinner() throws Exception {
+        RegistryBuilder<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create();
+        registry.register("http", PlainConnectionSocketFactory.getSocketFactory());
+        HappyEyeballsConnectionOperator operator = new HappyEyeballsConnectionOperator(registry.build(), new DualStackResolver());
+        InetAddress[] addresses = new DualStackResolver().resolve(HOST);
+
+        // By default the resolver's order is used.
+        assertNull(operator.getPreferIPv6(HOST));
+        assertArrayEquals(addresses, operator.orderAddresses(HOST, addresses).toArray());
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(operator, null, -1, TimeUnit.MILLISECONDS);
+        try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).build()) {
+            client.execute(new HttpGet("http://" + HOST + ":8089/simple-page.html")).close();
+        }
+
+        assertEquals(Boolean.FALSE, operator.getPreferIPv6(HOST));
+        assertEquals(Arrays.asList(addresses[1], addresses[0]), operator.orderAddresses(HOST, addresses));
+
+        // Once closed, there are no threads for racing connections.
+        operator.close();
+        connectionManager = new PoolingHttpClientConnectionManager(operator, null, -1, TimeUnit.MILLISECONDS);
+        try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).disableAutomaticRetries().build()) {
+            assertThrows(IOException.class, () -> client.execute(new HttpGet("http://" + HOST + ":8089/simple-page.html")));
+        }
+    }
+
+    @Test
+    void testInterleaving() throws Exception {
+        HappyEyeballsConnectionOperator operator = new HappyEyeballsConnectionOperator(RegistryBuilder.<ConnectionSocketFactory>create().build(), null);
+        InetAddress v4a = InetAddress.getByAddress(HOST, new byte[] { 10, 0, 0, 1 });
+        InetAddress v4b = InetAddress.getByAddress(HOST, new byte[] { 10, 0, 0, 2 });
+        InetAddress v6a = InetAddress.getByAddress(HOST, BLACKHOLE_IPV6);
+
+        List<InetAddress> ordered = operator.orderAddresses(HOST, new InetAddress[] { v4a, v4b, v6a });
+        assertEquals(Arrays.asList(v4a, v6a, v4b), ordered);
+    }
+
+    @Test
+    void testAllAttemptsFail() throws Exception {
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setDnsResolver(host -> new InetAddress[] { InetAddress.getByAddress(host, LOCALHOST_IPV4), InetAddress.getByAddress(host, new byte[] { 127, 0, 0, 2 }) });
+
+        try {
+            fetcher.get("http://" + HOST + ":8088/simple-page.html");
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+
+        fetcher.close();
+    }
+}
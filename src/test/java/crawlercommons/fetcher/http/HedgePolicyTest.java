@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class HedgePolicyTest {
+
+    @Test
+    void testFixedDelay() {
+        HedgePolicy policy = new HedgePolicy();
+        policy.setDelay(300, 20);
+        assertEquals(300, policy.getHedgeDelay("domain.com", null));
+
+        // Without enough samples the fixed delay is used.
+        AdaptiveTimeoutPolicy timeoutPolicy = new AdaptiveTimeoutPolicy();
+        timeoutPolicy.recordFirstByteTime("domain.com", 100);
+        assertEquals(300, policy.getHedgeDelay("domain.com", timeoutPolicy));
+    }
+
+    @Test
+    void testPercentileDelay() {
+        HedgePolicy policy = new HedgePolicy();
+        policy.setDelay(300, 20);
+        policy.setPercentile(0.9);
+
+        AdaptiveTimeoutPolicy timeoutPolicy = new AdaptiveTimeoutPolicy();
+        timeoutPolicy.setSamples(10, 1000);
+        for (int i = 0; i < 9; i++) {
+            timeoutPolicy.recordFirstByteTime("domain.com", 100);
+        }
+
+        timeoutPolicy.recordFirstByteTime("domain.com", 2000);
+
+        // Buckets round up by at most 19%.
+        long delay = policy.getHedgeDelay("domain.com", timeoutPolicy);
+        assertTrue((delay >= 100) && (delay <= 119), "Delay was " + delay);
+        assertEquals(300, policy.getHedgeDelay("other.com", timeoutPolicy));
+
+        // Very fast hosts still get the min delay.
+        for (int i = 0; i < 10; i++) {
+            timeoutPolicy.recordFirstByteTime("fast.com", 1);
+        }
+
+        assertEquals(20, policy.getHedgeDelay("fast.com", timeoutPolicy));
+
+        // A percentile of 0 means always use the fixed delay.
+        policy.setPercentile(0.0);
+        assertEquals(300, policy.getHedgeDelay("domain.com", timeoutPolicy));
+    }
+
+    @Test
+    void testBudget() {
+        HedgePolicy policy = new HedgePolicy();
+        policy.setBudget(0.5, 2);
+
+        // The budget starts full.
+        assertTrue(policy.tryHedge());
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+
+        policy.onRequest();
+        assertFalse(policy.tryHedge());
+        policy.onRequest();
+        assertTrue(policy.tryHedge());
+
+        // Tokens are capped at the max.
+        for (int i = 0; i < 10; i++) {
+            policy.onRequest();
+        }
+
+        assertTrue(policy.tryHedge());
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+
+        assertEquals(5, policy.getNumHedges());
+        assertEquals(3, policy.getNumOverBudget());
+    }
+
+    @Test
+    void testInvalidSettings() {
+        HedgePolicy policy = new HedgePolicy();
+        assertThrows(IllegalArgumentException.class, () -> policy.setDelay(10, 20));
+        assertThrows(IllegalArgumentException.class, () -> policy.setPercentile(1.5));
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.AbortedFetchException;
+import crawlercommons.fetcher.AbortedFetchReason;
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.fetcher.IOFetchException;
+import crawlercommons.fetcher.Payload;
+import crawlercommons.fetcher.RedirectFetchException;
+import crawlercommons.fetcher.RedirectFetchException.RedirectExceptionReason;
+import crawlercommons.fetcher.http.BaseHttpFetcher.RedirectMode;
+import crawlercommons.test.RandomResponseHandler;
+import crawlercommons.test.RedirectResponseHandler;
+import crawlercommons.test.ResourcesResponseHandler;
+import crawlercommons.test.SimulationWebServer;
+import crawlercommons.test.TestUtils;
+
+public class Http2FetcherTest {
+
+    /**
+     * Handler that records the protocol and client port of every request, so
+     * we can tell how many connections were used.
+     */
+    private static class ConnectionTrackingHandler extends AbstractHandler {
+        private final Set<Integer> _clientPorts = ConcurrentHashMap.newKeySet();
+        private final Set<String> _protocols = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            _clientPorts.add(request.getRemotePort());
+            _protocols.add(request.getProtocol());
+
+            byte[] content = "<html><body>page</body></html>".getBytes(StandardCharsets.UTF_8);
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+            baseRequest.setHandled(true);
+        }
+    }
+
+    /**
+     * Handler that sends the first half of the body right away, and the
+     * second half after a delay.
+     */
+    private static class SlowLastChunkHandler extends AbstractHandler {
+        private final long _delay;
+
+        public SlowLastChunkHandler(long delay) {
+            _delay = delay;
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            byte[] content = new byte[2000];
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content, 0, content.length / 2);
+            response.getOutputStream().flush();
+
+            try {
+                Thread.sleep(_delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            response.getOutputStream().write(content, content.length / 2, content.length / 2);
+            baseRequest.setHandled(true);
+        }
+    }
+
+    private SimulationWebServer _webServer;
+    private Http2Fetcher _fetcher;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _webServer = new SimulationWebServer();
+        _fetcher = new Http2Fetcher(10, TestUtils.CC_TEST_AGENT);
+    }
+
+    @AfterEach
+    public void shutDown() throws Exception {
+        _fetcher.close();
+        _webServer.stopServer();
+    }
+
+    private void startServer(Handler handler, int port) throws Exception {
+        _webServer.startHttp2Server(handler, port);
+    }
+
+    @Test
+    final void testSimpleFetch() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        String url = "http://localhost:8089/simple-page.html";
+        Payload payload = new Payload();
+        payload.put("payload-field-1", 1);
+        FetchedResult result = _fetcher.get(url, payload);
+
+        assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+        assertEquals("OK", result.getReasonPhrase());
+        assertEquals(url, result.getFetchedUrl());
+        assertEquals("", result.getHostAddress());
+        assertEquals("text/html", result.getContentType());
+        assertNotNull(result.getHeaders().get("Content-Type"));
+        assertTrue(result.getContentLength() > 0);
+        assertEquals(1, result.getPayload().get("payload-field-1"));
+    }
+
+    @Test
+    final void testHostAddress() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        FetchedResult result = _fetcher.get("http://127.0.0.1:8089/simple-page.html");
+        assertEquals("127.0.0.1", result.getHostAddress());
+
+        // Host names are only mapped via cached lookups.
+        try (CachingDnsResolver resolver = new CachingDnsResolver()) {
+            _fetcher.setDnsResolver(resolver);
+            resolver.prefetchHosts(Collections.singleton("localhost"));
+            result = _fetcher.get("http://localhost:8089/simple-page.html");
+            assertEquals("127.0.0.1", result.getHostAddress());
+        }
+    }
+
+    @Test
+    final void testMultiplexing() throws Exception {
+        ConnectionTrackingHandler handler = new ConnectionTrackingHandler();
+        startServer(handler, 8089);
+
+        // The first request upgrades the connection to HTTP/2.
+        _fetcher.get("http://localhost:8089/page-0.html");
+        handler._clientPorts.clear();
+        handler._protocols.clear();
+
+        List<CompletableFuture<FetchedResult>> futures = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            futures.add(_fetcher.fetchAsync("http://localhost:8089/page-" + i + ".html", new Payload()));
+        }
+
+        for (CompletableFuture<FetchedResult> future : futures) {
+            assertEquals(HttpStatus.SC_OK, future.get().getStatusCode());
+        }
+
+        assertEquals(1, handler._clientPorts.size());
+        assertEquals("HTTP/2.0", handler._protocols.iterator().next());
+    }
+
+    @Test
+    final void testConnectionRefused() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        String url = "http://localhost:8088/simple-page.html";
+
+        try {
+            _fetcher.get(url);
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+    }
+
+    @Test
+    final void testTruncation() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        _fetcher.setDefaultMaxContentSize(1000);
+        _fetcher.setMaxContentSize("image/png", 1500);
+
+        FetchedResult result = _fetcher.get("http://localhost:8089/karlie.html");
+        assertEquals(1000, result.getContentLength());
+
+        // Make sure the connection is still usable after truncation.
+        result = _fetcher.get("http://localhost:8089/karlie.html");
+        assertEquals(1000, result.getContentLength());
+
+        try {
+            _fetcher.get("http://localhost:8089/bixolabs_mining.png");
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.CONTENT_SIZE, e.getAbortReason());
+        }
+    }
+
+    @Test
+    final void testMimeTypeFiltering() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        Set<String> validMimeTypes = new HashSet<String>();
+        validMimeTypes.add("text/plain");
+        _fetcher.setValidMimeTypes(validMimeTypes);
+
+        try {
+            _fetcher.get("http://localhost:8089/simple-page.html");
+            fail("Fetch should have failed");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.INVALID_MIMETYPE, e.getAbortReason());
+        }
+    }
+
+    @Test
+    final void testFetchDurationTimeout() throws Exception {
+        startServer(new RandomResponseHandler(20000, 2 * 1000L), 8089);
+        _fetcher.setFetchDurationTimeoutInSeconds(1);
+
+        try {
+            _fetcher.get("http://localhost:8089/test.html");
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.FETCH_DURATION_EXCEEDED, e.getAbortReason());
+        }
+    }
+
+    @Test
+    final void testSlowFinalRead() throws Exception {
+        startServer(new SlowLastChunkHandler(1000), 8089);
+
+        // The last read brings the average rate below the min, but there's
+        // nothing left to read, so the fetch isn't aborted.
+        _fetcher.setMinResponseRate(5000);
+        FetchedResult result = _fetcher.get("http://localhost:8089/test.html");
+        assertEquals(2000, result.getContentLength());
+    }
+
+    @Test
+    final void testRedirectHandling() throws Exception {
+        startServer(new RedirectResponseHandler("/base", "http://localhost:8089/redirect"), 8089);
+        FetchedResult result = _fetcher.get("http://localhost:8089/base");
+
+        assertEquals("http://localhost:8089/redirect", result.getFetchedUrl());
+        assertEquals(1, result.getNumRedirects());
+        assertEquals("redirected content", new String(result.getContent(), "UTF-8"));
+    }
+
+    @Test
+    final void testRedirectPolicy() throws Exception {
+        startServer(new RedirectResponseHandler("/base", "http://localhost:8089/redirect"), 8089);
+        _fetcher.setRedirectMode(RedirectMode.FOLLOW_NONE);
+
+        try {
+            _fetcher.get("http://localhost:8089/base");
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals("http://localhost:8089/redirect", e.getRedirectedUrl());
+            assertEquals(RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED, e.getReason());
+        }
+    }
+
+    @Test
+    final void testAbortUrl() throws Exception {
+        startServer(new RandomResponseHandler(20000, 10 * 1000L), 8089);
+        CompletableFuture<FetchedResult> future = _fetcher.fetchAsync("http://localhost:8089/test.html", new Payload());
+        Thread.sleep(500);
+
+        long startTime = System.currentTimeMillis();
+        assertFalse(_fetcher.abort("http://localhost:8089/other.html"));
+        assertTrue(_fetcher.abort("http://localhost:8089/test.html"));
+        try {
+            future.get();
+            fail("Exception should have been thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AbortedFetchException);
+            assertEquals(AbortedFetchReason.INTERRUPTED, ((AbortedFetchException) e.getCause()).getAbortReason());
+        }
+
+        assertTrue(System.currentTimeMillis() - startTime < 2000);
+    }
+}
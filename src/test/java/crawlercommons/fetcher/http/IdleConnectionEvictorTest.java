@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.test.ResourcesResponseHandler;
+import crawlercommons.test.SimulationWebServer;
+
+public class IdleConnectionEvictorTest {
+
+    private SimulationWebServer _webServer;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _webServer = new SimulationWebServer();
+        _webServer.startServer(new ResourcesResponseHandler(), 8089);
+    }
+
+    @AfterEach
+    public void shutDown() throws Exception {
+        _webServer.stopServer();
+    }
+
+    private static void fetch(CloseableHttpClient client) throws Exception {
+        try (CloseableHttpResponse response = client.execute(new HttpGet("http://localhost:8089/simple-page.html"))) {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    @Test
+    void testEviction() throws Exception {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        try (IdleConnectionEvictor evictor = new IdleConnectionEvictor(50); CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).build()) {
+            fetch(client);
+            assertEquals(1, connectionManager.getTotalStats().getAvailable());
+
+            evictor.register(connectionManager, 200);
+            assertEquals(1, evictor.getNumRegistered());
+            Thread.sleep(50);
+            assertEquals(1, connectionManager.getTotalStats().getAvailable());
+
+            Thread.sleep(400);
+            assertEquals(0, connectionManager.getTotalStats().getAvailable());
+        }
+    }
+
+    @Test
+    void testUnregister() throws Exception {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        try (IdleConnectionEvictor evictor = new IdleConnectionEvictor(50); CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).build()) {
+            evictor.register(connectionManager, 100);
+            evictor.unregister(connectionManager);
+            assertEquals(0, evictor.getNumRegistered());
+
+            fetch(client);
+            Thread.sleep(400);
+            assertEquals(1, connectionManager.getTotalStats().getAvailable());
+        }
+    }
+}
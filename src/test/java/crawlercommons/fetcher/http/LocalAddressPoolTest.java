@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.http.LocalAddressPool.Strategy;
+
+public class LocalAddressPoolTest {
+
+    private static final InetAddress IPV4_1 = makeAddress("10.0.0.1");
+    private static final InetAddress IPV4_2 = makeAddress("10.0.0.2");
+    private static final InetAddress IPV6_1 = makeAddress("2001:db8::1");
+    private static final InetAddress REMOTE_IPV4 = makeAddress("192.0.2.1");
+    private static final InetAddress REMOTE_IPV6 = makeAddress("2001:db8::100");
+
+    private static InetAddress makeAddress(String address) {
+        try {
+            return InetAddress.getByName(address);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static LocalAddressPool makePool(Strategy strategy) {
+        LocalAddressPool pool = new LocalAddressPool(strategy);
+        pool.addAddress(IPV4_1);
+        pool.addAddress(IPV6_1);
+        pool.addAddress(IPV4_2);
+        return pool;
+    }
+
+    @Test
+    void testRoundRobin() {
+        LocalAddressPool pool = makePool(Strategy.ROUND_ROBIN);
+        InetAddress first = pool.select("domain.com", REMOTE_IPV4);
+        InetAddress second = pool.select("domain.com", REMOTE_IPV4);
+        assertNotEquals(first, second);
+        assertEquals(first, pool.select("domain.com", REMOTE_IPV4));
+
+        // Only addresses of the same family are used.
+        assertEquals(IPV6_1, pool.select("domain.com", REMOTE_IPV6));
+    }
+
+    @Test
+    void testHashedByHost() {
+        LocalAddressPool pool = makePool(Strategy.HASHED_BY_HOST);
+        for (int i = 0; i < 20; i++) {
+            String host = "domain-" + i + ".com";
+            assertEquals(pool.select(host, REMOTE_IPV4), pool.select(host, REMOTE_IPV4));
+        }
+    }
+
+    @Test
+    void testNoMatchingFamily() {
+        LocalAddressPool pool = new LocalAddressPool(Strategy.ROUND_ROBIN);
+        pool.addAddress(IPV4_1);
+        assertNull(pool.select("domain.com", REMOTE_IPV6));
+    }
+
+    @Test
+    void testConnectionCounts() throws Exception {
+        LocalAddressPool pool = makePool(Strategy.ROUND_ROBIN);
+        Socket socket1 = new Socket();
+        Socket socket2 = new Socket();
+        pool.onConnected(IPV4_1, socket1);
+        pool.onConnected(IPV4_1, socket2);
+        assertEquals(2, pool.getNumOpenConnections(IPV4_1));
+
+        socket1.close();
+        assertEquals(1, pool.getNumOpenConnections(IPV4_1));
+        assertEquals(2, pool.getNumConnections(IPV4_1));
+        assertEquals(0, pool.getNumConnections(IPV4_2));
+        socket2.close();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.http.ProxyPool.Strategy;
+
+public class ProxyPoolTest {
+
+    private static final HttpHost PROXY1 = new HttpHost("proxy1.domain.com", 3128);
+    private static final HttpHost PROXY2 = new HttpHost("proxy2.domain.com", 3128);
+    private static final HttpHost PROXY3 = new HttpHost("proxy3.domain.com", 3128);
+
+    private static ProxyPool makePool(Strategy strategy) {
+        ProxyPool pool = new ProxyPool(strategy);
+        pool.addProxy(PROXY1);
+        pool.addProxy(PROXY2);
+        pool.addProxy(PROXY3, 2);
+        return pool;
+    }
+
+    @Test
+    void testRoundRobin() {
+        ProxyPool pool = makePool(Strategy.ROUND_ROBIN);
+        assertEquals(PROXY1, pool.acquire("domain.com"));
+        assertEquals(PROXY2, pool.acquire("domain.com"));
+        assertEquals(PROXY3, pool.acquire("domain.com"));
+        assertEquals(PROXY1, pool.acquire("domain.com"));
+        assertEquals(2, pool.getInFlight(PROXY1));
+
+        pool.release(PROXY1);
+        pool.onSuccess(PROXY1, 100);
+        assertEquals(0, pool.getInFlight(PROXY1));
+    }
+
+    @Test
+    void testLeastInFlight() {
+        ProxyPool pool = makePool(Strategy.LEAST_IN_FLIGHT);
+        Map<HttpHost, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            counts.merge(pool.acquire("domain.com"), 1, Integer::sum);
+        }
+
+        // Proxy 3 has twice the weight, so it gets twice the requests.
+        assertEquals(2, (int) counts.get(PROXY1));
+        assertEquals(2, (int) counts.get(PROXY2));
+        assertEquals(4, (int) counts.get(PROXY3));
+    }
+
+    @Test
+    void testWeighted() {
+        ProxyPool pool = makePool(Strategy.WEIGHTED);
+        Map<HttpHost, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            HttpHost proxy = pool.acquire("domain.com");
+            counts.merge(proxy, 1, Integer::sum);
+            pool.release(proxy);
+        }
+
+        int proxy3Count = counts.get(PROXY3);
+        assertTrue((proxy3Count > 1700) && (proxy3Count < 2300), "Proxy 3 got " + proxy3Count);
+    }
+
+    @Test
+    void testStickyPerHost() {
+        ProxyPool pool = makePool(Strategy.STICKY_PER_HOST);
+        Map<String, HttpHost> assigned = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            String host = "domain-" + i + ".com";
+            assigned.put(host, pool.acquire(host));
+            assertEquals(assigned.get(host), pool.acquire(host));
+        }
+
+        // Hosts are spread over the proxies.
+        assertEquals(3, new HashSet<>(assigned.values()).size());
+
+        // When a proxy fails, only its hosts move.
+        pool.setMaxConsecutiveFailures(1);
+        pool.onFailure(PROXY1);
+        for (Map.Entry<String, HttpHost> entry : assigned.entrySet()) {
+            HttpHost proxy = pool.acquire(entry.getKey());
+            if (entry.getValue().equals(PROXY1)) {
+                assertNotEquals(PROXY1, proxy);
+            } else {
+                assertEquals(entry.getValue(), proxy);
+            }
+        }
+    }
+
+    @Test
+    void testHealth() {
+        ProxyPool pool = makePool(Strategy.ROUND_ROBIN);
+        pool.onFailure(PROXY1);
+        pool.onFailure(PROXY1);
+        assertTrue(pool.isInRotation(PROXY1));
+        assertTrue(pool.getScore(PROXY1) < pool.getScore(PROXY2));
+
+        pool.onFailure(PROXY1);
+        assertFalse(pool.isInRotation(PROXY1));
+        assertEquals(2, pool.getNumInRotation());
+        for (int i = 0; i < 10; i++) {
+            assertNotEquals(PROXY1, pool.acquire("domain.com"));
+        }
+
+        // Slow proxies have a lower score.
+        pool.onSuccess(PROXY2, 100);
+        pool.onSuccess(PROXY3, 5000);
+        assertTrue(pool.getScore(PROXY2) > pool.getScore(PROXY3));
+
+        // Back in rotation after the retry interval.
+        pool.setRetryInterval(0);
+        pool.onFailure(PROXY1);
+        assertTrue(pool.isInRotation(PROXY1));
+        pool.onSuccess(PROXY1, 100);
+        assertTrue(pool.isInRotation(PROXY1));
+    }
+
+    @Test
+    void testAllOutOfRotation() {
+        ProxyPool pool = makePool(Strategy.ROUND_ROBIN);
+        pool.setMaxConsecutiveFailures(1);
+        pool.onFailure(PROXY1);
+        pool.onFailure(PROXY2);
+        pool.onFailure(PROXY3);
+        assertEquals(0, pool.getNumInRotation());
+        assertNotNull(pool.acquire("domain.com"));
+    }
+}
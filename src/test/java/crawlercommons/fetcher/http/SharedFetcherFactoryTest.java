@@ -0,0 +1,160 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.test.SimulationWebServer;
+
+public class SharedFetcherFactoryTest {
+
+    /**
+     * Handler that records the client port and user agent of every request,
+     * and takes <code>delay</code> ms to respond.
+     */
+    private static class TrackingHandler extends AbstractHandler {
+        private final long _delay;
+        private final Set<Integer> _clientPorts = ConcurrentHashMap.newKeySet();
+        private final Set<String> _userAgents = ConcurrentHashMap.newKeySet();
+
+        public TrackingHandler(long delay) {
+            _delay = delay;
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+            _clientPorts.add(request.getRemotePort());
+            _userAgents.add(request.getHeader(HttpHeaders.USER_AGENT));
+
+            try {
+                Thread.sleep(_delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            byte[] content = "<html><body>page</body></html>".getBytes(StandardCharsets.UTF_8);
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+            baseRequest.setHandled(true);
+        }
+    }
+
+    private SimulationWebServer _webServer;
+    private SharedFetcherFactory _factory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _webServer = new SimulationWebServer();
+        _factory = new SharedFetcherFactory(10, 4);
+    }
+
+    @AfterEach
+    public void shutDown() throws Exception {
+        _factory.close();
+        _webServer.stopServer();
+    }
+
+    @Test
+    void testConnectionSharing() throws Exception {
+        TrackingHandler handler = new TrackingHandler(0);
+        _webServer.startServer(handler, 8089);
+
+        SimpleHttpFetcher fetcher1 = _factory.newFetcher(2, new UserAgent("tenant1", "tenant1@domain.com", "http://domain.com"));
+        SimpleHttpFetcher fetcher2 = _factory.newFetcher(2, new UserAgent("tenant2", "tenant2@domain.com", "http://domain.com"));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(HttpStatus.SC_OK, fetcher1.get("http://localhost:8089/page-" + i + ".html").getStatusCode());
+            assertEquals(HttpStatus.SC_OK, fetcher2.get("http://localhost:8089/page-" + i + ".html").getStatusCode());
+        }
+
+        // One keep-alive connection used by both fetchers, but each with its
+        // own settings.
+        assertEquals(1, handler._clientPorts.size());
+        assertEquals(2, handler._userAgents.size());
+        assertEquals(1, _factory.getTotalStats().getAvailable());
+
+        // Closing a fetcher leaves the pool alone.
+        fetcher1.close();
+        assertEquals(1, _factory.getTotalStats().getAvailable());
+        assertEquals(HttpStatus.SC_OK, fetcher2.get("http://localhost:8089/page-3.html").getStatusCode());
+        assertEquals(1, handler._clientPorts.size());
+
+        fetcher2.close();
+    }
+
+    @Test
+    void testTenantCap() throws Exception {
+        _webServer.startServer(new TrackingHandler(300), 8089);
+
+        SimpleHttpFetcher fetcher = _factory.newFetcher(1, new UserAgent("tenant1", "tenant1@domain.com", "http://domain.com"));
+        List<Thread> threads = new ArrayList<>();
+        List<FetchedResult> results = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            final String url = "http://localhost:8089/page-" + i + ".html";
+            Thread t = new Thread(() -> {
+                try {
+                    FetchedResult result = fetcher.get(url);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                } catch (Exception e) {
+                    // Checked below via number of results
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+
+        // Fetches were done one at a time, even though the pool allows more.
+        assertEquals(3, results.size());
+        assertTrue(System.currentTimeMillis() - startTime >= 900);
+        assertEquals(1, _factory.getTotalStats().getAvailable());
+    }
+
+    @Test
+    void testPoolSettingsAreShared() throws Exception {
+        SimpleHttpFetcher fetcher = _factory.newFetcher(1, new UserAgent("tenant1", "tenant1@domain.com", "http://domain.com"));
+        assertSame(_factory.getDnsResolver(), fetcher.getDnsResolver());
+        assertThrows(IllegalStateException.class, () -> fetcher.setAdaptiveConnectionsPerHost(1, 4));
+    }
+}
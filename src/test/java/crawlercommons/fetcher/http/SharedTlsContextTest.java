@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.fetcher.http;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.http.HttpStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.fetcher.FetchedResult;
+import crawlercommons.test.ResourcesResponseHandler;
+import crawlercommons.test.SimulationWebServer;
+import crawlercommons.test.TestUtils;
+
+public class SharedTlsContextTest {
+
+    private static final String URL = "https://localhost:8089/simple-page.html";
+
+    private SimulationWebServer _webServer;
+    private SharedTlsContext _tlsContext;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _webServer = new SimulationWebServer();
+        _webServer.startSslServer(new ResourcesResponseHandler(), 8089);
+        _tlsContext = new SharedTlsContext(SimpleHttpFetcher.createSSLContext());
+    }
+
+    @AfterEach
+    public void shutDown() throws Exception {
+        _webServer.stopServer();
+    }
+
+    /**
+     * Handshake listeners for blocking sockets are notified on a separate
+     * thread, so wait a bit for the counts to be updated.
+     */
+    private void waitForHandshakes(long numHandshakes) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 2000;
+        while ((_tlsContext.getNumFullHandshakes() + _tlsContext.getNumResumedHandshakes() < numHandshakes) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void testSessionResumption() throws Exception {
+        // Separate fetchers don't share connections, but do share TLS
+        // sessions.
+        for (int i = 0; i < 3; i++) {
+            SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+            fetcher.setTlsContext(_tlsContext);
+            FetchedResult result = fetcher.get(URL);
+            assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+            fetcher.close();
+        }
+
+        waitForHandshakes(3);
+        assertEquals(1, _tlsContext.getNumFullHandshakes());
+        assertEquals(2, _tlsContext.getNumResumedHandshakes());
+    }
+
+    @Test
+    void testAsyncSessionResumption() throws Exception {
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setTlsContext(_tlsContext);
+        fetcher.get(URL);
+        fetcher.close();
+        waitForHandshakes(1);
+
+        try (AsyncHttpFetcher asyncFetcher = new AsyncHttpFetcher(1, TestUtils.CC_TEST_AGENT)) {
+            asyncFetcher.setTlsContext(_tlsContext);
+            assertEquals(HttpStatus.SC_OK, asyncFetcher.get(URL).getStatusCode());
+        }
+
+        assertEquals(1, _tlsContext.getNumFullHandshakes());
+        assertEquals(1, _tlsContext.getNumResumedHandshakes());
+    }
+
+    @Test
+    void testWarmUp() throws Exception {
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(2, TestUtils.CC_TEST_AGENT);
+        fetcher.setTlsContext(_tlsContext);
+
+        // Handshakes happen when warming up, not when fetching.
+        assertEquals(2, fetcher.warmUp(URL, 2).get().intValue());
+        waitForHandshakes(2);
+        assertEquals(HttpStatus.SC_OK, fetcher.get(URL).getStatusCode());
+        Thread.sleep(100);
+        assertEquals(2, _tlsContext.getNumFullHandshakes() + _tlsContext.getNumResumedHandshakes());
+        fetcher.close();
+    }
+
+    @Test
+    void testSessionCacheSettings() throws Exception {
+        assertEquals(SharedTlsContext.DEFAULT_SESSION_CACHE_SIZE, _tlsContext.getSessionCacheSize());
+        assertEquals(SharedTlsContext.DEFAULT_SESSION_TIMEOUT_IN_SECONDS, _tlsContext.getSessionTimeout());
+
+        // With resumption effectively disabled, every connection does a full
+        // handshake.
+        _tlsContext.setSessionTimeout(1);
+        for (int i = 0; i < 2; i++) {
+            SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+            fetcher.setTlsContext(_tlsContext);
+            fetcher.get(URL);
+            fetcher.close();
+            Thread.sleep(1100);
+        }
+
+        waitForHandshakes(2);
+        assertEquals(2, _tlsContext.getNumFullHandshakes());
+    }
+
+    @Test
+    void testDefaultIsShared() {
+        assertSame(SharedTlsContext.getDefault(), new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT).getTlsContext());
+    }
+}
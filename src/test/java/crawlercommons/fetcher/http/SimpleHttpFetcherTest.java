@@ -18,17 +18,31 @@ package crawlercommons.fetcher.http;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
+import org.eclipse.jetty.io.Connection;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
@@ -37,10 +51,13 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import crawlercommons.fetcher.AbortedFetchException;
 import crawlercommons.fetcher.AbortedFetchReason;
 import crawlercommons.fetcher.BaseFetcher;
+import crawlercommons.fetcher.CircuitOpenFetchException;
+import crawlercommons.fetcher.ConsumerFetchException;
 import crawlercommons.fetcher.FetchedResult;
 import crawlercommons.fetcher.IOFetchException;
 import crawlercommons.fetcher.Payload;
@@ -52,6 +69,7 @@ import crawlercommons.test.RandomResponseHandler;
 import crawlercommons.test.ResourcesResponseHandler;
 import crawlercommons.test.SimulationWebServer;
 import crawlercommons.test.TestUtils;
+import crawlercommons.util.DirectBufferPool;
 
 public class SimpleHttpFetcherTest {
 
@@ -67,8 +85,8 @@ public class SimpleHttpFetcherTest {
         _webServer.stopServer();
     }
 
-    private void startServer(Handler handler, int port) throws Exception {
-        _webServer.startServer(handler, port);
+    private Server startServer(Handler handler, int port) throws Exception {
+        return _webServer.startServer(handler, port);
     }
 
     private void stopServer() throws Exception {
@@ -148,6 +166,137 @@ public class SimpleHttpFetcherTest {
         }
     }
 
+    private class SlowResponseHandler extends AbstractHandler {
+
+        private long _delay;
+
+        public SlowResponseHandler(long delay) {
+            _delay = delay;
+        }
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+            if (pathInContext.startsWith("/slow")) {
+                try {
+                    Thread.sleep(_delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Stalls on the first request for each /stall path, and answers
+     * everything else right away.
+     */
+    private class StallOnceResponseHandler extends AbstractHandler {
+
+        private final Set<String> _stalled = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+            if (pathInContext.startsWith("/stall") && _stalled.add(pathInContext)) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Acts as a forward proxy, by answering requests for any host itself
+     * with the host that was asked for.
+     */
+    private class ProxyResponseHandler extends AbstractHandler {
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+            String content = baseRequest.getHttpURI().getHost();
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Closes the connection without sending a response, and counts the
+     * requests.
+     */
+    private class DropConnectionResponseHandler extends AbstractHandler {
+        private final AtomicInteger _numRequests = new AtomicInteger();
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+            _numRequests.incrementAndGet();
+            baseRequest.setHandled(true);
+            baseRequest.getHttpChannel().getEndPoint().close();
+        }
+    }
+
+    /**
+     * Responds with the client's address, and closes the connection so that
+     * the next request needs a new one.
+     */
+    private class RemoteAddressResponseHandler extends AbstractHandler {
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+            String content = request.getRemoteAddr();
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setHeader(HttpHeaders.CONNECTION, "close");
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Responds with gzipped text.
+     */
+    private class GzipResponseHandler extends AbstractHandler {
+        private final byte[] _compressed;
+
+        public GzipResponseHandler(String content) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(content.getBytes(StandardCharsets.UTF_8));
+            }
+
+            _compressed = bytes.toByteArray();
+        }
+
+        @Override
+        public void handle(String pathInContext, Request baseRequest,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            response.setContentLength(_compressed.length);
+            response.getOutputStream().write(_compressed);
+        }
+    }
+
     private class MimeTypeResponseHandler extends AbstractHandler {
 
         private String _mimeType;
@@ -258,6 +407,347 @@ public class SimpleHttpFetcherTest {
         fetcher.get(url);
     }
 
+    @Test
+    final void testDnsResolver() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        try (CachingDnsResolver resolver = new CachingDnsResolver()) {
+            fetcher.setDnsResolver(resolver);
+
+            FetchedResult result = fetcher.get("http://localhost:8089/simple-page.html");
+            assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+            assertEquals(1, resolver.getNumMisses());
+        }
+    }
+
+    @Test
+    final void testAdaptiveConnectionsPerHost() throws Exception {
+        startServer(new FixedStatusResponseHandler(HttpStatus.SC_SERVICE_UNAVAILABLE), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(4, TestUtils.CC_TEST_AGENT);
+        fetcher.setMaxConnectionsPerHost(4);
+        fetcher.setAdaptiveConnectionsPerHost(1, 8);
+        assertNull(fetcher.getPoolSizer());
+
+        fetcher.get("http://localhost:8089/");
+        AdaptivePoolSizer poolSizer = fetcher.getPoolSizer();
+        assertEquals(1, poolSizer.getNumRoutes());
+        poolSizer.setAdjustInterval(0);
+
+        // Overloaded host, so the limit should be halved.
+        FetchedResult result = fetcher.get("http://localhost:8089/");
+        assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, result.getStatusCode());
+        assertEquals(1, poolSizer.getNumDecreases());
+    }
+
+    @Test
+    final void testCircuitBreaker() throws Exception {
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setFailureThreshold(2);
+        fetcher.setCircuitBreaker(circuitBreaker);
+
+        // Nothing is listening, so the connection is refused.
+        String url = "http://localhost:8089/simple-page.html";
+        for (int i = 0; i < 2; i++) {
+            assertThrows(IOFetchException.class, () -> fetcher.get(url));
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState("localhost"));
+        assertThrows(CircuitOpenFetchException.class, () -> fetcher.get(url));
+        assertEquals(1, circuitBreaker.getNumRejected());
+
+        // Once the host is back, the probe request closes the circuit.
+        startServer(new ResourcesResponseHandler(), 8089);
+        circuitBreaker.setOpenDuration(0);
+        assertEquals(HttpStatus.SC_OK, fetcher.get(url).getStatusCode());
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("localhost"));
+        fetcher.close();
+    }
+
+    @Test
+    final void testDeferredRetries() throws Exception {
+        DropConnectionResponseHandler handler = new DropConnectionResponseHandler();
+        startServer(handler, 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setMaxRetryCount(10);
+        fetcher.setDeferredRetries(true);
+
+        // A new connection that's dropped isn't retried.
+        assertThrows(IOFetchException.class, () -> fetcher.get("http://localhost:8089/"));
+        assertEquals(1, handler._numRequests.get());
+        fetcher.close();
+    }
+
+    @Test
+    final void testTimeoutPolicy() throws Exception {
+        startServer(new SlowResponseHandler(2000), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        AdaptiveTimeoutPolicy timeoutPolicy = new AdaptiveTimeoutPolicy();
+        timeoutPolicy.setSamples(5, 100);
+        timeoutPolicy.setSocketTimeoutBounds(200, 1000);
+        fetcher.setTimeoutPolicy(timeoutPolicy);
+        fetcher.setMaxRetryCount(1);
+
+        for (int i = 0; i < 5; i++) {
+            fetcher.get("http://localhost:8089/");
+        }
+
+        // A fast host gets the min socket timeout, rather than the 30 second
+        // default.
+        assertEquals(200, timeoutPolicy.getSocketTimeout("localhost", fetcher.getSocketTimeout()));
+        assertEquals(fetcher.getConnectionTimeout(), timeoutPolicy.getConnectTimeout("localhost", fetcher.getConnectionTimeout()));
+
+        long startTime = System.currentTimeMillis();
+        assertThrows(IOFetchException.class, () -> fetcher.get("http://localhost:8089/slow"));
+        assertTrue(System.currentTimeMillis() - startTime < 1500);
+        fetcher.close();
+    }
+
+    @Test
+    final void testTimeoutPolicyRedirects() throws Exception {
+        startServer(new crawlercommons.test.RedirectResponseHandler("/base", "http://127.0.0.1:8089/redirect"), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        AdaptiveTimeoutPolicy timeoutPolicy = new AdaptiveTimeoutPolicy();
+        timeoutPolicy.setSamples(1, 100);
+        fetcher.setTimeoutPolicy(timeoutPolicy);
+
+        // Each hop is recorded for its own host.
+        fetcher.get("http://localhost:8089/base");
+        assertEquals(2, timeoutPolicy.getNumHosts());
+        assertTrue(timeoutPolicy.getFirstByteTime("localhost", 0.5) >= 0);
+        assertTrue(timeoutPolicy.getFirstByteTime("127.0.0.1", 0.5) >= 0);
+        fetcher.close();
+    }
+
+    @Test
+    final void testHedgedRequests() throws Exception {
+        startServer(new StallOnceResponseHandler(), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(2, TestUtils.CC_TEST_AGENT);
+        HedgePolicy hedgePolicy = new HedgePolicy();
+        hedgePolicy.setDelay(200, 50);
+        fetcher.setHedgePolicy(hedgePolicy);
+
+        // Fast responses aren't hedged.
+        fetcher.get("http://localhost:8089/");
+        assertEquals(0, hedgePolicy.getNumHedges());
+
+        // The first request stalls, so the hedge gets the response.
+        long startTime = System.currentTimeMillis();
+        FetchedResult result = fetcher.get("http://localhost:8089/stall");
+        assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+        assertEquals("test", new String(result.getContent(), StandardCharsets.UTF_8));
+        assertTrue(System.currentTimeMillis() - startTime < 1500);
+        assertEquals(1, hedgePolicy.getNumHedges());
+        assertEquals(1, hedgePolicy.getNumHedgeWins());
+
+        // Hedges are limited by the budget.
+        hedgePolicy.setBudget(0.0, 0);
+        fetcher.get("http://localhost:8089/stall2");
+        assertEquals(1, hedgePolicy.getNumHedges());
+        assertEquals(1, hedgePolicy.getNumOverBudget());
+        fetcher.close();
+    }
+
+    @Test
+    final void testProxyPool() throws Exception {
+        startServer(new ProxyResponseHandler(), 8089);
+        HttpHost goodProxy = new HttpHost("localhost", 8089);
+        HttpHost badProxy = new HttpHost("localhost", 8090);
+
+        ProxyPool proxyPool = new ProxyPool(ProxyPool.Strategy.ROUND_ROBIN);
+        proxyPool.addProxy(badProxy);
+        proxyPool.addProxy(goodProxy);
+        proxyPool.setMaxConsecutiveFailures(1);
+
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setProxyPool(proxyPool);
+
+        // Nothing is listening on the bad proxy's port, so it's taken out of
+        // rotation after the first request, and the rest go via the good
+        // proxy.
+        String url = "http://www.crawler-commons.test/page.html";
+        assertThrows(IOFetchException.class, () -> fetcher.get(url));
+        assertFalse(proxyPool.isInRotation(badProxy));
+        for (int i = 0; i < 3; i++) {
+            FetchedResult result = fetcher.get(url);
+            assertEquals("www.crawler-commons.test", new String(result.getContent(), "UTF-8"));
+        }
+
+        assertEquals(0, proxyPool.getInFlight(goodProxy));
+        assertEquals(0, proxyPool.getInFlight(badProxy));
+        assertTrue(proxyPool.getScore(goodProxy) > proxyPool.getScore(badProxy));
+        fetcher.close();
+    }
+
+    @Test
+    final void testProxyPoolHostErrors() throws Exception {
+        startServer(new SlowResponseHandler(2000), 8089);
+        HttpHost proxy = new HttpHost("localhost", 8089);
+
+        ProxyPool proxyPool = new ProxyPool(ProxyPool.Strategy.ROUND_ROBIN);
+        proxyPool.addProxy(proxy);
+        proxyPool.setMaxConsecutiveFailures(1);
+
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setProxyPool(proxyPool);
+        fetcher.setSocketTimeout(500);
+        fetcher.setMaxRetryCount(1);
+
+        // Timing out while reading the host's response via the proxy doesn't
+        // count against the proxy.
+        assertThrows(IOFetchException.class, () -> fetcher.get("http://www.crawler-commons.test/slow"));
+        assertTrue(proxyPool.isInRotation(proxy));
+        assertEquals(0, proxyPool.getInFlight(proxy));
+        fetcher.close();
+    }
+
+    @Test
+    final void testLocalAddressPool() throws Exception {
+        startServer(new RemoteAddressResponseHandler(), 8089);
+        InetAddress address1 = InetAddress.getByName("127.0.0.1");
+        InetAddress address2 = InetAddress.getByName("127.0.0.2");
+        LocalAddressPool localAddressPool = new LocalAddressPool(LocalAddressPool.Strategy.ROUND_ROBIN);
+        localAddressPool.addAddress(address1);
+        localAddressPool.addAddress(address2);
+
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setLocalAddressPool(localAddressPool);
+
+        Set<String> clientAddresses = new HashSet<String>();
+        for (int i = 0; i < 4; i++) {
+            FetchedResult result = fetcher.get("http://127.0.0.1:8089/");
+            clientAddresses.add(new String(result.getContent(), "UTF-8"));
+        }
+
+        assertEquals(2, clientAddresses.size());
+        assertTrue(clientAddresses.contains("127.0.0.2"));
+        assertEquals(2, localAddressPool.getNumConnections(address1));
+        assertEquals(2, localAddressPool.getNumConnections(address2));
+        assertEquals(0, localAddressPool.getNumOpenConnections(address2));
+        fetcher.close();
+    }
+
+    @Test
+    final void testClose() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        try (IdleConnectionEvictor evictor = new IdleConnectionEvictor(1000)) {
+            SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+            fetcher.setIdleConnectionEvictor(evictor);
+
+            fetcher.get("http://localhost:8089/simple-page.html");
+            assertEquals(1, evictor.getNumRegistered());
+
+            fetcher.close();
+            assertEquals(0, evictor.getNumRegistered());
+
+            // Fetcher can still be used after being closed.
+            FetchedResult result = fetcher.get("http://localhost:8089/simple-page.html");
+            assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+            assertEquals(1, evictor.getNumRegistered());
+            fetcher.close();
+        }
+    }
+
+    @Test
+    final void testWarmUp() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        AtomicInteger numConnections = countConnections(server);
+
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(4, TestUtils.CC_TEST_AGENT);
+        fetcher.setMaxConnectionsPerHost(3);
+
+        // Limited by the max connections per host.
+        assertEquals(3, fetcher.warmUp("http://localhost:8089/", 5).get().intValue());
+        waitForCount(numConnections, 3);
+        assertEquals(3, numConnections.get());
+
+        // Already warmed up.
+        assertEquals(0, fetcher.warmUp("http://localhost:8089/", 5).get().intValue());
+
+        // Fetches use the parked connections.
+        for (int i = 0; i < 3; i++) {
+            assertEquals(HttpStatus.SC_OK, fetcher.get("http://localhost:8089/simple-page.html").getStatusCode());
+        }
+
+        assertEquals(3, numConnections.get());
+        fetcher.close();
+    }
+
+    private static void waitForCount(AtomicInteger count, int target) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 2000;
+        while ((count.get() < target) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The server is notified of new connections asynchronously, so use
+     * {@link #waitForCount(AtomicInteger, int)} before checking the count.
+     */
+    private static AtomicInteger countConnections(Server server) {
+        final AtomicInteger numConnections = new AtomicInteger();
+        server.getConnectors()[0].addEventListener(new Connection.Listener() {
+            @Override
+            public void onOpened(Connection connection) {
+                numConnections.incrementAndGet();
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+            }
+        });
+
+        return numConnections;
+    }
+
+    @Test
+    final void testAbort() throws Exception {
+        // Response takes 10 seconds, so the fetch is in progress when aborted.
+        startServer(new RandomResponseHandler(20000, 10 * 1000L), 8089);
+        final BaseFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+
+        AtomicReference<Exception> fetchException = new AtomicReference<>();
+        Thread fetchThread = startFetch(fetcher, "http://localhost:8089/test.html", fetchException);
+        Thread.sleep(500);
+
+        long startTime = System.currentTimeMillis();
+        fetcher.abort();
+        fetchThread.join(5000);
+        assertTrue(System.currentTimeMillis() - startTime < 2000);
+
+        assertTrue(fetchException.get() instanceof AbortedFetchException);
+        assertEquals(AbortedFetchReason.INTERRUPTED, ((AbortedFetchException) fetchException.get()).getAbortReason());
+    }
+
+    @Test
+    final void testAbortUrl() throws Exception {
+        startServer(new RandomResponseHandler(20000, 10 * 1000L), 8089);
+        final BaseFetcher fetcher = new SimpleHttpFetcher(2, TestUtils.CC_TEST_AGENT);
+
+        AtomicReference<Exception> fetchException = new AtomicReference<>();
+        Thread fetchThread = startFetch(fetcher, "http://localhost:8089/test.html", fetchException);
+        Thread.sleep(500);
+
+        assertFalse(fetcher.abort("http://localhost:8089/other.html"));
+        assertTrue(fetcher.abort("http://localhost:8089/test.html"));
+        fetchThread.join(5000);
+
+        assertTrue(fetchException.get() instanceof AbortedFetchException);
+        assertEquals(AbortedFetchReason.INTERRUPTED, ((AbortedFetchException) fetchException.get()).getAbortReason());
+    }
+
+    private static Thread startFetch(final BaseFetcher fetcher, final String url, final AtomicReference<Exception> fetchException) {
+        Thread fetchThread = new Thread(() -> {
+            try {
+                fetcher.get(url);
+            } catch (Exception e) {
+                fetchException.set(e);
+            }
+        });
+        fetchThread.start();
+        return fetchThread;
+    }
+
     @Test
     final void testLargeContent() throws Exception {
         BaseFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
@@ -306,6 +796,157 @@ public class SimpleHttpFetcherTest {
 
     }
 
+    @Test
+    final void testBodyConsumer() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(100 * 1024);
+        String url = "http://localhost:8089/karlie.html";
+        FetchedResult expected = fetcher.get(url);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        FetchedResult result = fetcher.get(url, new Payload(), chunk -> body.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining()));
+        assertEquals(HttpStatus.SC_OK, result.getStatusCode());
+        assertEquals(0, result.getContent().length);
+        assertEquals(expected.getContentLength(), result.getContentLength());
+        assertArrayEquals(expected.getContent(), body.toByteArray());
+
+        // Truncated images are rejected before any of the body is passed on.
+        fetcher.setMaxContentSize("image/png", 1500);
+        body.reset();
+        AbortedFetchException e = assertThrows(AbortedFetchException.class, () -> fetcher.get("http://localhost:8089/bixolabs_mining.png", new Payload(),
+                        chunk -> body.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining())));
+        assertEquals(AbortedFetchReason.CONTENT_SIZE, e.getAbortReason());
+        assertEquals(0, body.size());
+
+        // A failing consumer fails the fetch, but doesn't count against the
+        // host.
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setFailureThreshold(1);
+        fetcher.setCircuitBreaker(circuitBreaker);
+        assertThrows(ConsumerFetchException.class, () -> fetcher.get(url, new Payload(), chunk -> {
+            throw new IOException("Disk full");
+        }));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("localhost"));
+        fetcher.close();
+    }
+
+    @Test
+    final void testSpillToDisk(@TempDir Path tempDir) throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(100 * 1024);
+        fetcher.setMaxContentSize("image/png", 100 * 1024);
+        String url = "http://localhost:8089/karlie.html";
+        FetchedResult expected = fetcher.get(url);
+        assertNull(expected.getContentFile());
+
+        fetcher.setSpillToDisk(10 * 1024, tempDir.toFile());
+        FetchedResult result = fetcher.get(url, new Payload());
+        Path contentFile = result.getContentFile();
+        assertNotNull(contentFile);
+        assertEquals(tempDir, contentFile.getParent());
+        assertEquals(expected.getContentLength(), result.getContentLength());
+        assertArrayEquals(expected.getContent(), Files.readAllBytes(contentFile));
+        assertEquals(ByteBuffer.wrap(expected.getContent()), result.mapContent());
+        try (InputStream in = result.getContentStream()) {
+            assertArrayEquals(expected.getContent(), in.readAllBytes());
+        }
+
+        // Closing the result deletes the file.
+        result.close();
+        assertFalse(Files.exists(contentFile));
+        assertFalse(result.deleteContentFile());
+
+        // The report doesn't read the file.
+        assertTrue(result.report().contains(contentFile.toString()));
+
+        // Small bodies stay in memory.
+        result = fetcher.get("http://localhost:8089/bixolabs_mining.png");
+        assertNull(result.getContentFile());
+        assertEquals(1679, result.getContent().length);
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+
+        fetcher.close();
+    }
+
+    @Test
+    final void testSpillToDiskDecoded(@TempDir Path tempDir) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("Line " + i + "\n");
+        }
+
+        byte[] expected = content.toString().getBytes(StandardCharsets.UTF_8);
+        startServer(new GzipResponseHandler(content.toString()), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(1024 * 1024);
+        String url = "http://localhost:8089/";
+        assertArrayEquals(expected, fetcher.get(url).getContent());
+
+        // A spilled body is decoded too, into a new file.
+        fetcher.setSpillToDisk(1024, tempDir.toFile());
+        try (FetchedResult result = fetcher.get(url, new Payload())) {
+            Path contentFile = result.getContentFile();
+            assertNotNull(contentFile);
+            assertEquals(expected.length, result.getContentLength());
+            assertArrayEquals(expected, Files.readAllBytes(contentFile));
+            try (Stream<Path> files = Files.list(tempDir)) {
+                assertEquals(1, files.count());
+            }
+        }
+
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+
+        fetcher.close();
+    }
+
+    @Test
+    final void testDirectBufferPool() throws Exception {
+        startServer(new ResourcesResponseHandler(), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, TestUtils.CC_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(100 * 1024);
+        String url = "http://localhost:8089/karlie.html";
+        FetchedResult expected = fetcher.get(url);
+        assertFalse(expected.hasDirectContent());
+
+        DirectBufferPool directBufferPool = new DirectBufferPool();
+        fetcher.setDirectBufferPool(directBufferPool);
+        FetchedResult result = fetcher.get(url, new Payload());
+        assertTrue(result.hasDirectContent());
+        assertEquals(expected.getContentLength(), result.getContentLength());
+        assertTrue(result.mapContentUnsafe().isDirect());
+        assertEquals(ByteBuffer.wrap(expected.getContent()), result.mapContentUnsafe());
+
+        // The safe version is a copy.
+        ByteBuffer copy = result.mapContent();
+        assertFalse(copy.isDirect());
+        assertEquals(ByteBuffer.wrap(expected.getContent()), copy);
+        assertArrayEquals(expected.getContent(), result.getContent());
+        try (InputStream in = result.getContentStream()) {
+            assertArrayEquals(expected.getContent(), in.readAllBytes());
+        }
+
+        // Closing gives the buffer back, so the next fetch reuses it.
+        InputStream openStream = result.getContentStream();
+        result.close();
+        assertThrows(IllegalStateException.class, () -> result.getContent());
+        assertThrows(IOException.class, () -> openStream.read());
+        assertEquals(ByteBuffer.wrap(expected.getContent()), copy);
+        assertTrue(result.report().contains("in direct buffer (released)"));
+        assertTrue(directBufferPool.getPooledBytes() > 0);
+        try (FetchedResult reused = fetcher.get(url)) {
+            assertEquals(1, directBufferPool.getNumAllocated());
+            assertArrayEquals(expected.getContent(), reused.getContent());
+        }
+
+        fetcher.close();
+    }
+
     @Test
     final void testLargeHtml() throws Exception {
         startServer(new ResourcesResponseHandler(), 8089);
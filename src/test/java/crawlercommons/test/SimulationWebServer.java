@@ -16,8 +16,15 @@
 
 package crawlercommons.test;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 public class SimulationWebServer {
 
@@ -30,6 +37,42 @@ public class SimulationWebServer {
         return _server;
     }
 
+    /**
+     * Start a server that supports HTTP/2 over cleartext (h2c), both via
+     * prior knowledge and as an upgrade from HTTP/1.1.
+     */
+    public Server startHttp2Server(Handler handler, int port) throws Exception {
+        _server = new Server();
+        HttpConfiguration config = new HttpConfiguration();
+        ServerConnector connector = new ServerConnector(_server, new HttpConnectionFactory(config), new HTTP2CServerConnectionFactory(config));
+        connector.setPort(port);
+        _server.addConnector(connector);
+        _server.setHandler(handler);
+        _server.start();
+        return _server;
+    }
+
+    /**
+     * Start an HTTPS server, using the self-signed certificate for localhost
+     * in test-keystore.p12.
+     */
+    public Server startSslServer(Handler handler, int port) throws Exception {
+        _server = new Server();
+        SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath(SimulationWebServer.class.getResource("/test-keystore.p12").toExternalForm());
+        sslContextFactory.setKeyStorePassword("changeit");
+        sslContextFactory.setKeyStoreType("PKCS12");
+
+        HttpConfiguration config = new HttpConfiguration();
+        config.addCustomizer(new SecureRequestCustomizer(false));
+        ServerConnector connector = new ServerConnector(_server, new SslConnectionFactory(sslContextFactory, "http/1.1"), new HttpConnectionFactory(config));
+        connector.setPort(port);
+        _server.addConnector(connector);
+        _server.setHandler(handler);
+        _server.start();
+        return _server;
+    }
+
     public void stopServer() throws Exception {
         if (_server != null) {
             _server.stop();
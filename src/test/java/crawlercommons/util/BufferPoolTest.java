@@ -0,0 +1,119 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+
+import crawlercommons.util.BufferPool.BodyBuffer;
+
+public class BufferPoolTest {
+
+    @Test
+    void testReadBufferReuse() {
+        BufferPool pool = BufferPool.get();
+        byte[] buffer = pool.acquireReadBuffer();
+        assertEquals(BufferPool.READ_BUFFER_SIZE, buffer.length);
+
+        // While it's in use, we get a new one.
+        byte[] other = pool.acquireReadBuffer();
+        assertNotSame(buffer, other);
+        pool.releaseReadBuffer(other);
+        pool.releaseReadBuffer(buffer);
+
+        assertSame(buffer, pool.acquireReadBuffer());
+        pool.releaseReadBuffer(buffer);
+    }
+
+    @Test
+    void testBodyBuffer() {
+        BufferPool pool = BufferPool.get();
+        BodyBuffer buffer = pool.acquireBodyBuffer(100);
+        byte[] data = new byte[3 * BufferPool.INITIAL_BODY_SIZE];
+        Arrays.fill(data, (byte) 'x');
+        buffer.write(data, 0, 10);
+        buffer.write(data, 10, data.length - 10);
+        assertEquals(data.length, buffer.size());
+        assertArrayEquals(data, buffer.toByteArray());
+        pool.releaseBodyBuffer(buffer);
+
+        // It's reset when it's reused.
+        BodyBuffer reused = pool.acquireBodyBuffer(100);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.size());
+        pool.releaseBodyBuffer(reused);
+    }
+
+    @Test
+    void testLargeBodyBufferNotKept() {
+        BufferPool pool = BufferPool.get();
+        BodyBuffer buffer = pool.acquireBodyBuffer(100);
+        byte[] data = new byte[BufferPool.MAX_POOLED_BODY_SIZE + 1];
+        buffer.write(data, 0, data.length);
+        pool.releaseBodyBuffer(buffer);
+
+        BodyBuffer next = pool.acquireBodyBuffer(100);
+        assertNotSame(buffer, next);
+        assertEquals(BufferPool.INITIAL_BODY_SIZE, next.capacity());
+        pool.releaseBodyBuffer(next);
+    }
+
+    @Test
+    void testGzipWithPooledBuffers() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + (i % 26));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(data);
+        }
+
+        byte[] compressed = bytes.toByteArray();
+        assertArrayEquals(data, EncodingUtils.processGzipEncoded(compressed));
+
+        EncodingUtils.ExpandedResult result = EncodingUtils.processGzipEncoded(compressed, 1000);
+        assertTrue(result.isTruncated());
+        assertArrayEquals(Arrays.copyOf(data, 1000), result.getExpanded());
+    }
+
+    @Test
+    void testNotGzipReleasesBuffers() {
+        BufferPool pool = BufferPool.get();
+        byte[] readBuffer = pool.acquireReadBuffer();
+        BodyBuffer bodyBuffer = pool.acquireBodyBuffer(100);
+        pool.releaseReadBuffer(readBuffer);
+        pool.releaseBodyBuffer(bodyBuffer);
+
+        byte[] notGzip = "<html>Not really gzip</html>".getBytes(StandardCharsets.UTF_8);
+        assertThrows(ZipException.class, () -> EncodingUtils.processGzipEncoded(notGzip, 1000));
+
+        // The thread's buffers are still handed out.
+        assertSame(readBuffer, pool.acquireReadBuffer());
+        assertSame(bodyBuffer, pool.acquireBodyBuffer(100));
+        pool.releaseReadBuffer(readBuffer);
+        pool.releaseBodyBuffer(bodyBuffer);
+    }
+}
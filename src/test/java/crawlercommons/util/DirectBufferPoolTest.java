@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 Crawler-Commons
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package crawlercommons.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    void testSizeClasses() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(DirectBufferPool.MIN_BUFFER_SIZE, buffer.capacity());
+        assertEquals(100, buffer.limit());
+        assertEquals(0, buffer.position());
+
+        assertEquals(8 * 1024, pool.acquire(5000).capacity());
+        assertEquals(8 * 1024, pool.acquire(8 * 1024).capacity());
+        assertEquals(16 * 1024, pool.acquire(8 * 1024 + 1).capacity());
+        assertEquals(0, pool.acquire(0).limit());
+    }
+
+    @Test
+    void testReuse() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer buffer = pool.acquire(5000);
+        pool.release(buffer);
+        assertEquals(8 * 1024, pool.getPooledBytes());
+
+        ByteBuffer reused = pool.acquire(6000);
+        assertSame(buffer, reused);
+        assertEquals(6000, reused.limit());
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(1, pool.getNumAllocated());
+
+        // Heap buffers aren't pooled.
+        pool.release(ByteBuffer.allocate(8 * 1024));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    void testMaxPooledBytes() {
+        DirectBufferPool pool = new DirectBufferPool(10 * 1024);
+        ByteBuffer first = pool.acquire(8 * 1024);
+        ByteBuffer second = pool.acquire(8 * 1024);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(8 * 1024, pool.getPooledBytes());
+    }
+
+    @Test
+    void testCopyOf() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer data = ByteBuffer.wrap("some content".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer copy = pool.copyOf(data);
+        assertTrue(copy.isDirect());
+        assertEquals(data, copy);
+        assertEquals(0, data.position());
+    }
+}